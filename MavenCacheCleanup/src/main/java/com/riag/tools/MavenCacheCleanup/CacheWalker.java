@@ -3,13 +3,32 @@
  */
 package com.riag.tools.MavenCacheCleanup;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
-import java.text.ParseException;
-import java.util.TreeSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 
@@ -17,22 +36,241 @@ import java.util.regex.Pattern;
  */
 public class CacheWalker
 {
-  private static final Pattern VERSION_PATTERN = Pattern.compile("(\\d+)(\\.)?(\\d+)?(\\.)?(.+)?(\\-)?(.+)?");
-  private static final Pattern SNAPSHOT_VERSION_PATTERN = Pattern.compile("(\\d{8})\\.(\\d{6})\\-(\\d+)(.+)");
   private static final String SNAPSHOT_SUFFIX = "-SNAPSHOT";
   private static final int SNAPSHOT_LEN = "SNAPSHOT".length();
+  private static final Comparator<DirectoryScanner.Entry> BY_NAME = new Comparator<DirectoryScanner.Entry>()
+  {
+    public int compare(DirectoryScanner.Entry a, DirectoryScanner.Entry b)
+    {
+      return a.getName().compareTo(b.getName());
+    }
+  };
   
-  private long m_deleted;
-  private long m_failedToDelete;
-  private long m_reclaimedSpace;
+  // Counters are shared by all traversal threads when running in parallel mode
+  private final AtomicLong m_deleted;
+  private final AtomicLong m_failedToDelete;
+  private final AtomicLong m_reclaimedSpace;
   private boolean m_verbose;
+  private final int m_threads;
+  private final DirectoryScanner m_scanner;
+  private ScanIndex m_index;
+  private int m_deleteThreads;
+  private int m_deleteQueueSize;
+  private RetentionPolicy m_retention = RetentionPolicy.LATEST;
+  private SizeBudget m_budget;
+  private Deduplicator m_dedup;
+  private boolean m_sharedDedup;
+  private final AtomicLong m_evictedDirs;
+  private final AtomicLong m_updatedMetadata;
+  private final CleanupMetrics m_metrics;
+  private FileDeleter m_target;
+  private FileDeleter m_deleter;
+  private final FlightEvents m_events;
+  private SnapshotWatcher m_watcher;
+  private ArtifactGuard m_guard;
+  private ForkJoinPool m_pool;
+  private Semaphore m_ioPermits;
+  private MarkerPurger m_purger;
+  private SnapshotArchive m_archive;
+  private GroupFilter m_groupFilter;
+  private UsageReport m_report;
+  private long m_deadline;
+  private WalkCursor m_cursor;
+  private Path m_lastCompleted;
+  private boolean m_incomplete;
+  private Path m_cacheRoot;
   
   CacheWalker(boolean verbose)
   {
-    m_deleted = 0L;
-    m_reclaimedSpace = 0L;
-    m_failedToDelete = 0L;
+    this(verbose, 1);
+  }
+  
+  /**
+   * @param verbose Print every removed file
+   * @param threads Number of threads used to walk the cache. Value 1 means sequential traversal.
+   */
+  CacheWalker(boolean verbose, int threads)
+  {
+    m_deleted = new AtomicLong(0L);
+    m_reclaimedSpace = new AtomicLong(0L);
+    m_failedToDelete = new AtomicLong(0L);
+    m_evictedDirs = new AtomicLong(0L);
+    m_updatedMetadata = new AtomicLong(0L);
+    m_metrics = new CleanupMetrics();
     m_verbose = verbose;
+    m_threads = Math.max(1, threads);
+    m_scanner = new DirectoryScanner(VersionClassifier.NUMERIC, m_metrics);
+    m_events = FlightEvents.getInstance();
+  }
+  
+  /**
+   * @param index Index of the previous run used to skip unchanged directories, <code>null</code> scans everything
+   */
+  void setScanIndex(ScanIndex index)
+  {
+    m_index = index;
+  }
+  
+  /**
+   * Moves file deletion off the traversal threads.
+   * 
+   * @param threads Number of deletion threads, 0 deletes files on the traversal threads
+   * @param queueSize Maximal number of files waiting for deletion
+   */
+  void setDeletionPipeline(int threads, int queueSize)
+  {
+    m_deleteThreads = threads;
+    m_deleteQueueSize = queueSize;
+  }
+  
+  /**
+   * @param retention Selects snapshot builds to keep, by default only the latest build survives
+   */
+  void setRetentionPolicy(RetentionPolicy retention)
+  {
+    m_retention = retention;
+  }
+  
+  /**
+   * @param budget Size limit of the whole cache, version directories are evicted in least recently used
+   *               order until the cache fits. <code>null</code> disables the limit.
+   */
+  void setSizeBudget(SizeBudget budget)
+  {
+    m_budget = budget;
+  }
+  
+  /**
+   * @param dedup Links identical files of the visited version directories after cleaning,
+   *              <code>null</code> disables deduplication
+   */
+  void setDeduplicator(Deduplicator dedup)
+  {
+    m_dedup = dedup;
+    m_sharedDedup = false;
+  }
+  
+  /**
+   * @param dedup Deduplicator shared with the walkers of other caches on the same file store. The walker only
+   *              adds its version directories, the caller runs the deduplicator once all walkers finished and
+   *              reports its counts.
+   */
+  void setSharedDeduplicator(Deduplicator dedup)
+  {
+    m_dedup = dedup;
+    m_sharedDedup = true;
+  }
+  
+  /**
+   * @param watcher Receives recently modified snapshot directories to watch. Only directories visited
+   *                with a scan index are reported, <code>null</code> reports none.
+   */
+  void setSnapshotWatcher(SnapshotWatcher watcher)
+  {
+    m_watcher = watcher;
+  }
+  
+  /**
+   * @param pool Pool shared with walkers of other caches, used instead of a pool of its own.
+   *             <code>null</code> creates a pool per walk if more than one thread is requested.
+   */
+  void setWorkerPool(ForkJoinPool pool)
+  {
+    m_pool = pool;
+  }
+  
+  /**
+   * @param ioPermits Limits directory listings, size measurements and deletes running at the same time,
+   *                  may be shared by several walkers. <code>null</code> means no limit. The second pass over a
+   *                  snapshot directory streams without a permit, only its deletes take one.
+   */
+  void setIoLimit(Semaphore ioPermits)
+  {
+    m_ioPermits = ioPermits;
+  }
+  
+  /**
+   * @param guard Protects artifacts of concurrently running builds, <code>null</code> cleans without
+   *              coordination. Files are deleted on the traversal threads then, the artifact lock has
+   *              to be held until they are gone.
+   */
+  void setArtifactGuard(ArtifactGuard guard)
+  {
+    m_guard = guard;
+  }
+  
+  /**
+   * @param purger Removes markers of failed downloads from artifact and version directories during the
+   *               traversal, <code>null</code> keeps them
+   */
+  void setMarkerPurger(MarkerPurger purger)
+  {
+    m_purger = purger;
+  }
+  
+  /**
+   * @param archive Receives outdated snapshot builds before they are deleted, <code>null</code> deletes them
+   *                for good. Evicted directories are never archived.
+   */
+  void setSnapshotArchive(SnapshotArchive archive)
+  {
+    m_archive = archive;
+  }
+  
+  /**
+   * @param groupFilter Selects the groups to clean, directories which cannot hold a selected group are not
+   *                    even listed. <code>null</code> cleans all groups.
+   */
+  void setGroupFilter(GroupFilter groupFilter)
+  {
+    m_groupFilter = (groupFilter != null && !groupFilter.isEmpty()) ? groupFilter : null;
+  }
+  
+  /**
+   * @param deleter Receives selected files instead of deleting them, e.g. to write a deletion plan.
+   *                <code>null</code> deletes the files.
+   */
+  void setDeleter(FileDeleter deleter)
+  {
+    m_target = deleter;
+  }
+  
+  /**
+   * @param report Measures every visited version directory, releases included. Set it as deleter as well to
+   *               account the reclaimable files. <code>null</code> measures nothing.
+   */
+  void setUsageReport(UsageReport report)
+  {
+    m_report = report;
+  }
+  
+  /**
+   * Limits the time of the walk. Sub-directories are walked sequentially in sorted order, the walk starts after
+   * the cursor and stops before entering a directory once the deadline has passed.
+   * 
+   * @param deadline Time in milliseconds when the walk stops
+   * @param cursor Position where the previous walk stopped
+   */
+  void setDeadline(long deadline, WalkCursor cursor)
+  {
+    m_deadline = deadline;
+    m_cursor = cursor;
+  }
+  
+  /**
+   * @return <code>true</code> if the walk stopped at the deadline
+   */
+  boolean isIncomplete()
+  {
+    return m_incomplete;
+  }
+  
+  /**
+   * @return Last directory walked completely before the deadline, <code>null</code> if there is none
+   */
+  Path getLastCompleted()
+  {
+    return m_lastCompleted;
   }
   
   /**
@@ -40,7 +278,7 @@ public class CacheWalker
    */
   public long getDeleted()
   {
-    return m_deleted;
+    return m_deleted.get();
   }
   
   /**
@@ -48,7 +286,7 @@ public class CacheWalker
    */
   public long getReclaimedSpace()
   {
-    return m_reclaimedSpace;
+    return m_reclaimedSpace.get();
   }
   
   /**
@@ -56,175 +294,1362 @@ public class CacheWalker
    */
   public long getFailedToDelete()
   {
-    return m_failedToDelete;
+    return m_failedToDelete.get();
+  }
+  
+  /**
+   * @return Counters and phase timings of this walker
+   */
+  CleanupMetrics getMetrics()
+  {
+    return m_metrics;
+  }
+  
+  /**
+   * @return Number of version directories evicted to fit the size budget
+   */
+  public long getEvictedDirs()
+  {
+    return m_evictedDirs.get();
+  }
+  
+  /**
+   * @return Number of snapshot metadata files rewritten to drop deleted builds
+   */
+  public long getUpdatedMetadata()
+  {
+    return m_updatedMetadata.get();
+  }
+  
+  /**
+   * Drops counters and metrics of the previous run, so the next run over the same cache reports its own
+   * numbers only.
+   */
+  void resetStatistics()
+  {
+    m_deleted.set(0L);
+    m_failedToDelete.set(0L);
+    m_reclaimedSpace.set(0L);
+    m_evictedDirs.set(0L);
+    m_updatedMetadata.set(0L);
+    m_metrics.reset();
+  }
+  
+  /**
+   * @return Number of duplicate files replaced by hard links
+   */
+  public long getLinkedFiles()
+  {
+    return (m_dedup != null && !m_sharedDedup) ? m_dedup.getLinkedFiles() : 0L;
+  }
+  
+  /**
+   * @return Total size in Bytes of all duplicates replaced by hard links
+   */
+  public long getDedupSpace()
+  {
+    return (m_dedup != null && !m_sharedDedup) ? m_dedup.getSavedSpace() : 0L;
+  }
+  
+  /**
+   * @return Number of duplicate files that failed to be linked
+   */
+  public long getFailedToLink()
+  {
+    return (m_dedup != null && !m_sharedDedup) ? m_dedup.getFailedToLink() : 0L;
   }
   
   public int processDirectory(File cacheDir)
   {
-    int retval = 0;
-    // Search Versions sub-dirs first.
-    File[] versions = cacheDir.listFiles(new DirPatternFilter(VERSION_PATTERN, false));
+    int retval;
+    DeletionPipeline pipeline = startDeletion();
+    long start = m_metrics.startPhase();
+    try
+    {
+      retval = walkCache(cacheDir.toPath());
+    }
+    finally
+    {
+      m_metrics.endPhase(CleanupMetrics.Phase.WALK, start);
+      finishDeletion(pipeline);
+    }
     
-    for(File versionDir : versions)
+    if(m_budget != null)
     {
-      if(versionDir.getName().endsWith(SNAPSHOT_SUFFIX))  // Only process snapshot version
+      // Outdated snapshots are gone now, so eviction never sees a file twice
+      List<Path> evictedDirs = new ArrayList<Path>();
+      pipeline = startDeletion();
+      start = m_metrics.startPhase();
+      try
+      {
+        retval = Math.max(retval, evictVersionDirs(evictedDirs));
+      }
+      finally
       {
-        cleanSnapshotDir(versionDir);
+        finishDeletion(pipeline);
+        removeEvictedDirs(evictedDirs);
+        m_metrics.endPhase(CleanupMetrics.Phase.EVICT, start);
       }
     }
     
-    // Recursively search all sub-dirs which are not Versions
-    File[] subdirs = cacheDir.listFiles(new DirPatternFilter(VERSION_PATTERN, true));
-    
-    for(File subdir : subdirs)
+    if(m_dedup != null && !m_sharedDedup)
     {
-      retval = Math.max(retval, processDirectory(subdir));
+      // Only files that survived cleaning and eviction are linked
+      start = m_metrics.startPhase();
+      m_dedup.run(m_threads);
+      m_metrics.endPhase(CleanupMetrics.Phase.DEDUP, start);
     }
-    
     return retval;
   }
-
   
-  private void cleanSnapshotDir(File versionDir)
+  /**
+   * Cleans a single snapshot version directory, e.g. after new builds were installed into it.
+   * The scan index is neither consulted nor updated, the next scan visits the directory once more.
+   */
+  void cleanSnapshot(Path versionDir)
+  {
+    DeletionPipeline pipeline = startDeletion();
+    try
+    {
+      cleanSnapshotDir(versionDir, null, null);
+    }
+    finally
+    {
+      finishDeletion(pipeline);
+    }
+  }
+  
+  /**
+   * Deletes files of a previously written deletion plan without scanning the cache.
+   * 
+   * @return Number of planned files skipped because they changed since planning
+   */
+  long executePlan(Path planFile, Path cacheDir) throws IOException
   {
-    // Guess Artifact name prefix. VersionDir is a snapshot version directory
-    // So ArtifactId is Name of the parent Dir
-    // Then comes "-" and then name of versionDisr without trailing "SNAPSHOT".
-    // Then we are interested in the pattern "yyyyMMdd.HHmmss" and then "-n" rest is not important
-    // All files that are patterned like this should be sorted by DateTime and buildNumber ("-n") in the reverse order
-    // and as last step we should delete all but latest.
-    // Files without pattern should not be touched
-    
-    String artifactId = versionDir.getParentFile().getName();
-    String artifactBaseVersion = versionDir.getName().substring(0, versionDir.getName().length() - SNAPSHOT_LEN);
+    DeletionPipeline pipeline = startDeletion();
+    long start = m_metrics.startPhase();
+    try
+    {
+      return DeletionPlan.execute(planFile, cacheDir, m_deleter);
+    }
+    finally
+    {
+      m_metrics.endPhase(CleanupMetrics.Phase.WALK, start);
+      finishDeletion(pipeline);
+    }
+  }
+  
+  private DeletionPipeline startDeletion()
+  {
+    m_deleter = (m_target != null) ? m_target : new DirectDeleter();
+    if(m_deleteThreads > 0 && m_guard == null)
+    {
+      DeletionPipeline pipeline = new DeletionPipeline(m_deleter, m_deleteThreads, m_deleteQueueSize);
+      m_deleter = pipeline;
+      return pipeline;
+    }
+    return null;
+  }
+  
+  private void finishDeletion(DeletionPipeline pipeline)
+  {
+    if(pipeline != null)
+    {
+      // Statistics are complete only after the queue is drained
+      long start = m_metrics.startPhase();
+      pipeline.close();
+      m_metrics.endPhase(CleanupMetrics.Phase.DRAIN, start);
+    }
+  }
+  
+  private int walkCache(Path cachePath)
+  {
+    m_cacheRoot = cachePath;
+    if(m_cursor != null)
+    {
+      // Resumable walks need a deterministic order
+      return walkDirectory(cachePath, null);
+    }
     
-    String filenamePrefix = artifactId + "-" + artifactBaseVersion;
+    if(m_pool != null)
+    {
+      DirectoryTask task = new DirectoryTask(cachePath, null);
+      // Caches processed as tasks of the shared pool fork their directories into the same pool
+      return ForkJoinTask.inForkJoinPool() ? task.invoke() : m_pool.invoke(task);
+    }
     
-    File[] timestampedFiles = versionDir.listFiles(new TimestampedFileFilter(filenamePrefix));
-    if(timestampedFiles.length > 0)
+    if(m_threads > 1)
     {
-      String versionToKeep = getLatestVersion(timestampedFiles, filenamePrefix);
-      if(versionToKeep != null)
+      ForkJoinPool pool = new ForkJoinPool(m_threads);
+      try
       {
-        String filePrifixToKeep = filenamePrefix + versionToKeep;
-        
-        // Delete all files from the list that do not start from 'filePrefixToKeep'
-        for(File file : timestampedFiles)
-        {
-          if(file.getName().startsWith(filePrifixToKeep)) continue;
-          
-          long fileSize = file.length();
-          
-          if(file.delete())
-          {
-            if (m_verbose)
-            {
-              System.out.println("Removed " + file.getAbsolutePath());
-            }
-            m_deleted++;
-            m_reclaimedSpace += fileSize;
-          }
-          else
-          {
-            m_failedToDelete++;
-            try
-            {
-              System.err.println("Failed to delete file '" + file.getCanonicalPath() + "'");
-            }
-            catch(IOException e)
-            {
-              // Should never occur, ignore
-            }
-          }
-        }
+        return pool.invoke(new DirectoryTask(cachePath, null));
+      }
+      finally
+      {
+        pool.shutdown();
       }
     }
+    
+    return walkDirectory(cachePath, null);
   }
-
-
-  private String getLatestVersion(File[] timestampedFiles, String filenamePrefix)
+  
+  /**
+   * Walks the cache depth first with an explicit stack instead of recursion. Only the sub-dirs of the
+   * directories on the current path are held, so memory grows with depth and width of the tree, never with
+   * the number of files.
+   */
+  private int walkDirectory(Path cacheDir, BasicFileAttributes attrs)
   {
-    TreeSet<SnapshotUniqueVersion> versions = new TreeSet<SnapshotUniqueVersion>();
-    int prefixLen = filenamePrefix.length();
+    Deque<Iterator<DirectoryScanner.Entry>> stack = new ArrayDeque<Iterator<DirectoryScanner.Entry>>();
+    Deque<Path> dirs = new ArrayDeque<Path>();
+    pushDirectory(stack, dirs, cacheDir, attrs);
     
-    for(File file : timestampedFiles)
+    while(!stack.isEmpty())
     {
-      String filenamerest = file.getName().substring(prefixLen);
-      Matcher m = SNAPSHOT_VERSION_PATTERN.matcher(filenamerest);
-      if(m.matches()) // It should always match
+      Iterator<DirectoryScanner.Entry> subDirs = stack.peek();
+      if(!subDirs.hasNext())
       {
-        String dateString = m.group(1);
-        String timeString = m.group(2);
-        String buildString = m.group(3);
-        try
+        stack.pop();
+        Path dir = dirs.pop();
+        if(m_cursor != null)
         {
-          SnapshotUniqueVersion ver = new SnapshotUniqueVersion(dateString, timeString, buildString);
-          versions.add(ver);
+          m_lastCompleted = dir;
         }
-        catch(ParseException e)
+        continue;
+      }
+      
+      DirectoryScanner.Entry subdir = subDirs.next();
+      if(!needsDirectory(subdir.getPath())) continue;
+      
+      if(m_cursor != null)
+      {
+        if(m_cursor.covers(subdir.getPath())) continue;
+        if(System.currentTimeMillis() >= m_deadline)
         {
-          System.err.println("Failed to parse filename '" + file.getName() + "'.");
+          m_incomplete = true;
+          break;
         }
       }
+      pushDirectory(stack, dirs, subdir.getPath(), subdir.getAttributes());
     }
+    return 0;
+  }
+  
+  private void pushDirectory(Deque<Iterator<DirectoryScanner.Entry>> stack, Deque<Path> dirs, Path dir,
+      BasicFileAttributes attrs)
+  {
+    DirectoryScanner.Listing listing = listDirectory(dir, attrs);
+    if(listing == null) return;
     
-    // Treeset should be sorted, so we can just take last element which is latest version
-    if(versions.size() > 0)
+    // Search Versions sub-dirs first, all sub-dirs which are not Versions are walked afterwards
+    cleanVersionDirs(listing);
+    List<DirectoryScanner.Entry> subDirs = listing.getSubDirs();
+    if(m_cursor != null)
     {
-      SnapshotUniqueVersion latestVersion = versions.last();
-      return latestVersion.toString();
+      subDirs = new ArrayList<DirectoryScanner.Entry>(subDirs);
+      Collections.sort(subDirs, BY_NAME);
     }
-    
-    // No versions in set, return null
-    return null;
+    stack.push(subDirs.iterator());
+    dirs.push(dir);
   }
-
-
-  private static final class DirPatternFilter implements FileFilter
+  
+  /**
+   * @return <code>false</code> if the group filter rules out all artifacts below the directory
+   */
+  private boolean needsDirectory(Path dir)
   {
-    private final Pattern m_pattern;
-    private final boolean m_not;
+    return m_groupFilter == null || m_groupFilter.needsDirectory(m_cacheRoot.relativize(dir));
+  }
+  
+  private DirectoryScanner.Listing listDirectory(Path dir, BasicFileAttributes attrs)
+  {
+    if(m_index == null) return scanDirectory(dir);
     
-    DirPatternFilter(Pattern pattern, boolean notPattern)
+    // Modification time has to be taken before listing, so changes made meanwhile are seen next time
+    long lastModified = getLastModified(dir, attrs);
+    DirectoryScanner.Listing listing = m_index.getListing(dir, lastModified);
+    if(listing == null)
     {
-      m_pattern = pattern;
-      m_not = notPattern;
+      listing = scanDirectory(dir);
+      if(listing != null)
+      {
+        m_index.putListing(dir, lastModified, listing);
+      }
     }
-    
-    public boolean accept(File pathname)
+    return listing;
+  }
+  
+  private static long getLastModified(Path path, BasicFileAttributes attrs)
+  {
+    try
     {
-      if(pathname.isDirectory())
+      if(attrs == null)
       {
-        Matcher m = m_pattern.matcher(pathname.getName());
-        boolean matches = m.matches();
-        return (m_not) ? !matches : matches;
+        attrs = Files.readAttributes(path, BasicFileAttributes.class);
       }
-      
-      return false;
+      return attrs.lastModifiedTime().toMillis();
+    }
+    catch(IOException e)
+    {
+      return ScanIndex.UNKNOWN_TIME;
     }
   }
   
-  private static final class TimestampedFileFilter implements FileFilter
+  private DirectoryScanner.Listing scanDirectory(Path dir)
   {
-    private final String m_filePrifix;
+    acquireIo();
+    try
+    {
+      return m_scanner.scan(dir);
+    }
+    catch(IOException e)
+    {
+      System.err.println("Failed to list directory '" + dir + "': " + e);
+      return null;
+    }
+    finally
+    {
+      releaseIo();
+    }
+  }
+  
+  private void acquireIo()
+  {
+    if(m_ioPermits != null)
+    {
+      m_ioPermits.acquireUninterruptibly();
+    }
+  }
+  
+  private void releaseIo()
+  {
+    if(m_ioPermits != null)
+    {
+      m_ioPermits.release();
+    }
+  }
+  
+  private void cleanVersionDirs(DirectoryScanner.Listing listing)
+  {
+    if(m_groupFilter != null && !listing.getVersionDirs().isEmpty())
+    {
+      // Version directories are found in the artifact directory, its parent is the group
+      Path artifactDir = m_cacheRoot.relativize(listing.getVersionDirs().get(0).getPath().getParent());
+      if(!m_groupFilter.selectsGroup(artifactDir.getParent())) return;
+    }
     
-    TimestampedFileFilter(String prefix)
+    if(m_budget != null)
     {
-      m_filePrifix = prefix;
+      m_budget.addFiles(listing.getFileSize());
+    }
+    
+    if(m_purger != null && !listing.getVersionDirs().isEmpty())
+    {
+      // Status of the artifact metadata is kept next to the version directories
+      purgeMarkers(listing.getVersionDirs().get(0).getPath().getParent());
     }
     
-    public boolean accept(File pathname)
+    // Outdated builds of all version directories are archived together, the archive is rewritten once
+    ArchiveBatch batch = (m_archive != null && m_target == null) ? new ArchiveBatch() : null;
+    List<SizeBudget.Usage> usages = (batch != null && m_budget != null) ? new ArrayList<SizeBudget.Usage>() : null;
+    try
     {
-      if(pathname.isFile())
+      for(DirectoryScanner.Entry versionDir : listing.getVersionDirs())
       {
-        String fileName = pathname.getName();
+        if(m_purger != null)
+        {
+          purgeMarkers(versionDir.getPath());
+        }
         
-        if(fileName.startsWith(m_filePrifix))
+        if(m_dedup != null)
         {
-          String nameRest = fileName.substring(m_filePrifix.length());
-          Matcher m = SNAPSHOT_VERSION_PATTERN.matcher(nameRest);
-          return m.matches();
+          m_dedup.addVersionDir(versionDir.getPath());
         }
+        
+        if(m_report != null)
+        {
+          reportVersionDir(versionDir.getPath());
+        }
+        
+        // Usage is measured before cleaning, files selected for deletion are subtracted afterwards
+        SizeBudget.Usage usage = (m_budget != null) ? measureVersionDir(versionDir.getPath()) : null;
+        
+        if(versionDir.getName().endsWith(SNAPSHOT_SUFFIX))  // Only process snapshot version
+        {
+          processSnapshotDir(versionDir, usage, batch);
+        }
+        
+        if(usages != null)
+        {
+          // Archived files are subtracted once the batch is deleted
+          usages.add(usage);
+        }
+        else if(usage != null)
+        {
+          m_budget.addVersionDir(versionDir.getPath(), usage);
+        }
+      }
+    }
+    finally
+    {
+      if(batch != null)
+      {
+        batch.finish();
+      }
+    }
+    
+    if(usages != null)
+    {
+      for(int i = 0; i < usages.size(); i++)
+      {
+        if(usages.get(i) != null)
+        {
+          m_budget.addVersionDir(listing.getVersionDirs().get(i).getPath(), usages.get(i));
+        }
+      }
+    }
+  }
+  
+  /**
+   * Version directories are listed for markers on every run, as markers expire without touching the directory.
+   */
+  private void purgeMarkers(Path dir)
+  {
+    List<DirectoryScanner.Entry> markers;
+    acquireIo();
+    try
+    {
+      markers = m_scanner.scanFiles(dir, MarkerPurger.MARKER_FILTER);
+    }
+    catch(IOException e)
+    {
+      System.err.println("Failed to list directory '" + dir + "': " + e);
+      return;
+    }
+    finally
+    {
+      releaseIo();
+    }
+    
+    if(!markers.isEmpty())
+    {
+      // Planning must not modify the cache, status files are only rewritten when cleaning
+      try
+      {
+        m_purger.purge(dir, markers, m_deleter, m_target == null);
+      }
+      catch(IOException e)
+      {
+        System.err.println("Failed to purge '" + dir.resolve(MarkerPurger.STATUS_FILE) + "': " + e);
+      }
+    }
+  }
+  
+  private SizeBudget.Usage measureVersionDir(Path versionDir)
+  {
+    acquireIo();
+    try
+    {
+      return m_budget.measure(versionDir);
+    }
+    catch(IOException e)
+    {
+      System.err.println("Failed to measure directory '" + versionDir + "': " + e);
+      return null;
+    }
+    finally
+    {
+      releaseIo();
+    }
+  }
+  
+  private void reportVersionDir(Path versionDir)
+  {
+    acquireIo();
+    try
+    {
+      m_report.addVersionDir(versionDir);
+    }
+    catch(IOException e)
+    {
+      System.err.println("Failed to measure directory '" + versionDir + "': " + e);
+    }
+    finally
+    {
+      releaseIo();
+    }
+  }
+  
+  private void processSnapshotDir(DirectoryScanner.Entry versionDir, SizeBudget.Usage usage, ArchiveBatch batch)
+  {
+    if(m_index == null)
+    {
+      cleanSnapshotDir(versionDir.getPath(), usage, batch);
+      return;
+    }
+    
+    long lastModified = getLastModified(versionDir.getPath(), versionDir.getAttributes());
+    if(m_watcher != null)
+    {
+      m_watcher.visitSnapshotDir(versionDir.getPath(), lastModified);
+    }
+    if(m_index.isSnapshotUnchanged(versionDir.getPath(), lastModified)) return;
+    
+    // Deletions change the modification time again, so such directory is rescanned once more next time
+    RetentionPolicy.Selector selector = cleanSnapshotDir(versionDir.getPath(), usage, batch);
+    m_index.putSnapshot(versionDir.getPath(), lastModified, selector.getLatest(), selector.getExpires());
+  }
+
+  
+  /**
+   * Files are streamed twice from the directory instead of being listed. The first pass selects the versions
+   * to keep, the second deletes files of all other versions right away and is skipped for a single build.
+   * Outdated files are collected only in safe and archive mode, which have to look at them before deleting.
+   * 
+   * @param usage Usage of the directory to subtract deleted files from, may be <code>null</code>
+   * @param batch Receives the files to archive instead of archiving them right away, may be <code>null</code>
+   * @return Selector holding the kept versions
+   */
+  private RetentionPolicy.Selector cleanSnapshotDir(Path versionDir, SizeBudget.Usage usage, ArchiveBatch batch)
+  {
+    Closeable lock = null;
+    if(m_guard != null)
+    {
+      lock = lockArtifact(versionDir);
+      if(lock == null) return m_retention.newSelector();
+    }
+    
+    try
+    {
+      Object event = m_events.beginSnapshotDir();
+      String filenamePrefix = getFilenamePrefix(versionDir);
+      BuildSurvey survey = surveyBuilds(versionDir, filenamePrefix);
+      if(survey == null)
+      {
+        // Not cleaned, so listed again on the next run even if it stays unchanged
+        invalidate(versionDir);
+        return m_retention.newSelector();
+      }
+      if(!survey.hasSeveralBuilds())
+      {
+        // The newest build is always kept, so there is nothing to delete and no second pass
+        m_events.commitSnapshotDir(event, versionDir, survey.m_files, survey.m_size, 0, 0L);
+        return survey.m_selector;
+      }
+      
+      boolean collect = m_guard != null || (m_archive != null && m_target == null);
+      OutdatedFileVisitor outdated = new OutdatedFileVisitor(survey, filenamePrefix, usage, collect,
+          !survey.m_metadataFiles.isEmpty() && m_target == null);
+      try
+      {
+        // No permit here: the pass deletes while streaming, and each delete takes a permit itself. Holding one
+        // would deadlock on a single permit, or once the deletion threads wait for the permits of walkers
+        // blocked on a full queue.
+        m_scanner.scanFiles(versionDir, outdated.m_filter, outdated);
+      }
+      catch(IOException e)
+      {
+        // Versions to keep are known already, files not visited yet stay until the next run
+        System.err.println("Failed to list directory '" + versionDir + "': " + e);
+        invalidate(versionDir);
+      }
+      m_metrics.addParsedNames(outdated.m_filter.getParsed());
+      
+      if(collect && !outdated.m_files.isEmpty())
+      {
+        List<DirectoryScanner.Entry> selectedFiles = outdated.m_files;
+        if(m_guard != null)
+        {
+          selectedFiles = verifyOutdatedFiles(versionDir, filenamePrefix, selectedFiles, survey.m_selector.getLatest());
+        }
+        if(m_archive != null && m_target == null && !selectedFiles.isEmpty())
+        {
+          if(batch != null)
+          {
+            // Deleted once the batch is archived, the artifact stays locked until then
+            batch.add(new PendingDir(versionDir, filenamePrefix, survey, outdated, event, lock), selectedFiles);
+            lock = null;
+            return survey.m_selector;
+          }
+          selectedFiles = archiveFiles(versionDir, selectedFiles);
+        }
+        outdated.deleteCollected(selectedFiles);
+      }
+      
+      finishSnapshotDir(versionDir, filenamePrefix, survey, outdated, event);
+      return survey.m_selector;
+    }
+    finally
+    {
+      unlockArtifact(lock);
+    }
+  }
+  
+  private void finishSnapshotDir(Path versionDir, String filenamePrefix, BuildSurvey survey,
+      OutdatedFileVisitor outdated, Object event)
+  {
+    if(outdated.m_outdatedFiles > 0 && outdated.m_keptNames != null)
+    {
+      updateMetadata(versionDir, filenamePrefix, survey.m_metadataFiles, outdated.m_keptNames);
+    }
+    m_events.commitSnapshotDir(event, versionDir, survey.m_files, survey.m_size, outdated.m_outdatedFiles,
+        outdated.m_outdatedSize);
+    if(m_watcher != null && outdated.m_outdatedFiles > 0)
+    {
+      // New builds were installed since the last cleanup, the directory is in active use
+      m_watcher.watchActiveDir(versionDir);
+    }
+  }
+  
+  /**
+   * Streams the directory once to find the versions to keep. Keeping only the latest build, the current build
+   * named by trustworthy snapshot metadata decides instead. The metadata is trusted only if written after the
+   * newest timestamped file, so it is read after the stream, and only if there are several builds to choose from.
+   * 
+   * @return Survey of the directory, <code>null</code> if it cannot be listed
+   */
+  private BuildSurvey surveyBuilds(Path versionDir, String filenamePrefix)
+  {
+    BuildSurvey survey = new BuildSurvey(filenamePrefix, m_retention.newSelector());
+    acquireIo();
+    try
+    {
+      m_scanner.scanFiles(versionDir, survey.m_filter, survey);
+    }
+    catch(IOException e)
+    {
+      System.err.println("Failed to list directory '" + versionDir + "': " + e);
+      return null;
+    }
+    finally
+    {
+      releaseIo();
+    }
+    m_metrics.addParsedNames(survey.m_filter.getParsed());
+    
+    if(survey.hasSeveralBuilds() && !survey.m_metadataFiles.isEmpty() && m_retention.keepsLatestOnly())
+    {
+      String artifactId = versionDir.getParent().getFileName().toString();
+      long current = SnapshotMetadata.getCurrentBuild(versionDir, survey.m_metadataFiles, artifactId,
+          filenamePrefix, survey.m_lastModified);
+      if(current != SnapshotVersionParser.INVALID)
+      {
+        survey.m_current = current;
+        survey.m_selector = m_retention.newSelector();
+        survey.m_selector.offer(current);
+      }
+    }
+    return survey;
+  }
+  
+  /**
+   * @return Files to delete, none if archiving failed
+   */
+  private List<DirectoryScanner.Entry> archiveFiles(Path versionDir, List<DirectoryScanner.Entry> files)
+  {
+    acquireIo();
+    try
+    {
+      m_archive.archive(versionDir, files);
+      if (m_verbose)
+      {
+        System.out.println("Archived " + files.size() + " file(s) of " + versionDir.toAbsolutePath());
+      }
+      return files;
+    }
+    catch(IOException e)
+    {
+      // Outdated builds are kept until they can be archived
+      System.err.println("Failed to archive builds of '" + versionDir + "': " + e);
+      invalidate(versionDir);
+      return Collections.emptyList();
+    }
+    finally
+    {
+      releaseIo();
+    }
+  }
+  
+  /**
+   * @return Lock of the artifact stored in the version directory, <code>null</code> if a build holds it
+   */
+  private Closeable lockArtifact(Path versionDir)
+  {
+    Closeable lock;
+    try
+    {
+      lock = m_guard.tryLock(versionDir);
+    }
+    catch(IOException e)
+    {
+      System.err.println("Failed to lock artifact in '" + versionDir + "': " + e);
+      lock = null;
+    }
+    
+    if(lock == null)
+    {
+      if (m_verbose)
+      {
+        System.out.println("Skipped " + versionDir.toAbsolutePath() + ", artifact is in use");
+      }
+      invalidate(versionDir);
+    }
+    return lock;
+  }
+  
+  private static void unlockArtifact(Closeable lock)
+  {
+    if(lock == null) return;
+    
+    try
+    {
+      lock.close();
+    }
+    catch(IOException e)
+    {
+      // Lock is gone together with the channel anyway
+    }
+  }
+  
+  /**
+   * Keeps files modified within the grace period. Right before deleting, the directory is listed again,
+   * nothing is deleted if a build has installed a newer version meanwhile.
+   * 
+   * @param latest Latest version selected from the first listing
+   * @return Files which are safe to delete
+   */
+  private List<DirectoryScanner.Entry> verifyOutdatedFiles(Path versionDir, String filenamePrefix,
+      List<DirectoryScanner.Entry> outdatedFiles, long latest)
+  {
+    List<DirectoryScanner.Entry> settledFiles = new ArrayList<DirectoryScanner.Entry>(outdatedFiles.size());
+    for(DirectoryScanner.Entry file : outdatedFiles)
+    {
+      if(!m_guard.isRecent(file.getAttributes()))
+      {
+        settledFiles.add(file);
+      }
+    }
+    if(settledFiles.size() < outdatedFiles.size())
+    {
+      // Recent files are deleted on a later run
+      invalidate(versionDir);
+    }
+    if(settledFiles.isEmpty()) return settledFiles;
+    
+    BuildSurvey current = surveyBuilds(versionDir, filenamePrefix);
+    if(current == null || current.m_selector.getLatest() != latest)
+    {
+      if (m_verbose)
+      {
+        System.out.println("Skipped " + versionDir.toAbsolutePath() + ", new version installed meanwhile");
+      }
+      m_guard.addChangedDir();
+      invalidate(versionDir);
+      return Collections.emptyList();
+    }
+    return settledFiles;
+  }
+  
+  private void invalidate(Path dir)
+  {
+    if(m_index != null)
+    {
+      m_index.invalidate(dir);
+    }
+  }
+  
+  /**
+   * @return Common prefix of the timestamped file names in a snapshot version directory
+   */
+  private static String getFilenamePrefix(Path versionDir)
+  {
+    // Guess Artifact name prefix. VersionDir is a snapshot version directory
+    // So ArtifactId is Name of the parent Dir
+    // Then comes "-" and then name of versionDisr without trailing "SNAPSHOT".
+    // Then we are interested in the pattern "yyyyMMdd.HHmmss" and then "-n" rest is not important
+    // All files that are patterned like this should be sorted by DateTime and buildNumber ("-n") in the reverse order
+    // and as last step we should delete all but the builds selected by the retention policy.
+    // Files without pattern should not be touched
+    
+    String artifactId = versionDir.getParent().getFileName().toString();
+    String versionDirName = versionDir.getFileName().toString();
+    String artifactBaseVersion = versionDirName.substring(0, versionDirName.length() - SNAPSHOT_LEN);
+    
+    return artifactId + "-" + artifactBaseVersion;
+  }
+  
+  /**
+   * Lists all timestamped files of a directory, only used where a list cannot be avoided.
+   */
+  private List<DirectoryScanner.Entry> listTimestampedFiles(Path versionDir, String filenamePrefix)
+  {
+    List<DirectoryScanner.Entry> timestampedFiles;
+    TimestampedFileFilter filter = new TimestampedFileFilter(filenamePrefix);
+    acquireIo();
+    try
+    {
+      timestampedFiles = m_scanner.scanFiles(versionDir, filter);
+    }
+    catch(IOException e)
+    {
+      System.err.println("Failed to list directory '" + versionDir + "': " + e);
+      timestampedFiles = Collections.emptyList();
+    }
+    finally
+    {
+      releaseIo();
+    }
+    m_metrics.addParsedNames(filter.getParsed());
+    return timestampedFiles;
+  }
+  
+  /**
+   * Drops deleted builds from the <code>snapshotVersions</code> of the metadata files, so they never point to
+   * files which are gone.
+   * 
+   * @param existing Names of the timestamped files still present
+   */
+  private void updateMetadata(Path versionDir, String filenamePrefix, List<DirectoryScanner.Entry> metadataFiles,
+      Set<String> existing)
+  {
+    String artifactId = versionDir.getParent().getFileName().toString();
+    for(DirectoryScanner.Entry metadata : metadataFiles)
+    {
+      acquireIo();
+      try
+      {
+        if(SnapshotMetadata.removeMissingFiles(metadata.getPath(), artifactId, filenamePrefix, existing))
+        {
+          m_updatedMetadata.incrementAndGet();
+          if (m_verbose)
+          {
+            System.out.println("Updated " + metadata.getPath().toAbsolutePath());
+          }
+        }
+      }
+      catch(IOException e)
+      {
+        System.err.println("Failed to update metadata '" + metadata.getPath() + "': " + e);
+      }
+      finally
+      {
+        releaseIo();
+      }
+    }
+  }
+  
+  /**
+   * @param selector Receives all versions found in the directory
+   * @return Timestamped files which do not belong to the kept versions
+   */
+  private List<DirectoryScanner.Entry> selectOutdatedFiles(List<DirectoryScanner.Entry> timestampedFiles,
+      int prefixLen, RetentionPolicy.Selector selector)
+  {
+    int parsed = 0;
+    for(DirectoryScanner.Entry file : timestampedFiles)
+    {
+      selector.offer(SnapshotVersionParser.parse(file.getName(), prefixLen));
+      parsed++;
+    }
+    
+    // Select all files from the list that do not belong to the kept versions
+    List<DirectoryScanner.Entry> outdatedFiles = new ArrayList<DirectoryScanner.Entry>();
+    for(DirectoryScanner.Entry file : timestampedFiles)
+    {
+      parsed++;
+      if(selector.retains(SnapshotVersionParser.parse(file.getName(), prefixLen))) continue;
+      
+      outdatedFiles.add(file);
+    }
+    m_metrics.addParsedNames(parsed);
+    return outdatedFiles;
+  }
+  
+  /**
+   * Evicts whole version directories, least recently used first, until the cache fits into the size budget.
+   * 
+   * @param evictedDirs Receives evicted directories, children before their parents
+   * @return 0 on success, 1 if usage of the cache could not be sorted
+   */
+  private int evictVersionDirs(List<Path> evictedDirs)
+  {
+    long excess = m_budget.getTotalSize() - m_budget.getMaxSize();
+    if(excess <= 0) return 0;
+    
+    try(UsageSorter.Cursor cursor = m_budget.leastRecentlyUsed())
+    {
+      UsageSorter.Record record;
+      while(excess > 0 && (record = cursor.next()) != null)
+      {
+        Path versionDir = Paths.get(record.getPath());
+        if (m_verbose)
+        {
+          System.out.println("Evicting " + versionDir.toAbsolutePath());
+        }
+        evictVersionDir(versionDir, evictedDirs);
+        m_evictedDirs.incrementAndGet();
+        excess -= record.getSize();
+      }
+    }
+    catch(IOException e)
+    {
+      System.err.println("Failed to sort cache usage, no directories evicted: " + e);
+      return 1;
+    }
+    return 0;
+  }
+  
+  private void evictVersionDir(Path versionDir, final List<Path> evictedDirs) throws IOException
+  {
+    Closeable lock = null;
+    if(m_guard != null)
+    {
+      lock = lockArtifact(versionDir);
+      if(lock == null) return;
+    }
+    
+    try
+    {
+      evictLockedVersionDir(versionDir, evictedDirs);
+    }
+    finally
+    {
+      unlockArtifact(lock);
+    }
+  }
+  
+  private void evictLockedVersionDir(Path versionDir, final List<Path> evictedDirs) throws IOException
+  {
+    // A plan keeps outdated snapshots in place, they must not be planned twice
+    final Set<Path> planned = new HashSet<Path>();
+    if(m_target != null && versionDir.getFileName().toString().endsWith(SNAPSHOT_SUFFIX))
+    {
+      String filenamePrefix = getFilenamePrefix(versionDir);
+      List<DirectoryScanner.Entry> timestampedFiles = listTimestampedFiles(versionDir, filenamePrefix);
+      for(DirectoryScanner.Entry file : selectOutdatedFiles(timestampedFiles, filenamePrefix.length(),
+          m_retention.newSelector()))
+      {
+        planned.add(file.getPath());
+      }
+    }
+    
+    Files.walkFileTree(versionDir, new SimpleFileVisitor<Path>()
+    {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+      {
+        if(attrs.isRegularFile() && !planned.contains(file) && (m_guard == null || !m_guard.isRecent(attrs)))
+        {
+          m_deleter.delete(file, attrs);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+      
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException e)
+      {
+        System.err.println("Failed to evict '" + file + "': " + e);
+        return FileVisitResult.CONTINUE;
+      }
+      
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e)
+      {
+        evictedDirs.add(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+  
+  private void removeEvictedDirs(List<Path> evictedDirs)
+  {
+    // Planned deletions leave the files in place
+    if(m_target != null) return;
+    
+    for(Path dir : evictedDirs)
+    {
+      try
+      {
+        Files.delete(dir);
+      }
+      catch(IOException e)
+      {
+        // Some files failed to be deleted, they are reported already
+      }
+    }
+  }
+  
+  
+  /**
+   * Deletes files right away on the calling thread and accounts the result.
+   */
+  private final class DirectDeleter implements FileDeleter
+  {
+    public void delete(Path file, BasicFileAttributes attrs)
+    {
+      acquireIo();
+      long start = System.nanoTime();
+      try
+      {
+        Files.delete(file);
+        if (m_verbose)
+        {
+          System.out.println("Removed " + file.toAbsolutePath());
+        }
+        m_deleted.incrementAndGet();
+        m_reclaimedSpace.addAndGet(attrs.size());
+      }
+      catch(IOException e)
+      {
+        m_failedToDelete.incrementAndGet();
+        if(m_index != null)
+        {
+          // Retry on the next run even if directory stays unchanged
+          m_index.invalidate(file.getParent());
+        }
+        System.err.println("Failed to delete file '" + file.toAbsolutePath() + "'");
+      }
+      finally
+      {
+        m_metrics.addDelete(System.nanoTime() - start);
+        releaseIo();
+      }
+    }
+  }
+
+
+  /**
+   * Fork-join task processing one directory of the cache. Version sub-dirs are cleaned
+   * by the task itself, every other sub-dir (groupId or artifactId level) becomes a subtask.
+   */
+  private final class DirectoryTask extends RecursiveTask<Integer>
+  {
+    private static final long serialVersionUID = 1L;
+    
+    private final Path m_dir;
+    private final BasicFileAttributes m_attrs;
+    
+    DirectoryTask(Path dir, BasicFileAttributes attrs)
+    {
+      m_dir = dir;
+      m_attrs = attrs;
+    }
+    
+    @Override
+    protected Integer compute()
+    {
+      DirectoryScanner.Listing listing = listDirectory(m_dir, m_attrs);
+      if(listing == null) return 0;
+      
+      cleanVersionDirs(listing);
+      
+      List<DirectoryTask> tasks = new ArrayList<DirectoryTask>(listing.getSubDirs().size());
+      for(DirectoryScanner.Entry subdir : listing.getSubDirs())
+      {
+        if(needsDirectory(subdir.getPath()))
+        {
+          tasks.add(new DirectoryTask(subdir.getPath(), subdir.getAttributes()));
+        }
+      }
+      
+      int retval = 0;
+      for(DirectoryTask task : invokeAll(tasks))
+      {
+        retval = Math.max(retval, task.join());
+      }
+      return retval;
+    }
+  }
+
+
+  /**
+   * Snapshot directory whose outdated builds wait for the archive of its artifact to be written.
+   */
+  private static final class PendingDir
+  {
+    private final Path m_versionDir;
+    private final String m_filenamePrefix;
+    private final BuildSurvey m_survey;
+    private final OutdatedFileVisitor m_outdated;
+    private final Object m_event;
+    private final Closeable m_lock;
+    
+    PendingDir(Path versionDir, String filenamePrefix, BuildSurvey survey, OutdatedFileVisitor outdated,
+        Object event, Closeable lock)
+    {
+      m_versionDir = versionDir;
+      m_filenamePrefix = filenamePrefix;
+      m_survey = survey;
+      m_outdated = outdated;
+      m_event = event;
+      m_lock = lock;
+    }
+  }
+  
+  /**
+   * Outdated builds of the snapshot directories of one artifact. They are archived in one session of the zip
+   * file system and deleted afterwards, so the archive is not rewritten for every snapshot directory.
+   */
+  private final class ArchiveBatch
+  {
+    private final Map<Path, List<DirectoryScanner.Entry>> m_files =
+        new LinkedHashMap<Path, List<DirectoryScanner.Entry>>();
+    private final List<PendingDir> m_dirs = new ArrayList<PendingDir>();
+    
+    void add(PendingDir dir, List<DirectoryScanner.Entry> selectedFiles)
+    {
+      m_dirs.add(dir);
+      m_files.put(dir.m_versionDir, selectedFiles);
+    }
+    
+    /**
+     * Archives all collected builds, deletes them and releases the artifact locks. If the archive cannot be
+     * written, all builds are kept and retried on the next run.
+     */
+    void finish()
+    {
+      if(m_dirs.isEmpty()) return;
+      
+      boolean archived;
+      acquireIo();
+      try
+      {
+        m_archive.archive(m_files);
+        archived = true;
+        if (m_verbose)
+        {
+          for(Map.Entry<Path, List<DirectoryScanner.Entry>> entry : m_files.entrySet())
+          {
+            System.out.println("Archived " + entry.getValue().size() + " file(s) of "
+                + entry.getKey().toAbsolutePath());
+          }
+        }
+      }
+      catch(IOException e)
+      {
+        // Outdated builds are kept until they can be archived
+        System.err.println("Failed to archive builds of '" + m_dirs.get(0).m_versionDir.getParent() + "': " + e);
+        archived = false;
+      }
+      finally
+      {
+        releaseIo();
+      }
+      
+      for(PendingDir dir : m_dirs)
+      {
+        try
+        {
+          if(archived)
+          {
+            dir.m_outdated.deleteCollected(m_files.get(dir.m_versionDir));
+          }
+          else
+          {
+            invalidate(dir.m_versionDir);
+            dir.m_outdated.deleteCollected(Collections.<DirectoryScanner.Entry> emptyList());
+          }
+          finishSnapshotDir(dir.m_versionDir, dir.m_filenamePrefix, dir.m_survey, dir.m_outdated, dir.m_event);
+        }
+        finally
+        {
+          unlockArtifact(dir.m_lock);
+        }
+      }
+    }
+  }
+  
+  /**
+   * First pass over a snapshot directory, offers the version of every timestamped file to the selector.
+   */
+  private static final class BuildSurvey implements DirectoryScanner.EntryVisitor
+  {
+    private final TimestampedFileFilter m_filter;
+    private RetentionPolicy.Selector m_selector;
+    private final List<DirectoryScanner.Entry> m_metadataFiles;
+    private int m_files;
+    private long m_size;
+    private long m_lastModified;
+    private long m_earliest;
+    private long m_latest;
+    private long m_current;
+    
+    BuildSurvey(String filenamePrefix, RetentionPolicy.Selector selector)
+    {
+      m_filter = new TimestampedFileFilter(filenamePrefix, true);
+      m_selector = selector;
+      m_metadataFiles = new ArrayList<DirectoryScanner.Entry>();
+      m_lastModified = Long.MIN_VALUE;
+      m_earliest = Long.MAX_VALUE;
+      m_latest = SnapshotVersionParser.INVALID;
+      m_current = SnapshotVersionParser.INVALID;
+    }
+    
+    public void visit(DirectoryScanner.Entry entry)
+    {
+      long key = m_filter.getKey();
+      if(key == SnapshotVersionParser.INVALID)
+      {
+        m_metadataFiles.add(entry);
+        return;
+      }
+      
+      m_selector.offer(key);
+      m_earliest = Math.min(m_earliest, key);
+      m_latest = Math.max(m_latest, key);
+      m_lastModified = Math.max(m_lastModified, entry.getAttributes().lastModifiedTime().toMillis());
+      m_files++;
+      m_size += entry.getSize();
+    }
+    
+    /**
+     * @return <code>true</code> if timestamped files of more than one build were found
+     */
+    boolean hasSeveralBuilds()
+    {
+      return m_files > 0 && m_earliest < m_latest;
+    }
+    
+    /**
+     * @return <code>true</code> if files of the version have to stay
+     */
+    boolean retains(long key)
+    {
+      // Builds installed after the survey are never outdated
+      if(key > m_latest) return true;
+      return (m_current != SnapshotVersionParser.INVALID) ? key == m_current : m_selector.retains(key);
+    }
+  }
+  
+  
+  /**
+   * Second pass over a snapshot directory, deletes files of the versions not kept by the survey.
+   */
+  private final class OutdatedFileVisitor implements DirectoryScanner.EntryVisitor
+  {
+    private final TimestampedFileFilter m_filter;
+    private final BuildSurvey m_survey;
+    private final SizeBudget.Usage m_usage;
+    private final List<DirectoryScanner.Entry> m_files;
+    private final Set<String> m_keptNames;
+    private int m_outdatedFiles;
+    private long m_outdatedSize;
+    
+    /**
+     * @param collect Collect outdated files instead of deleting them
+     * @param keepNames Collect names of kept files to update the metadata
+     */
+    OutdatedFileVisitor(BuildSurvey survey, String filenamePrefix, SizeBudget.Usage usage, boolean collect,
+        boolean keepNames)
+    {
+      m_filter = new TimestampedFileFilter(filenamePrefix);
+      m_survey = survey;
+      m_usage = usage;
+      m_files = collect ? new ArrayList<DirectoryScanner.Entry>() : null;
+      m_keptNames = keepNames ? new HashSet<String>() : null;
+    }
+    
+    public void visit(DirectoryScanner.Entry entry)
+    {
+      if(m_survey.retains(m_filter.getKey()))
+      {
+        if(m_keptNames != null)
+        {
+          m_keptNames.add(entry.getName());
+        }
+      }
+      else if(m_files != null)
+      {
+        m_files.add(entry);
+      }
+      else
+      {
+        delete(entry);
+      }
+    }
+    
+    /**
+     * Deletes the selected files out of the collected ones, the others are kept.
+     */
+    void deleteCollected(List<DirectoryScanner.Entry> selectedFiles)
+    {
+      Set<DirectoryScanner.Entry> selected = new HashSet<DirectoryScanner.Entry>(selectedFiles);
+      for(DirectoryScanner.Entry file : m_files)
+      {
+        if(selected.contains(file))
+        {
+          delete(file);
+        }
+        else if(m_keptNames != null)
+        {
+          m_keptNames.add(file.getName());
+        }
+      }
+    }
+    
+    private void delete(DirectoryScanner.Entry file)
+    {
+      m_deleter.delete(file.getPath(), file.getAttributes());
+      if(m_usage != null)
+      {
+        m_usage.remove(file.getSize());
+      }
+      m_outdatedFiles++;
+      m_outdatedSize += file.getSize();
+    }
+  }
+  
+  
+  static final class TimestampedFileFilter implements DirectoryStream.Filter<Path>
+  {
+    private final String m_filePrifix;
+    private final boolean m_metadata;
+    private int m_parsed;
+    private long m_key;
+    
+    TimestampedFileFilter(String prefix)
+    {
+      this(prefix, false);
+    }
+    
+    /**
+     * @param metadata Accept metadata files of remote repositories as well
+     */
+    TimestampedFileFilter(String prefix, boolean metadata)
+    {
+      m_filePrifix = prefix;
+      m_metadata = metadata;
+    }
+    
+    /**
+     * @return Number of names parsed so far, the filter is used by one thread at a time
+     */
+    int getParsed()
+    {
+      return m_parsed;
+    }
+    
+    /**
+     * @return Version key of the name accepted last, {@link SnapshotVersionParser#INVALID} for metadata files
+     */
+    long getKey()
+    {
+      return m_key;
+    }
+    
+    // Only the name is checked here, file type comes with the attributes read by the scanner
+    public boolean accept(Path pathname)
+    {
+      String fileName = pathname.getFileName().toString();
+      
+      m_key = SnapshotVersionParser.INVALID;
+      if(m_metadata && SnapshotMetadata.isRemoteMetadata(fileName)) return true;
+      if(fileName.startsWith(m_filePrifix))
+      {
+        m_parsed++;
+        m_key = SnapshotVersionParser.parse(fileName, m_filePrifix.length());
+        return m_key != SnapshotVersionParser.INVALID;
       }
       return false;
     }
@@ -0,0 +1,302 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replaces identical files of the cache with hard links to a single copy.
+ * <p>
+ * Only artifact files take part, i.e. files named after the artifact like
+ * <code>foo-1.0.jar</code>. Metadata and tracking files, e.g.
+ * <code>maven-metadata-*.xml</code>, <code>_remote.repositories</code>,
+ * <code>resolver-status.properties</code> and <code>*.lastUpdated</code>, are
+ * rewritten in place by Maven and by the {@link MarkerPurger}. Writing into
+ * one linked copy would change it in every cache sharing it.
+ * <p>
+ * Files of the visited version directories are grouped by size first, only
+ * files sharing a size are hashed. Files are read through memory mapped
+ * channels and hashed with SHA-256, size groups are processed in parallel.
+ * Files with equal hashes are compared byte by byte before a duplicate is
+ * replaced, the link is created under a temporary name and moved over the
+ * duplicate, so the file never disappears. Links only work within one file
+ * system, duplicates on another one are left alone.
+ * <p>
+ * Version directories of several caches may be added to the same instance,
+ * e.g. the repositories of build executors sharing a disk. Their files are
+ * then linked across the caches, which is where most duplicates are found:
+ * consecutive builds of a snapshot are cleaned before deduplication, while
+ * the same release or snapshot build is usually downloaded into every
+ * executor repository.
+ */
+final class Deduplicator {
+	// Smaller files occupy a single block, linking them saves next to
+	// nothing
+	static final long MIN_FILE_SIZE = 4096L;
+
+	private static final long MAP_CHUNK = 64L * 1024L * 1024L;
+	private static final String LINK_SUFFIX = ".m2cachecleanup-link";
+	private static final String TRACKING_PREFIX = "_";
+
+	private final boolean m_verbose;
+	private final List<Path> m_versionDirs;
+	private final AtomicLong m_linkedFiles;
+	private final AtomicLong m_savedSpace;
+	private final AtomicLong m_failedToLink;
+
+	Deduplicator(boolean verbose) {
+		m_verbose = verbose;
+		m_versionDirs = new ArrayList<Path>();
+		m_linkedFiles = new AtomicLong(0L);
+		m_savedSpace = new AtomicLong(0L);
+		m_failedToLink = new AtomicLong(0L);
+	}
+
+	/**
+	 * Adds version directory whose files take part in the deduplication. Safe
+	 * to use from several traversal threads and from walkers of several
+	 * caches.
+	 */
+	synchronized void addVersionDir(Path versionDir) {
+		m_versionDirs.add(versionDir);
+	}
+
+	long getLinkedFiles() {
+		return m_linkedFiles.get();
+	}
+
+	long getSavedSpace() {
+		return m_savedSpace.get();
+	}
+
+	long getFailedToLink() {
+		return m_failedToLink.get();
+	}
+
+	/**
+	 * Links duplicates among the files of all added version directories.
+	 *
+	 * @param threads
+	 *            Number of threads hashing files
+	 */
+	void run(int threads) {
+		Map<Long, List<DirectoryScanner.Entry>> sizeGroups = groupBySize();
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1,
+				threads));
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (final List<DirectoryScanner.Entry> group : sizeGroups
+					.values()) {
+				if (group.size() < 2)
+					continue;
+
+				results.add(pool.submit(new Callable<Void>() {
+					public Void call() {
+						linkDuplicates(group);
+						return null;
+					}
+				}));
+			}
+
+			for (Future<Void> result : results) {
+				try {
+					result.get();
+				} catch (ExecutionException e) {
+					throw new IllegalStateException(
+							"Deduplication failed", e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private Map<Long, List<DirectoryScanner.Entry>> groupBySize() {
+		Map<Long, List<DirectoryScanner.Entry>> groups = new HashMap<Long, List<DirectoryScanner.Entry>>();
+
+		for (Path versionDir : m_versionDirs) {
+			try (DirectoryStream<Path> stream = Files
+					.newDirectoryStream(versionDir)) {
+				for (Path path : stream) {
+					BasicFileAttributes attrs = readAttributes(path);
+					if (attrs == null || !attrs.isRegularFile()
+							|| attrs.size() < MIN_FILE_SIZE
+							|| !isArtifactFile(path))
+						continue;
+
+					Long size = Long.valueOf(attrs.size());
+					List<DirectoryScanner.Entry> group = groups.get(size);
+					if (group == null) {
+						group = new ArrayList<DirectoryScanner.Entry>(2);
+						groups.put(size, group);
+					}
+					group.add(new DirectoryScanner.Entry(path, attrs));
+				}
+			} catch (NoSuchFileException e) {
+				// Evicted meanwhile
+			} catch (IOException e) {
+				System.err.println("Failed to list directory '" + versionDir
+						+ "': " + e);
+			}
+		}
+		return groups;
+	}
+
+	/**
+	 * @return <code>true</code> if the file is an artifact file of its version
+	 *         directory, which Maven only ever replaces as a whole
+	 */
+	static boolean isArtifactFile(Path file) {
+		String name = file.getFileName().toString();
+		if (name.startsWith(SnapshotMetadata.PREFIX)
+				|| name.startsWith(TRACKING_PREFIX)
+				|| name.equals(MarkerPurger.STATUS_FILE)
+				|| name.endsWith(MarkerPurger.LAST_UPDATED_SUFFIX)
+				|| name.endsWith(LINK_SUFFIX))
+			return false;
+
+		Path artifactDir = file.getParent().getParent();
+		return artifactDir != null && artifactDir.getFileName() != null
+				&& name.startsWith(artifactDir.getFileName() + "-");
+	}
+
+	/**
+	 * Links duplicates among files of the same size.
+	 */
+	private void linkDuplicates(List<DirectoryScanner.Entry> group) {
+		// Files already linked to each other are hashed once only
+		Set<Object> fileKeys = new HashSet<Object>();
+		Map<ByteBuffer, DirectoryScanner.Entry> originals = new LinkedHashMap<ByteBuffer, DirectoryScanner.Entry>();
+
+		for (DirectoryScanner.Entry file : group) {
+			Object fileKey = file.getAttributes().fileKey();
+			if (fileKey != null && !fileKeys.add(fileKey))
+				continue;
+
+			ByteBuffer hash;
+			try {
+				hash = ByteBuffer.wrap(hash(file.getPath(), file.getSize()));
+			} catch (IOException e) {
+				System.err.println("Failed to read file '" + file.getPath()
+						+ "': " + e);
+				continue;
+			}
+
+			DirectoryScanner.Entry original = originals.get(hash);
+			if (original == null) {
+				originals.put(hash, file);
+			} else {
+				link(original, file);
+			}
+		}
+	}
+
+	private void link(DirectoryScanner.Entry original,
+			DirectoryScanner.Entry duplicate) {
+		Path target = duplicate.getPath();
+		Path tmpLink = target.resolveSibling(duplicate.getName() + LINK_SUFFIX);
+		try {
+			// Equal hashes are not enough, only identical content is linked
+			if (!isSameContent(original.getPath(), target, original.getSize()))
+				return;
+
+			Files.deleteIfExists(tmpLink);
+			Files.createLink(tmpLink, original.getPath());
+			Files.move(tmpLink, target, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+
+			if (m_verbose) {
+				System.out.println("Linked " + target.toAbsolutePath()
+						+ " to " + original.getPath().toAbsolutePath());
+			}
+			m_linkedFiles.incrementAndGet();
+			m_savedSpace.addAndGet(duplicate.getSize());
+		} catch (IOException | UnsupportedOperationException e) {
+			m_failedToLink.incrementAndGet();
+			System.err.println("Failed to link file '"
+					+ target.toAbsolutePath() + "': " + e);
+			try {
+				Files.deleteIfExists(tmpLink);
+			} catch (IOException ignore) {
+				// Left over link is ignored by the next run
+			}
+		}
+	}
+
+	private static byte[] hash(Path file, long size) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ)) {
+			for (long pos = 0L; pos < size; pos += MAP_CHUNK) {
+				MappedByteBuffer buffer = channel.map(
+						FileChannel.MapMode.READ_ONLY, pos,
+						Math.min(MAP_CHUNK, size - pos));
+				digest.update(buffer);
+			}
+		}
+		return digest.digest();
+	}
+
+	private static boolean isSameContent(Path first, Path second, long size)
+			throws IOException {
+		try (FileChannel firstChannel = FileChannel.open(first,
+				StandardOpenOption.READ);
+				FileChannel secondChannel = FileChannel.open(second,
+						StandardOpenOption.READ)) {
+			if (firstChannel.size() != size || secondChannel.size() != size)
+				return false;
+
+			for (long pos = 0L; pos < size; pos += MAP_CHUNK) {
+				long len = Math.min(MAP_CHUNK, size - pos);
+				MappedByteBuffer firstBuffer = firstChannel.map(
+						FileChannel.MapMode.READ_ONLY, pos, len);
+				MappedByteBuffer secondBuffer = secondChannel.map(
+						FileChannel.MapMode.READ_ONLY, pos, len);
+				if (!firstBuffer.equals(secondBuffer))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	private static BasicFileAttributes readAttributes(Path path) {
+		try {
+			return Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Decouples discovery of outdated files from their deletion. The walker
+ * submits deletion candidates into a bounded queue, a pool of worker threads
+ * drains the queue in batches and passes every file to the target deleter.
+ * When the queue is full, submitting blocks, so a slow file system throttles
+ * the scan instead of piling up candidates in memory.
+ * <p>
+ * Every batch is reported as a Flight Recorder event.
+ */
+final class DeletionPipeline implements FileDeleter {
+	private static final int BATCH_SIZE = 64;
+	private static final Candidate END = new Candidate(null, null);
+
+	private final FileDeleter m_target;
+	private final BlockingQueue<Candidate> m_queue;
+	private final List<Thread> m_workers;
+	private final AtomicReference<RuntimeException> m_failure;
+	private final FlightEvents m_events;
+
+	/**
+	 * Creates pipeline and starts its worker threads.
+	 *
+	 * @param target
+	 *            Deleter called on the worker threads
+	 * @param workers
+	 *            Number of deletion threads
+	 * @param capacity
+	 *            Maximal number of queued candidates
+	 */
+	DeletionPipeline(FileDeleter target, int workers, int capacity) {
+		m_target = target;
+		m_queue = new ArrayBlockingQueue<Candidate>(Math.max(1, capacity));
+		m_workers = new ArrayList<Thread>(workers);
+		m_failure = new AtomicReference<RuntimeException>();
+		m_events = FlightEvents.getInstance();
+
+		for (int i = 0; i < workers; i++) {
+			Thread worker = new Thread(new Worker(), "cache-deleter-" + i);
+			worker.setDaemon(true);
+			m_workers.add(worker);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Queues file for deletion, blocks while the queue is full.
+	 */
+	public void delete(Path file, BasicFileAttributes attrs) {
+		Candidate candidate = new Candidate(file, attrs);
+		try {
+			m_queue.put(candidate);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			// Do not lose the candidate, delete it on the calling thread
+			m_target.delete(file, attrs);
+		}
+	}
+
+	/**
+	 * Waits until all queued files are deleted and stops the workers.
+	 */
+	void close() {
+		boolean interrupted = false;
+
+		for (int i = 0; i < m_workers.size(); i++) {
+			while (true) {
+				try {
+					m_queue.put(END);
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+
+		for (Thread worker : m_workers) {
+			while (worker.isAlive()) {
+				try {
+					worker.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		RuntimeException failure = m_failure.get();
+		if (failure != null) {
+			throw new IllegalStateException("Deletion worker failed", failure);
+		}
+	}
+
+	private final class Worker implements Runnable {
+		public void run() {
+			List<Candidate> batch = new ArrayList<Candidate>(BATCH_SIZE);
+
+			while (true) {
+				try {
+					batch.add(m_queue.take());
+				} catch (InterruptedException e) {
+					// Workers are stopped by the end marker only
+					continue;
+				}
+				m_queue.drainTo(batch, BATCH_SIZE - 1);
+
+				Object event = m_events.beginDeletionBatch();
+				int files = 0;
+				long size = 0L;
+				for (Candidate candidate : batch) {
+					if (candidate == END) {
+						if (files > 0) {
+							m_events.commitDeletionBatch(event, files, size);
+						}
+						// End markers are queued after the last candidate,
+						// the ones drained together with ours belong to
+						// other workers
+						requeueAfterEnd(batch, candidate);
+						return;
+					}
+					try {
+						m_target.delete(candidate.m_file, candidate.m_attrs);
+					} catch (RuntimeException e) {
+						m_failure.compareAndSet(null, e);
+					}
+					files++;
+					size += candidate.m_attrs.size();
+				}
+				m_events.commitDeletionBatch(event, files, size);
+				batch.clear();
+			}
+		}
+
+		private void requeueAfterEnd(List<Candidate> batch, Candidate end) {
+			int index = batch.indexOf(end);
+			for (Candidate rest : batch.subList(index + 1, batch.size())) {
+				while (true) {
+					try {
+						m_queue.put(rest);
+						break;
+					} catch (InterruptedException e) {
+						// Keep trying, the marker must not get lost
+					}
+				}
+			}
+		}
+	}
+
+	private static final class Candidate {
+		private final Path m_file;
+		private final BasicFileAttributes m_attrs;
+
+		Candidate(Path file, BasicFileAttributes attrs) {
+			m_file = file;
+			m_attrs = attrs;
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Line based deletion plan. A plan is written while scanning the cache
+ * instead of deleting files and can be reviewed and applied later without
+ * scanning again.
+ * <p>
+ * Format (UTF-8, fields separated by a tab):
+ *
+ * <pre>
+ * # MavenCacheCleanup deletion plan 1
+ * # root &lt;absolute cache directory&gt;
+ * &lt;size&gt;	&lt;modification time millis&gt;	&lt;path relative to root&gt;
+ * ...
+ * # total &lt;files&gt;	&lt;bytes&gt;
+ * </pre>
+ *
+ * The trailing total line is written last, a plan without it is incomplete
+ * and is refused.
+ */
+final class DeletionPlan {
+	private static final String HEADER = "# MavenCacheCleanup deletion plan 1";
+	private static final String ROOT_PREFIX = "# root ";
+	private static final String TOTAL_PREFIX = "# total ";
+	private static final char SEPARATOR = '\t';
+
+	private DeletionPlan() {
+	}
+
+	/**
+	 * Checks that the plan is complete and returns the cache directory it was
+	 * created for.
+	 */
+	static Path readRoot(Path planFile) throws IOException {
+		Path root = null;
+		String last = null;
+
+		try (BufferedReader reader = Files.newBufferedReader(planFile,
+				StandardCharsets.UTF_8)) {
+			if (!HEADER.equals(reader.readLine())) {
+				throw new IOException("File '" + planFile
+						+ "' is not a deletion plan");
+			}
+			String rootLine = reader.readLine();
+			if (rootLine == null || !rootLine.startsWith(ROOT_PREFIX)) {
+				throw new IOException("Deletion plan '" + planFile
+						+ "' does not name the cache directory");
+			}
+			root = Paths.get(rootLine.substring(ROOT_PREFIX.length()));
+
+			String line;
+			while ((line = reader.readLine()) != null) {
+				last = line;
+			}
+		}
+
+		if (last == null || !last.startsWith(TOTAL_PREFIX)) {
+			throw new IOException("Deletion plan '" + planFile
+					+ "' is incomplete");
+		}
+		return root;
+	}
+
+	/**
+	 * Passes all files of the plan to the deleter. A file is only passed if
+	 * its size and modification time are still the planned ones.
+	 *
+	 * @return Number of planned files that were skipped because they changed
+	 *         or vanished since planning
+	 */
+	static long execute(Path planFile, Path root, FileDeleter deleter)
+			throws IOException {
+		long skipped = 0L;
+		Path normalizedRoot = root.toAbsolutePath().normalize();
+
+		try (BufferedReader reader = Files.newBufferedReader(planFile,
+				StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty() || line.charAt(0) == '#')
+					continue;
+
+				int sizeEnd = line.indexOf(SEPARATOR);
+				int timeEnd = line.indexOf(SEPARATOR, sizeEnd + 1);
+				if (sizeEnd < 0 || timeEnd < 0) {
+					throw new IOException("Malformed deletion plan line '"
+							+ line + "'");
+				}
+
+				long size;
+				long lastModified;
+				try {
+					size = Long.parseLong(line.substring(0, sizeEnd));
+					lastModified = Long.parseLong(line.substring(sizeEnd + 1,
+							timeEnd));
+				} catch (NumberFormatException e) {
+					throw new IOException("Malformed deletion plan line '"
+							+ line + "'");
+				}
+
+				Path file = normalizedRoot.resolve(line.substring(timeEnd + 1))
+						.normalize();
+				if (!file.startsWith(normalizedRoot)) {
+					throw new IOException("Deletion plan entry '" + line
+							+ "' points outside of the cache directory");
+				}
+
+				BasicFileAttributes attrs = readAttributes(file);
+				if (attrs == null || !attrs.isRegularFile()
+						|| attrs.size() != size
+						|| attrs.lastModifiedTime().toMillis() != lastModified) {
+					skipped++;
+					continue;
+				}
+
+				deleter.delete(file, attrs);
+			}
+		}
+
+		return skipped;
+	}
+
+	private static BasicFileAttributes readAttributes(Path file)
+			throws IOException {
+		try {
+			return Files.readAttributes(file, BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Records files selected by the walker instead of deleting them. Safe to
+	 * use from several traversal threads.
+	 */
+	static final class Writer implements FileDeleter, Closeable {
+		private final Path m_root;
+		private final BufferedWriter m_out;
+		private long m_files;
+		private long m_size;
+		private IOException m_failure;
+
+		Writer(Path planFile, Path root) throws IOException {
+			m_root = root.toAbsolutePath().normalize();
+			m_out = Files.newBufferedWriter(planFile, StandardCharsets.UTF_8);
+			m_out.write(HEADER);
+			m_out.newLine();
+			m_out.write(ROOT_PREFIX);
+			m_out.write(m_root.toString());
+			m_out.newLine();
+		}
+
+		public synchronized void delete(Path file, BasicFileAttributes attrs) {
+			if (m_failure != null)
+				return;
+
+			try {
+				m_out.write(Long.toString(attrs.size()));
+				m_out.write(SEPARATOR);
+				m_out.write(Long.toString(attrs.lastModifiedTime().toMillis()));
+				m_out.write(SEPARATOR);
+				writePath(m_root.relativize(file.toAbsolutePath().normalize()));
+				m_out.newLine();
+				m_files++;
+				m_size += attrs.size();
+			} catch (IOException e) {
+				m_failure = e;
+			}
+		}
+
+		synchronized long getFiles() {
+			return m_files;
+		}
+
+		synchronized long getSize() {
+			return m_size;
+		}
+
+		/**
+		 * Completes the plan with the total line. Must only be called once
+		 * the walk has finished, a plan closed without it is refused.
+		 *
+		 * @throws IOException
+		 *             if any entry could not be written
+		 */
+		synchronized void complete() throws IOException {
+			if (m_failure != null)
+				throw m_failure;
+
+			m_out.write(TOTAL_PREFIX);
+			m_out.write(Long.toString(m_files));
+			m_out.write(SEPARATOR);
+			m_out.write(Long.toString(m_size));
+			m_out.newLine();
+		}
+
+		public synchronized void close() throws IOException {
+			m_out.close();
+		}
+
+		private void writePath(Path relative) throws IOException {
+			boolean first = true;
+			for (Path name : relative) {
+				if (!first)
+					m_out.write('/');
+				m_out.write(name.toString());
+				first = false;
+			}
+		}
+	}
+}
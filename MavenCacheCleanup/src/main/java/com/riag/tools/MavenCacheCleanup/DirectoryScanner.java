@@ -0,0 +1,186 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lists cache directories with a single pass over a {@link DirectoryStream}.
+ * Every listed entry is stat'ed at most once, its attributes travel with the
+ * entry so callers never have to ask the file system again.
+ */
+final class DirectoryScanner {
+	private final VersionClassifier m_versions;
+	private final CleanupMetrics m_metrics;
+
+	DirectoryScanner(VersionClassifier versions) {
+		this(versions, new CleanupMetrics());
+	}
+
+	/**
+	 * @param metrics
+	 *            Receives number of listed directories and stat'ed entries
+	 */
+	DirectoryScanner(VersionClassifier versions, CleanupMetrics metrics) {
+		m_versions = versions;
+		m_metrics = metrics;
+	}
+
+	/**
+	 * Lists directory and sorts its sub-directories into version directories
+	 * (name is a version) and all other sub-directories. Plain
+	 * files are only summed up.
+	 */
+	Listing scan(Path dir) throws IOException {
+		Listing listing = new Listing();
+		int stated = 0;
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path path : stream) {
+				BasicFileAttributes attrs = readAttributes(path);
+				stated++;
+				if (attrs == null)
+					continue;
+				if (!attrs.isDirectory()) {
+					if (attrs.isRegularFile()) {
+						listing.m_fileSize += attrs.size();
+					}
+					continue;
+				}
+
+				Entry entry = new Entry(path, attrs);
+				if (ScanIndex.STATE_DIR.equals(entry.getName())) {
+					// Tool state is not part of the cache
+					continue;
+				}
+				if (m_versions.isVersion(entry.getName())) {
+					listing.m_versionDirs.add(entry);
+				} else {
+					listing.m_subDirs.add(entry);
+				}
+			}
+		} finally {
+			m_metrics.addListing(stated);
+		}
+
+		return listing;
+	}
+
+	/**
+	 * Lists regular files of the directory whose names are accepted by the
+	 * filter. Only accepted names are stat'ed.
+	 */
+	List<Entry> scanFiles(Path dir, DirectoryStream.Filter<Path> nameFilter)
+			throws IOException {
+		final List<Entry> files = new ArrayList<Entry>();
+		scanFiles(dir, nameFilter, new EntryVisitor() {
+			public void visit(Entry entry) {
+				files.add(entry);
+			}
+		});
+		return files;
+	}
+
+	/**
+	 * Streams regular files of the directory whose names are accepted by the
+	 * filter to the visitor, no list of the directory is built. The filter
+	 * sees each name right before its entry is visited, so it may hand state
+	 * of the name to the visitor. Only accepted names are stat'ed.
+	 */
+	void scanFiles(Path dir, DirectoryStream.Filter<Path> nameFilter,
+			EntryVisitor visitor) throws IOException {
+		int stated = 0;
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path path : stream) {
+				if (!nameFilter.accept(path))
+					continue;
+
+				BasicFileAttributes attrs = readAttributes(path);
+				stated++;
+				if (attrs != null && attrs.isRegularFile()) {
+					visitor.visit(new Entry(path, attrs));
+				}
+			}
+		} finally {
+			m_metrics.addListing(stated);
+		}
+	}
+
+	private static BasicFileAttributes readAttributes(Path path) {
+		try {
+			return Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (IOException e) {
+			// Entry vanished or is a dangling link, it is not interesting
+			return null;
+		}
+	}
+
+	/**
+	 * Receives entries of a streamed directory one by one.
+	 */
+	interface EntryVisitor {
+		void visit(Entry entry);
+	}
+
+	/**
+	 * Directory entry together with the attributes read while listing.
+	 * Entries restored from the {@link ScanIndex} carry no attributes.
+	 */
+	static final class Entry {
+		private final Path m_path;
+		private final String m_name;
+		private final BasicFileAttributes m_attributes;
+
+		Entry(Path path, BasicFileAttributes attributes) {
+			m_path = path;
+			m_name = path.getFileName().toString();
+			m_attributes = attributes;
+		}
+
+		Path getPath() {
+			return m_path;
+		}
+
+		String getName() {
+			return m_name;
+		}
+
+		BasicFileAttributes getAttributes() {
+			return m_attributes;
+		}
+
+		long getSize() {
+			return m_attributes.size();
+		}
+	}
+
+	/**
+	 * Sub-directories of one cache directory.
+	 */
+	static final class Listing {
+		private final List<Entry> m_versionDirs = new ArrayList<Entry>();
+		private final List<Entry> m_subDirs = new ArrayList<Entry>();
+		private long m_fileSize;
+
+		List<Entry> getVersionDirs() {
+			return m_versionDirs;
+		}
+
+		List<Entry> getSubDirs() {
+			return m_subDirs;
+		}
+
+		/**
+		 * @return Total size of plain files in the directory, 0 for listings
+		 *         restored from the {@link ScanIndex}
+		 */
+		long getFileSize() {
+			return m_fileSize;
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Receives files which the walker has selected for removal.
+ */
+interface FileDeleter {
+	/**
+	 * @param file
+	 *            File to remove
+	 * @param attrs
+	 *            Attributes of the file as read while scanning
+	 */
+	void delete(Path file, BasicFileAttributes attrs);
+}
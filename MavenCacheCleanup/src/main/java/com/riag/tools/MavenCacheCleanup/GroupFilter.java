@@ -0,0 +1,234 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Selects artifacts by include and exclude patterns of their groupId.
+ * <p>
+ * Patterns name groupIds segment by segment, separated by <code>.</code> or
+ * <code>/</code>. A <code>*</code> segment matches one segment of the groupId,
+ * <code>**</code> any number of segments including none. So
+ * <code>com.ourcompany.**</code> selects <code>com.ourcompany</code> and all
+ * groups below it, <code>com.ourcompany</code> alone only the group itself.
+ * An artifact is selected if its groupId matches an include pattern, or
+ * there are none, and matches no exclude pattern.
+ * <p>
+ * The patterns are compiled into a trie of path segments, which is matched
+ * against the directories of the cache while walking it. Directories which
+ * cannot hold a selected artifact are never listed.
+ */
+final class GroupFilter {
+	private static final String ANY_SEGMENT = "*";
+	private static final String ANY_PATH = "**";
+
+	private final Node m_includes;
+	private final Node m_excludes;
+	private final boolean m_includeAll;
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if a pattern is empty or uses <code>*</code> within a
+	 *             segment
+	 */
+	GroupFilter(List<String> includes, List<String> excludes) {
+		m_includes = compile(includes);
+		m_excludes = compile(excludes);
+		m_includeAll = includes.isEmpty();
+	}
+
+	/**
+	 * Splits comma separated patterns, as given by parameters.
+	 *
+	 * @return Patterns, empty if none are given
+	 */
+	static List<String> split(String patterns) {
+		List<String> list = new ArrayList<String>();
+		if (patterns == null)
+			return list;
+
+		for (String pattern : patterns.split(",")) {
+			pattern = pattern.trim();
+			if (!pattern.isEmpty()) {
+				list.add(pattern);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * @return <code>true</code> if every artifact is selected
+	 */
+	boolean isEmpty() {
+		return m_includeAll && m_excludes.isEmpty();
+	}
+
+	/**
+	 * Decides whether to list a directory. It is needed if it is an artifact
+	 * directory of a selected group or a selected group may be found in or
+	 * below it.
+	 *
+	 * @param dir
+	 *            Directory relative to the cache
+	 */
+	boolean needsDirectory(Path dir) {
+		if (isEmpty())
+			return true;
+
+		int depth = dir.getNameCount();
+		if (depth > 1 && selectsGroup(dir.getParent()))
+			return true;
+
+		List<Node> excludes = match(m_excludes, dir, depth);
+		for (Node node : excludes) {
+			if (node.m_repeats && node.m_terminal)
+				return false;
+		}
+		return m_includeAll || !match(m_includes, dir, depth).isEmpty();
+	}
+
+	/**
+	 * @param groupDir
+	 *            Directory of the group relative to the cache, i.e. the
+	 *            parent of an artifact directory
+	 * @return <code>true</code> if artifacts of the group are selected
+	 */
+	boolean selectsGroup(Path groupDir) {
+		if (isEmpty())
+			return true;
+
+		int depth = (groupDir != null) ? groupDir.getNameCount() : 0;
+		if (depth == 0 || groupDir.toString().isEmpty())
+			return false;
+
+		if (!m_includeAll && !isTerminal(match(m_includes, groupDir, depth)))
+			return false;
+		return !isTerminal(match(m_excludes, groupDir, depth));
+	}
+
+	private static boolean isTerminal(List<Node> nodes) {
+		for (Node node : nodes) {
+			if (node.m_terminal)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return Nodes reached after the first <code>depth</code> names of the
+	 *         path, empty if no pattern continues there
+	 */
+	private static List<Node> match(Node root, Path path, int depth) {
+		List<Node> nodes = new ArrayList<Node>();
+		root.addTo(nodes);
+		for (int i = 0; i < depth && !nodes.isEmpty(); i++) {
+			String name = path.getName(i).toString();
+			List<Node> next = new ArrayList<Node>();
+			for (Node node : nodes) {
+				node.step(name, next);
+			}
+			nodes = next;
+		}
+		return nodes;
+	}
+
+	private static Node compile(List<String> patterns) {
+		Node root = new Node(false);
+		for (String pattern : patterns) {
+			Node node = root;
+			boolean empty = true;
+			for (String segment : pattern.trim().split("[./]")) {
+				if (segment.isEmpty())
+					continue;
+
+				if (!ANY_SEGMENT.equals(segment) && !ANY_PATH.equals(segment)
+						&& segment.indexOf('*') >= 0)
+					throw new IllegalArgumentException(
+							"Wildcard '*' must be a whole segment in '" + pattern
+									+ "'");
+
+				node = node.child(segment);
+				empty = false;
+			}
+			if (empty)
+				throw new IllegalArgumentException("Empty groupId pattern");
+			node.m_terminal = true;
+		}
+		return root;
+	}
+
+	/**
+	 * Node of the trie, reached after matching one segment of a pattern.
+	 */
+	private static final class Node {
+		private final Map<String, Node> m_children;
+		private Node m_anySegment;
+		private Node m_anyPath;
+		/** Node of a <code>**</code> segment, matches further segments */
+		private final boolean m_repeats;
+		/** A pattern ends here */
+		private boolean m_terminal;
+
+		Node(boolean repeats) {
+			m_children = new HashMap<String, Node>();
+			m_repeats = repeats;
+		}
+
+		boolean isEmpty() {
+			return m_children.isEmpty() && m_anySegment == null
+					&& m_anyPath == null && !m_terminal;
+		}
+
+		Node child(String segment) {
+			if (ANY_PATH.equals(segment)) {
+				if (m_anyPath == null) {
+					m_anyPath = new Node(true);
+				}
+				return m_anyPath;
+			}
+			if (ANY_SEGMENT.equals(segment)) {
+				if (m_anySegment == null) {
+					m_anySegment = new Node(false);
+				}
+				return m_anySegment;
+			}
+
+			Node child = m_children.get(segment);
+			if (child == null) {
+				child = new Node(false);
+				m_children.put(segment, child);
+			}
+			return child;
+		}
+
+		/**
+		 * Adds the node together with the <code>**</code> nodes reachable
+		 * without consuming a segment.
+		 */
+		void addTo(List<Node> nodes) {
+			if (nodes.contains(this))
+				return;
+
+			nodes.add(this);
+			if (m_anyPath != null) {
+				m_anyPath.addTo(nodes);
+			}
+		}
+
+		void step(String name, List<Node> next) {
+			Node child = m_children.get(name);
+			if (child != null) {
+				child.addTo(next);
+			}
+			if (m_anySegment != null) {
+				m_anySegment.addTo(next);
+			}
+			if (m_repeats) {
+				addTo(next);
+			}
+		}
+	}
+}
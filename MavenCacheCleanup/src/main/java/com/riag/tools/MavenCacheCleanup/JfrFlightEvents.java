@@ -0,0 +1,142 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder backed events, loaded by {@link FlightEvents} only when
+ * <code>jdk.jfr</code> is present.
+ */
+final class JfrFlightEvents extends FlightEvents {
+	private static final String CATEGORY = "Maven Cache Cleanup";
+
+	@Override
+	Object beginSnapshotDir() {
+		SnapshotDirectoryEvent event = new SnapshotDirectoryEvent();
+		if (!event.isEnabled())
+			return null;
+
+		event.begin();
+		return event;
+	}
+
+	@Override
+	void commitSnapshotDir(Object event, Path dir, int files, long size,
+			int outdatedFiles, long outdatedSize) {
+		if (event == null)
+			return;
+
+		SnapshotDirectoryEvent snapshotEvent = (SnapshotDirectoryEvent) event;
+		snapshotEvent.end();
+		if (!snapshotEvent.shouldCommit())
+			return;
+
+		snapshotEvent.path = dir.toString();
+		snapshotEvent.files = files;
+		snapshotEvent.size = size;
+		snapshotEvent.outdatedFiles = outdatedFiles;
+		snapshotEvent.outdatedSize = outdatedSize;
+		snapshotEvent.commit();
+	}
+
+	@Override
+	Object beginDeletionBatch() {
+		DeletionBatchEvent event = new DeletionBatchEvent();
+		if (!event.isEnabled())
+			return null;
+
+		event.begin();
+		return event;
+	}
+
+	@Override
+	void commitDeletionBatch(Object event, int files, long size) {
+		if (event == null)
+			return;
+
+		DeletionBatchEvent batchEvent = (DeletionBatchEvent) event;
+		batchEvent.end();
+		if (!batchEvent.shouldCommit())
+			return;
+
+		batchEvent.files = files;
+		batchEvent.size = size;
+		batchEvent.commit();
+	}
+
+	@Override
+	Closeable startRecording(Path file) throws IOException {
+		final Recording recording;
+		try {
+			recording = new Recording(Configuration.getConfiguration("default"));
+		} catch (ParseException e) {
+			throw new IOException("Failed to read recording settings", e);
+		}
+		recording.setName("m2cachecleanup");
+		recording.enable(SnapshotDirectoryEvent.class);
+		recording.enable(DeletionBatchEvent.class);
+		recording.setDestination(file);
+		// Also written when the JVM exits by a signal, e.g. in watch mode
+		recording.setDumpOnExit(true);
+		recording.start();
+
+		return new Closeable() {
+			public void close() {
+				// Stopping writes the recording to its destination
+				recording.stop();
+				recording.close();
+			}
+		};
+	}
+
+	@Name("m2cachecleanup.SnapshotDirectory")
+	@Label("Snapshot Directory")
+	@Description("Snapshot version directory scanned for outdated builds")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	static final class SnapshotDirectoryEvent extends Event {
+		@Label("Path")
+		String path;
+
+		@Label("Timestamped Files")
+		int files;
+
+		@Label("Timestamped Size")
+		@DataAmount
+		long size;
+
+		@Label("Outdated Files")
+		@Description("Files selected for deletion")
+		int outdatedFiles;
+
+		@Label("Outdated Size")
+		@DataAmount
+		long outdatedSize;
+	}
+
+	@Name("m2cachecleanup.DeletionBatch")
+	@Label("Deletion Batch")
+	@Description("Files deleted by one deletion worker in one go")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	static final class DeletionBatchEvent extends Event {
+		@Label("Files")
+		int files;
+
+		@Label("Size")
+		@DataAmount
+		long size;
+	}
+}
@@ -1,7 +1,31 @@
 package com.riag.tools.MavenCacheCleanup;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -19,16 +43,96 @@ import org.w3c.dom.Text;
  */
 public class Launcher {
 	private static final String OPT_DIR = "-dir";
+	private static final String OPT_DIRS = "-dirs";
+	private static final String OPT_MAX_IO = "-maxIo";
 	private static final String OPT_VERBOSE = "-v";
+	private static final String OPT_THREADS = "-threads";
+	private static final String OPT_FULL = "-full";
+	private static final String OPT_DELETE_THREADS = "-deleteThreads";
+	private static final String OPT_DELETE_QUEUE = "-deleteQueue";
+	private static final String OPT_PLAN = "-plan";
+	private static final String OPT_EXECUTE = "-execute";
+	private static final String OPT_KEEP = "-keep";
+	private static final String OPT_KEEP_DAYS = "-keepDays";
+	private static final String OPT_MAX_SIZE = "-maxSize";
+	private static final String OPT_DEDUP = "-dedup";
+	private static final String OPT_METRICS = "-metrics";
+	private static final String OPT_JFR = "-jfr";
+	private static final String OPT_WATCH = "-watch";
+	private static final String OPT_WATCH_LIMIT = "-watchLimit";
+	private static final String OPT_RESCAN = "-rescan";
+	private static final String OPT_SAFE = "-safe";
+	private static final String OPT_GRACE = "-grace";
+	private static final String OPT_PURGE_MARKERS = "-purgeMarkers";
+	private static final String OPT_MARKER_AGE = "-markerAge";
+	private static final String OPT_ARCHIVE = "-archive";
+	private static final String OPT_RESTORE = "-restore";
+	private static final String OPT_INCLUDE = "-include";
+	private static final String OPT_EXCLUDE = "-exclude";
+	private static final String OPT_ANALYZE = "-analyze";
+	private static final String OPT_TOP = "-top";
+	private static final String OPT_REPORT = "-report";
+	private static final String OPT_MAX_DURATION = "-maxDuration";
+
+	private static final int DEFAULT_DELETE_QUEUE = 1024;
+	private static final int DEFAULT_WATCH_LIMIT = 4096;
+	private static final int DEFAULT_RESCAN_MINUTES = 60;
+	private static final int DEFAULT_GRACE_MINUTES = 10;
+	private static final int DEFAULT_MARKER_AGE_HOURS = 24;
+	private static final int DEFAULT_TOP = 20;
 
 	private File m_baseDir;
 	private boolean m_baseDirOverridden;
+	private final List<File> m_baseDirs;
+	private int m_maxIo;
 	private boolean m_verbose;
+	private int m_threads;
+	private boolean m_fullScan;
+	private int m_deleteThreads;
+	private int m_deleteQueue;
+	private File m_planFile;
+	private File m_executeFile;
+	private int m_keepBuilds;
+	private int m_keepDays;
+	private long m_maxSize;
+	private boolean m_dedup;
+	private File m_metricsFile;
+	private File m_recordingFile;
+	private boolean m_watch;
+	private int m_watchLimit;
+	private int m_rescanMinutes;
+	private boolean m_safe;
+	private int m_graceMinutes;
+	private boolean m_purgeMarkers;
+	private int m_markerAgeHours;
+	private File m_archiveDir;
+	private String m_restore;
+	private final List<String> m_includes;
+	private final List<String> m_excludes;
+	private GroupFilter m_groupFilter;
+	private boolean m_analyze;
+	private int m_top;
+	private File m_reportFile;
+	private int m_maxDurationMinutes;
 
 	private Launcher() {
 		m_baseDir = new File(new File(System.getProperty("user.home"), ".m2"), "repository"); // Deafult location of the
 																								// maven cache
 		m_baseDirOverridden = false;
+		m_baseDirs = new ArrayList<File>();
+		m_includes = new ArrayList<String>();
+		m_excludes = new ArrayList<String>();
+		m_threads = 1;
+		m_deleteThreads = 0;
+		m_deleteQueue = DEFAULT_DELETE_QUEUE;
+		m_keepBuilds = 1;
+		m_keepDays = 0;
+		m_maxSize = -1L;
+		m_watchLimit = DEFAULT_WATCH_LIMIT;
+		m_rescanMinutes = DEFAULT_RESCAN_MINUTES;
+		m_graceMinutes = DEFAULT_GRACE_MINUTES;
+		m_markerAgeHours = DEFAULT_MARKER_AGE_HOURS;
+		m_top = DEFAULT_TOP;
 	}
 
 	public static void main(String[] args) {
@@ -58,23 +162,228 @@ public class Launcher {
 					}
 					String cacheDir = args[i];
 
-					File tmp = new File(cacheDir);
-					if (!tmp.exists()) {
-						System.err.println("Directory '" + tmp.getCanonicalPath() + "' not exists.");
-						return false;
+					if (isGlob(cacheDir)) {
+						List<File> dirs = expandGlob(cacheDir);
+						if (dirs.isEmpty()) {
+							System.err.println("No directory matches '" + cacheDir + "'.");
+							return false;
+						}
+						for (File dir : dirs) {
+							addBaseDir(dir);
+						}
+						continue;
 					}
 
-					if (!tmp.isDirectory()) {
-						System.err.println("Argument '" + key + "' does not points to a directory.");
+					if (!addBaseDir(new File(cacheDir))) {
+						return false;
+					}
+					continue;
+				} else if (OPT_DIRS.equals(key)) {
+					// -dirs key given, file listing one cache directory per line
+					i++;
+					if (i >= args.length) {
+						System.err.println("Option -dirs should be followed by file path");
+						return false;
+					}
+					if (!readBaseDirs(new File(args[i]))) {
+						return false;
+					}
+					continue;
+				} else if (OPT_MAX_IO.equals(key)) {
+					i++;
+					m_maxIo = parseNumber(args, i, 1);
+					if (m_maxIo < 0) {
 						return false;
 					}
-
-					m_baseDir = tmp;
-					m_baseDirOverridden = true;
 					continue;
 				} else if (OPT_VERBOSE.equals(key)) {
 					m_verbose = true;
 					continue;
+				} else if (OPT_FULL.equals(key)) {
+					m_fullScan = true;
+					continue;
+				} else if (OPT_DEDUP.equals(key)) {
+					m_dedup = true;
+					continue;
+				} else if (OPT_WATCH.equals(key)) {
+					m_watch = true;
+					continue;
+				} else if (OPT_ANALYZE.equals(key)) {
+					m_analyze = true;
+					continue;
+				} else if (OPT_TOP.equals(key)) {
+					// -top key given, 0 lists all entries
+					i++;
+					m_top = parseNumber(args, i, 0);
+					if (m_top < 0) {
+						return false;
+					}
+					continue;
+				} else if (OPT_REPORT.equals(key)) {
+					// -report key given, format follows the extension
+					i++;
+					if (i >= args.length) {
+						System.err.println("Option -report should be followed by file path");
+						return false;
+					}
+					m_reportFile = new File(args[i]);
+					continue;
+				} else if (OPT_MAX_DURATION.equals(key)) {
+					// -maxDuration key given, time limit in minutes
+					i++;
+					m_maxDurationMinutes = parseNumber(args, i, 1);
+					if (m_maxDurationMinutes < 0) {
+						return false;
+					}
+					continue;
+				} else if (OPT_SAFE.equals(key)) {
+					m_safe = true;
+					continue;
+				} else if (OPT_GRACE.equals(key)) {
+					// -grace key given, period in minutes
+					i++;
+					m_graceMinutes = parseNumber(args, i, 0);
+					if (m_graceMinutes < 0) {
+						return false;
+					}
+					continue;
+				} else if (OPT_PURGE_MARKERS.equals(key)) {
+					m_purgeMarkers = true;
+					continue;
+				} else if (OPT_MARKER_AGE.equals(key)) {
+					// -markerAge key given, age of purged markers in hours
+					i++;
+					m_markerAgeHours = parseNumber(args, i, 0);
+					if (m_markerAgeHours < 0) {
+						return false;
+					}
+					continue;
+				} else if (OPT_WATCH_LIMIT.equals(key)) {
+					i++;
+					m_watchLimit = parseNumber(args, i, 1);
+					if (m_watchLimit < 0) {
+						return false;
+					}
+					continue;
+				} else if (OPT_RESCAN.equals(key)) {
+					// -rescan key given, interval in minutes
+					i++;
+					m_rescanMinutes = parseNumber(args, i, 1);
+					if (m_rescanMinutes < 0) {
+						return false;
+					}
+					continue;
+				} else if (OPT_THREADS.equals(key)) {
+					// -threads key given
+					i++;
+					m_threads = parseNumber(args, i, 1);
+					if (m_threads < 0) {
+						return false;
+					}
+					continue;
+				} else if (OPT_METRICS.equals(key)) {
+					// -metrics key given
+					i++;
+					if (i >= args.length) {
+						System.err.println("Option -metrics should be followed by file path");
+						return false;
+					}
+					m_metricsFile = new File(args[i]);
+					continue;
+				} else if (OPT_JFR.equals(key)) {
+					// -jfr key given
+					i++;
+					if (i >= args.length) {
+						System.err.println("Option -jfr should be followed by file path");
+						return false;
+					}
+					m_recordingFile = new File(args[i]);
+					continue;
+				} else if (OPT_ARCHIVE.equals(key)) {
+					// -archive key given, outdated builds are moved there
+					i++;
+					if (i >= args.length) {
+						System.err.println("Option -archive should be followed by directory path");
+						return false;
+					}
+					m_archiveDir = new File(args[i]);
+					continue;
+				} else if (OPT_RESTORE.equals(key)) {
+					// -restore key given, groupId:artifactId:version[:build]
+					i++;
+					if (i >= args.length) {
+						System.err.println("Option -restore should be followed by groupId:artifactId:version[:build]");
+						return false;
+					}
+					m_restore = args[i];
+					continue;
+				} else if (OPT_INCLUDE.equals(key) || OPT_EXCLUDE.equals(key)) {
+					// -include or -exclude key given, comma separated groupId patterns
+					i++;
+					if (i >= args.length) {
+						System.err.println("Option " + key + " should be followed by groupId patterns like com.acme.**");
+						return false;
+					}
+					List<String> patterns = OPT_INCLUDE.equals(key) ? m_includes : m_excludes;
+					patterns.addAll(GroupFilter.split(args[i]));
+					continue;
+				} else if (OPT_PLAN.equals(key) || OPT_EXECUTE.equals(key)) {
+					// -plan or -execute key given
+					i++;
+					if (i >= args.length) {
+						System.err.println("Option " + key + " should be followed by plan file path");
+						return false;
+					}
+					if (OPT_PLAN.equals(key)) {
+						m_planFile = new File(args[i]);
+					} else {
+						m_executeFile = new File(args[i]);
+					}
+					continue;
+				} else if (OPT_DELETE_THREADS.equals(key)) {
+					i++;
+					m_deleteThreads = parseNumber(args, i, 0);
+					if (m_deleteThreads < 0) {
+						return false;
+					}
+					continue;
+				} else if (OPT_DELETE_QUEUE.equals(key)) {
+					i++;
+					m_deleteQueue = parseNumber(args, i, 1);
+					if (m_deleteQueue < 0) {
+						return false;
+					}
+					continue;
+				} else if (OPT_KEEP.equals(key)) {
+					// -keep key given
+					i++;
+					m_keepBuilds = parseNumber(args, i, 1);
+					if (m_keepBuilds < 0) {
+						return false;
+					}
+					continue;
+				} else if (OPT_KEEP_DAYS.equals(key)) {
+					// -keepDays key given
+					i++;
+					m_keepDays = parseNumber(args, i, 0);
+					if (m_keepDays < 0) {
+						return false;
+					}
+					continue;
+				} else if (OPT_MAX_SIZE.equals(key)) {
+					// -maxSize key given
+					i++;
+					if (i >= args.length) {
+						System.err.println("Option -maxSize should be followed by a size like 200G");
+						return false;
+					}
+					try {
+						m_maxSize = SizeBudget.parseSize(args[i]);
+					} catch (IllegalArgumentException e) {
+						System.err.println("Option -maxSize requires a size like 200G, got '" + args[i] + "'.");
+						return false;
+					}
+					continue;
 				}
 
 				// Option is unknown, print error message and exit
@@ -82,10 +391,215 @@ public class Launcher {
 				retval = false;
 			}
 
+			try {
+				m_groupFilter = new GroupFilter(m_includes, m_excludes);
+			} catch (IllegalArgumentException e) {
+				System.err.println("Options -include and -exclude require groupId patterns like com.acme.**: "
+						+ e.getMessage());
+				retval = false;
+			}
+
+			if (m_executeFile != null && (!m_includes.isEmpty() || !m_excludes.isEmpty())) {
+				System.err.println("Options -include and -exclude can not be used together with -execute.");
+				retval = false;
+			}
+
+			if (m_planFile != null && m_executeFile != null) {
+				System.err.println("Options -plan and -execute can not be used together.");
+				retval = false;
+			}
+
+			if (m_dedup && (m_planFile != null || m_executeFile != null)) {
+				System.err.println("Option -dedup can not be used together with -plan or -execute.");
+				retval = false;
+			}
+
+			if (m_baseDirs.size() > 1 && (m_planFile != null || m_executeFile != null || m_watch || m_archiveDir != null)) {
+				System.err.println("Several cache directories can not be used together with -plan, -execute, -watch or -archive.");
+				retval = false;
+			}
+
+			if (m_archiveDir != null && (m_planFile != null || m_executeFile != null)) {
+				System.err.println("Option -archive can not be used together with -plan or -execute.");
+				retval = false;
+			}
+
+			if (m_restore != null && m_archiveDir == null) {
+				System.err.println("Option -restore requires the archive given by -archive.");
+				retval = false;
+			}
+
+			if (m_safe && (m_planFile != null || m_executeFile != null)) {
+				System.err.println("Option -safe can not be used together with -plan or -execute.");
+				retval = false;
+			}
+
+			if (m_watch && (m_planFile != null || m_executeFile != null || m_maxSize >= 0L || m_dedup)) {
+				// Size budget and deduplication account the whole cache in one run
+				System.err.println("Option -watch can not be used together with -plan, -execute, -maxSize or -dedup.");
+				retval = false;
+			}
+
+			if (m_analyze && (m_planFile != null || m_executeFile != null || m_watch || m_maxSize >= 0L || m_dedup
+					|| m_safe || m_archiveDir != null || m_baseDirs.size() > 1)) {
+				// Analysis changes nothing and covers a single cache
+				System.err.println("Option -analyze can not be used together with -plan, -execute, -watch, -maxSize, -dedup, -safe, -archive or several cache directories.");
+				retval = false;
+			}
+
+			if (m_maxDurationMinutes > 0 && (m_planFile != null || m_executeFile != null || m_watch || m_maxSize >= 0L
+					|| m_dedup || m_analyze || m_threads > 1 || m_baseDirs.size() > 1)) {
+				// These need the whole cache in one run, a resumable walk is
+				// sequential to keep its order
+				System.err.println("Option -maxDuration can not be used together with -plan, -execute, -watch, -maxSize, -dedup, -analyze, -threads or several cache directories.");
+				retval = false;
+			}
+
+			if (m_reportFile != null && !m_analyze) {
+				System.err.println("Option -report requires -analyze.");
+				retval = false;
+			}
+
 		}
 		return retval;
 	}
 
+	/**
+	 * Adds a cache directory given on the command line, the same directory
+	 * given twice is cleaned once.
+	 *
+	 * @return <code>false</code> if it is not a directory
+	 */
+	private boolean addBaseDir(File dir) throws IOException {
+		if (!dir.exists()) {
+			System.err.println("Directory '" + dir.getCanonicalPath() + "' not exists.");
+			return false;
+		}
+
+		if (!dir.isDirectory()) {
+			System.err.println("Argument '" + dir + "' does not points to a directory.");
+			return false;
+		}
+
+		for (File known : m_baseDirs) {
+			if (known.getCanonicalFile().equals(dir.getCanonicalFile()))
+				return true;
+		}
+		m_baseDirs.add(dir);
+		m_baseDir = m_baseDirs.get(0);
+		m_baseDirOverridden = true;
+		return true;
+	}
+
+	/**
+	 * Reads cache directories from a file, one per line. Empty lines and
+	 * lines starting with <code>#</code> are ignored, globs are expanded.
+	 */
+	private boolean readBaseDirs(File listFile) throws IOException {
+		try (BufferedReader in = Files.newBufferedReader(listFile.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+
+				if (isGlob(line)) {
+					for (File dir : expandGlob(line)) {
+						addBaseDir(dir);
+					}
+				} else if (!addBaseDir(new File(line))) {
+					return false;
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to read cache directories from '" + listFile + "': " + e);
+			return false;
+		}
+		return true;
+	}
+
+	private static boolean isGlob(String path) {
+		return path.indexOf('*') >= 0 || path.indexOf('?') >= 0 || path.indexOf('[') >= 0 || path.indexOf('{') >= 0;
+	}
+
+	/**
+	 * @return Directories matching a glob like
+	 *         <code>/ci/executor-*&#47;repository</code>, sorted by path
+	 */
+	private static List<File> expandGlob(String glob) throws IOException {
+		Path pattern = Paths.get(glob).toAbsolutePath().normalize();
+
+		// Walk from the longest leading part without wildcards
+		Path base = pattern.getRoot();
+		int fixed = 0;
+		for (Path name : pattern) {
+			if (isGlob(name.toString()))
+				break;
+			base = base.resolve(name);
+			fixed++;
+		}
+		int depth = glob.contains("**") ? Integer.MAX_VALUE : pattern.getNameCount() - fixed;
+
+		final PathMatcher matcher = pattern.getFileSystem().getPathMatcher("glob:" + pattern);
+		final List<File> dirs = new ArrayList<File>();
+		if (!Files.isDirectory(base))
+			return dirs;
+
+		Files.walkFileTree(base, EnumSet.noneOf(FileVisitOption.class), depth, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+				if (matcher.matches(dir)) {
+					// A cache is never nested into another one
+					dirs.add(dir.toFile());
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				// Directories at the maximal depth are reported as files
+				if (attrs.isDirectory() && matcher.matches(file)) {
+					dirs.add(file.toFile());
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		Collections.sort(dirs);
+		return dirs;
+	}
+
+	/**
+	 * Parses numeric value of the option at position <code>i - 1</code>.
+	 * 
+	 * @return Parsed value or -1 if value is missing, invalid or less than
+	 *         <code>min</code>
+	 */
+	private static int parseNumber(String[] args, int i, int min) {
+		String key = args[i - 1];
+		if (i >= args.length) {
+			System.err.println("Option " + key + " should be followed by a number");
+			return -1;
+		}
+
+		int value;
+		try {
+			value = Integer.parseInt(args[i]);
+		} catch (NumberFormatException e) {
+			value = -1;
+		}
+		if (value < min) {
+			System.err.println("Option " + key + " requires a number not less than " + min + ", got '" + args[i] + "'.");
+			return -1;
+		}
+		return value;
+	}
+
 	private boolean isValidCache(File cacheDir) throws IOException {
 		// Cache directory should contain file "repository.xml"
 
@@ -106,6 +620,34 @@ public class Launcher {
 		if (!parseArgs(args))
 			return 1;
 
+		if (m_recordingFile == null) {
+			return performCleanup();
+		}
+
+		Closeable recording;
+		try {
+			recording = FlightEvents.getInstance().startRecording(m_recordingFile.toPath());
+		} catch (IOException e) {
+			System.err.println("Failed to start flight recording: " + e.getMessage());
+			return 1;
+		}
+		try {
+			return performCleanup();
+		} finally {
+			try {
+				recording.close();
+				System.out.println("Flight recording written to '" + m_recordingFile.getCanonicalPath() + "'");
+			} catch (IOException e) {
+				System.err.println("Failed to write flight recording: " + e);
+			}
+		}
+	}
+
+	private int performCleanup() throws IOException {
+		if (m_executeFile != null) {
+			return executePlan();
+		}
+
 		if (!m_baseDirOverridden) {
 			findBaseDir();
 		}
@@ -116,18 +658,411 @@ public class Launcher {
 		if (!isValidCache(m_baseDir))
 			return 3;
 
-		CacheWalker walker = new CacheWalker(m_verbose);
+		if (m_archiveDir != null
+				&& m_archiveDir.getCanonicalFile().toPath().startsWith(m_baseDir.getCanonicalFile().toPath())) {
+			System.err.println("Archive directory '" + m_archiveDir + "' must not be inside of the cache.");
+			return 1;
+		}
+		if (m_restore != null) {
+			return restoreBuild();
+		}
+
+		RetentionPolicy retention = new RetentionPolicy(m_keepBuilds, m_keepDays);
+		if (m_baseDirs.size() > 1) {
+			return cleanCaches(retention);
+		}
+
+		RepositoryRun run = new RepositoryRun(m_baseDir, retention);
+		try {
+			if (m_planFile != null) {
+				return writePlan(run.m_walker, run.m_budget);
+			}
+			if (m_analyze) {
+				return analyzeCache(run.m_walker);
+			}
+			if (m_watch) {
+				return watchCache(run);
+			}
+			return cleanCache(run);
+		} finally {
+			run.close();
+		}
+	}
+
+	private int cleanCache(RepositoryRun run) throws IOException {
 		System.out.println("Cleaning Maven local cache at '" + m_baseDir.getCanonicalPath() + "'");
+		int retval = run.call();
+
+		run.printStatistics();
+		reportMetrics(run.m_walker, m_baseDir.toPath());
+		return retval;
+	}
+
+	/**
+	 * Cleans several caches at once. Traversal of all caches shares one pool
+	 * of <code>-threads</code> workers, <code>-maxIo</code> limits the file
+	 * system operations running at the same time over all caches, see
+	 * {@link CacheWalker#setIoLimit(Semaphore)}. With
+	 * <code>-dedup</code> identical files are linked across all caches on the
+	 * same file store once every cache has been cleaned.
+	 */
+	private int cleanCaches(RetentionPolicy retention) throws IOException {
+		System.out.println("Cleaning " + m_baseDirs.size() + " Maven local caches using " + m_threads + " thread(s)");
+
+		Semaphore ioPermits = (m_maxIo > 0) ? new Semaphore(m_maxIo) : null;
+		ForkJoinPool pool = new ForkJoinPool(m_threads);
+		List<RepositoryRun> runs = new ArrayList<RepositoryRun>();
+		Map<FileStore, Deduplicator> dedups = new LinkedHashMap<FileStore, Deduplicator>();
+		Map<Deduplicator, Integer> dedupCaches = new HashMap<Deduplicator, Integer>();
+		int retval = 0;
+		try {
+			List<ForkJoinTask<Integer>> tasks = new ArrayList<ForkJoinTask<Integer>>();
+			for (File dir : m_baseDirs) {
+				RepositoryRun run = new RepositoryRun(dir, retention);
+				run.m_walker.setWorkerPool(pool);
+				run.m_walker.setIoLimit(ioPermits);
+				if (m_dedup) {
+					shareDeduplicator(run, dedups, dedupCaches);
+				}
+				runs.add(run);
+				tasks.add(pool.submit(run));
+			}
+			for (ForkJoinTask<Integer> task : tasks) {
+				retval = Math.max(retval, task.join());
+			}
+			// Only files that survived the cleanup of every cache are linked
+			for (Deduplicator dedup : dedups.values()) {
+				dedup.run(m_threads);
+			}
+		} finally {
+			pool.shutdown();
+			for (RepositoryRun run : runs) {
+				run.close();
+			}
+		}
+
+		long deleted = 0L;
+		long reclaimed = 0L;
+		long failed = 0L;
+		Map<Path, CleanupMetrics> metrics = new LinkedHashMap<Path, CleanupMetrics>();
+		for (RepositoryRun run : runs) {
+			System.out.println();
+			System.out.println("Maven local cache at '" + run.m_dir.getCanonicalPath() + "':");
+			run.printStatistics();
+			metrics.put(run.m_dir.toPath().toAbsolutePath(), completeMetrics(run.m_walker));
+
+			deleted += run.m_walker.getDeleted();
+			reclaimed += run.m_walker.getReclaimedSpace();
+			failed += run.m_walker.getFailedToDelete();
+		}
+
+		System.out.println();
+		System.out.println("Total over " + runs.size() + " caches deleted " + deleted + " file(s), reclaimed "
+				+ getHrSize(reclaimed) + ".");
+		if (failed > 0) {
+			System.out.println("Failed to delete " + failed + " file(s).");
+		}
+		for (Map.Entry<FileStore, Deduplicator> entry : dedups.entrySet()) {
+			Deduplicator dedup = entry.getValue();
+			System.out.println("Replaced " + dedup.getLinkedFiles() + " duplicate file(s) of "
+					+ dedupCaches.get(dedup) + " cache(s) on '" + entry.getKey() + "' by hard links, saved "
+					+ getHrSize(dedup.getSavedSpace()));
+			if (dedup.getFailedToLink() > 0) {
+				System.out.println("Failed to link " + dedup.getFailedToLink() + " file(s).");
+			}
+		}
+		writeMetrics(metrics);
+		return retval;
+	}
+
+	/**
+	 * Lets the run share the deduplicator of the other caches on the same
+	 * file store. A cache whose file store is unknown keeps its own.
+	 */
+	private void shareDeduplicator(RepositoryRun run, Map<FileStore, Deduplicator> dedups,
+			Map<Deduplicator, Integer> dedupCaches) {
+		FileStore store;
+		try {
+			store = Files.getFileStore(run.m_dir.toPath());
+		} catch (IOException e) {
+			System.err.println("Failed to determine file store of '" + run.m_dir + "', deduplicating it alone: " + e);
+			return;
+		}
+
+		Deduplicator dedup = dedups.get(store);
+		if (dedup == null) {
+			dedup = new Deduplicator(m_verbose);
+			dedups.put(store, dedup);
+			dedupCaches.put(dedup, Integer.valueOf(0));
+		}
+		dedupCaches.put(dedup, Integer.valueOf(dedupCaches.get(dedup).intValue() + 1));
+		run.m_walker.setSharedDeduplicator(dedup);
+	}
+
+	private int watchCache(final RepositoryRun run) throws IOException {
+		CacheWalker walker = run.m_walker;
+		final SnapshotWatcher watcher = new SnapshotWatcher(walker, m_baseDir.toPath().getFileSystem(), m_watchLimit,
+				m_verbose);
+		walker.setSnapshotWatcher(watcher);
+		int retval = cleanCache(run);
+		// Each report covers what was cleaned since the previous one, by
+		// the watcher or the rescan
+		run.resetStatistics();
+		// Later scans are incremental even if the first one was not
+		m_fullScan = false;
+
+		final CountDownLatch stopped = new CountDownLatch(1);
+		Runtime.getRuntime().addShutdownHook(new Thread("cache-watch-shutdown") {
+			@Override
+			public void run() {
+				watcher.stop();
+				try {
+					// Let a running cleanup or rescan finish
+					stopped.await();
+				} catch (InterruptedException e) {
+					// Exit anyway
+				}
+			}
+		});
+
+		System.out.println("Watching " + watcher.getWatchedDirs() + " recently modified snapshot directories, rescan every "
+				+ m_rescanMinutes + " minute(s).");
+		try {
+			watcher.run(new SnapshotWatcher.Rescan() {
+				public void rescan() throws IOException {
+					cleanCache(run);
+					run.resetStatistics();
+				}
+			}, m_rescanMinutes * 60L * 1000L);
+		} finally {
+			stopped.countDown();
+		}
+		return retval;
+	}
+
+	private int writePlan(CacheWalker walker, SizeBudget budget) throws IOException {
+		// Planning never uses the scan index, a plan has to cover the whole
+		// cache and must not mark directories as cleaned
+		System.out.println("Planning cleanup of Maven local cache at '" + m_baseDir.getCanonicalPath() + "'");
+		DeletionPlan.Writer plan = new DeletionPlan.Writer(m_planFile.toPath(), m_baseDir.toPath());
+		int retval;
+		try {
+			walker.setDeleter(plan);
+			retval = walker.processDirectory(m_baseDir);
+			// A walk that failed halfway leaves the plan incomplete
+			plan.complete();
+		} finally {
+			plan.close();
+		}
+
+		System.out.println("Planned deletion of " + plan.getFiles() + " file(s).");
+		System.out.println("Reclaimable space " + getHrSize(plan.getSize()));
+		printBudget(walker, budget);
+		System.out.println("Plan written to '" + m_planFile.getCanonicalPath() + "'");
+		reportMetrics(walker, m_baseDir.toPath());
+		return retval;
+	}
+
+	private int analyzeCache(CacheWalker walker) throws IOException {
+		// Like planning, analysis never uses the scan index and leaves the
+		// cache untouched
+		System.out.println("Analyzing Maven local cache at '" + m_baseDir.getCanonicalPath() + "'");
+		UsageReport report = new UsageReport(m_baseDir.toPath());
+		walker.setDeleter(report);
+		walker.setUsageReport(report);
 		int retval = walker.processDirectory(m_baseDir);
 
-		// Print statistics
+		for (String line : report.getSummary(m_top)) {
+			System.out.println(line);
+		}
+		if (m_reportFile != null) {
+			try {
+				report.write(m_reportFile.toPath(), m_top);
+				System.out.println("Report written to '" + m_reportFile.getCanonicalPath() + "'");
+			} catch (IOException e) {
+				System.err.println("Failed to write report to '" + m_reportFile + "': " + e);
+				retval = Math.max(retval, 1);
+			}
+		}
+		reportMetrics(walker, m_baseDir.toPath());
+		return retval;
+	}
+
+	private int executePlan() throws IOException {
+		Path planFile = m_executeFile.toPath();
+		Path cacheDir;
+		try {
+			cacheDir = DeletionPlan.readRoot(planFile);
+		} catch (IOException e) {
+			System.err.println("Failed to read deletion plan: " + e.getMessage());
+			return 1;
+		}
+		if (m_baseDirOverridden) {
+			// Plan created on another host or for a moved cache
+			cacheDir = m_baseDir.toPath();
+		}
+
+		CacheWalker walker = new CacheWalker(m_verbose, m_threads);
+		walker.setDeletionPipeline(m_deleteThreads, m_deleteQueue);
+		System.out.println("Executing deletion plan '" + m_executeFile.getCanonicalPath() + "' on '" + cacheDir + "'");
+		long skipped = walker.executePlan(planFile, cacheDir);
+
+		printStatistics(walker);
+		if (skipped > 0) {
+			System.out.println("Skipped " + skipped + " file(s) changed or removed since planning.");
+		}
+		reportMetrics(walker, cacheDir);
+		return (walker.getFailedToDelete() > 0) ? 1 : 0;
+	}
+
+	/**
+	 * Copies a build from the archive back into the cache, or lists the
+	 * archived builds if no build is given.
+	 */
+	private int restoreBuild() throws IOException {
+		String[] coordinates = m_restore.split(":");
+		if (coordinates.length < 3 || coordinates.length > 4) {
+			System.err.println("Option -restore requires groupId:artifactId:version[:build], got '" + m_restore + "'.");
+			return 1;
+		}
+		String groupId = coordinates[0];
+		String artifactId = coordinates[1];
+		String version = coordinates[2];
+		SnapshotArchive archive = new SnapshotArchive(m_archiveDir.toPath(), m_baseDir.toPath());
+
+		if (coordinates.length == 3) {
+			List<String> builds = archive.listBuilds(groupId, artifactId, version);
+			if (builds.isEmpty()) {
+				System.out.println("No archived builds of " + m_restore + ".");
+				return 1;
+			}
+			System.out.println("Archived builds of " + m_restore + ":");
+			for (String build : builds) {
+				System.out.println("  " + build);
+			}
+			return 0;
+		}
+
+		int restored = archive.restore(groupId, artifactId, version, coordinates[3]);
+		if (restored == 0) {
+			System.err.println("Build " + coordinates[3] + " of " + groupId + ":" + artifactId + ":" + version
+					+ " is not archived.");
+			return 1;
+		}
+		System.out.println("Restored " + restored + " file(s) of " + m_restore + " into '" + m_baseDir.getCanonicalPath()
+				+ "'.");
+		System.out.println("The next cleanup archives and deletes the build again unless it is the newest one, "
+				+ "keep it with " + OPT_KEEP + ", " + OPT_KEEP_DAYS + " or " + OPT_EXCLUDE + ".");
+		return 0;
+	}
+
+	private void printStatistics(CacheWalker walker) {
 		System.out.println("Total deleted " + walker.getDeleted() + " file(s).");
 		System.out.println("Reclaimed space " + getHrSize(walker.getReclaimedSpace()));
 		if (walker.getFailedToDelete() > 0) {
 			System.out.println("Failed to delete " + walker.getFailedToDelete() + " file(s).");
 		}
+		if (walker.getUpdatedMetadata() > 0) {
+			System.out.println("Removed deleted builds from " + walker.getUpdatedMetadata() + " maven-metadata file(s).");
+		}
+		if (walker.getLinkedFiles() > 0) {
+			System.out.println("Replaced " + walker.getLinkedFiles() + " duplicate file(s) by hard links, saved "
+					+ getHrSize(walker.getDedupSpace()));
+		}
+		if (walker.getFailedToLink() > 0) {
+			System.out.println("Failed to link " + walker.getFailedToLink() + " file(s).");
+		}
+	}
 
-		return retval;
+	private void reportMetrics(CacheWalker walker, Path repository) {
+		CleanupMetrics metrics = completeMetrics(walker);
+		writeMetrics(Collections.singletonMap(repository.toAbsolutePath(), metrics));
+	}
+
+	private CleanupMetrics completeMetrics(CacheWalker walker) {
+		CleanupMetrics metrics = walker.getMetrics();
+		metrics.complete(walker.getDeleted(), walker.getFailedToDelete(), walker.getReclaimedSpace());
+		for (String line : metrics.getSummary()) {
+			System.out.println(line);
+		}
+		return metrics;
+	}
+
+	private void writeMetrics(Map<Path, CleanupMetrics> metrics) {
+		if (m_metricsFile == null)
+			return;
+
+		try {
+			CleanupMetrics.writePrometheus(m_metricsFile.toPath(), metrics);
+		} catch (IOException e) {
+			System.err.println("Failed to write metrics to '" + m_metricsFile + "': " + e);
+		}
+	}
+
+	private void printBudget(CacheWalker walker, SizeBudget budget) {
+		if (budget == null)
+			return;
+
+		System.out.println("Cache size before eviction " + getHrSize(budget.getTotalSize()) + ", limit " + getHrSize(budget.getMaxSize()));
+		if (walker.getEvictedDirs() > 0) {
+			System.out.println("Evicted " + walker.getEvictedDirs() + " least recently used version directories.");
+		}
+	}
+
+	private void printGuard(ArtifactGuard guard) {
+		if (guard == null)
+			return;
+
+		if (guard.getBusyDirs() > 0) {
+			System.out.println("Skipped " + guard.getBusyDirs() + " version directories locked by running builds.");
+		}
+		if (guard.getChangedDirs() > 0) {
+			System.out.println("Skipped " + guard.getChangedDirs() + " snapshot directories changed during cleanup.");
+		}
+		if (guard.getRecentFiles() > 0) {
+			System.out.println("Kept " + guard.getRecentFiles() + " file(s) modified within the last " + m_graceMinutes
+					+ " minute(s).");
+		}
+	}
+
+	private void printArchive(SnapshotArchive archive) {
+		if (archive == null || archive.getArchivedFiles() == 0)
+			return;
+
+		System.out.println("Archived " + archive.getArchivedFiles() + " file(s) of " + getHrSize(archive.getArchivedSize())
+				+ " to '" + archive.getRoot() + "'.");
+	}
+
+	private static void printMarkers(MarkerPurger purger) {
+		if (purger == null)
+			return;
+
+		System.out.println("Purged " + purger.getLastUpdatedFiles() + " *.lastUpdated file(s) and "
+				+ purger.getStatusEntries() + " failed update check(s) of " + MarkerPurger.STATUS_FILE + ".");
+	}
+
+	private ScanIndex loadIndex(Path baseDir, RetentionPolicy retention, boolean visitAll) {
+		if (m_fullScan || visitAll) {
+			// Complete rescan, index gets rebuilt from scratch. Measuring the
+			// cache size and deduplication need every directory listed.
+			return ScanIndex.create(baseDir, retention.toString(), null);
+		}
+
+		try {
+			return ScanIndex.load(baseDir, retention.toString(), null);
+		} catch (IOException e) {
+			System.err.println("Failed to read scan index, performing full scan: " + e);
+			return ScanIndex.create(baseDir, retention.toString(), null);
+		}
+	}
+
+	private WalkCursor loadCursor(Path baseDir) {
+		try {
+			return WalkCursor.load(baseDir);
+		} catch (IOException e) {
+			System.err.println("Failed to read walk cursor, starting from the beginning: " + e);
+			return WalkCursor.create(baseDir);
+		}
 	}
 
 	private void findBaseDir() {
@@ -203,6 +1138,140 @@ public class Launcher {
 		return "";
 	}
 
+	/**
+	 * Cleanup of one cache directory: walker with its size budget and guard
+	 * plus the scan index of the latest run.
+	 */
+	private final class RepositoryRun implements Callable<Integer> {
+		private final File m_dir;
+		private final RetentionPolicy m_retention;
+		private final CacheWalker m_walker;
+		private final SizeBudget m_budget;
+		private final ArtifactGuard m_guard;
+		private final MarkerPurger m_purger;
+		private final SnapshotArchive m_archive;
+		private ScanIndex m_index;
+		private WalkCursor m_cursor;
+
+		RepositoryRun(File dir, RetentionPolicy retention) {
+			m_dir = dir;
+			m_retention = retention;
+			m_walker = new CacheWalker(m_verbose, m_threads);
+			m_walker.setDeletionPipeline(m_deleteThreads, m_deleteQueue);
+			m_walker.setRetentionPolicy(retention);
+			m_walker.setGroupFilter(m_groupFilter);
+			if (m_maxSize >= 0L) {
+				m_budget = new SizeBudget(m_maxSize);
+				m_walker.setSizeBudget(m_budget);
+			} else {
+				m_budget = null;
+			}
+			if (m_dedup) {
+				m_walker.setDeduplicator(new Deduplicator(m_verbose));
+			}
+			if (m_safe) {
+				m_guard = new ArtifactGuard(dir.toPath(), m_graceMinutes * 60L * 1000L);
+				m_walker.setArtifactGuard(m_guard);
+			} else {
+				m_guard = null;
+			}
+			if (m_purgeMarkers) {
+				m_purger = new MarkerPurger(m_markerAgeHours * 60L * 60L * 1000L);
+				m_walker.setMarkerPurger(m_purger);
+			} else {
+				m_purger = null;
+			}
+			if (m_archiveDir != null) {
+				m_archive = new SnapshotArchive(m_archiveDir.toPath(), dir.toPath());
+				m_walker.setSnapshotArchive(m_archive);
+			} else {
+				m_archive = null;
+			}
+		}
+
+		/**
+		 * Cleans the cache with an index loaded from the previous run and
+		 * saves the index afterwards.
+		 */
+		public Integer call() {
+			m_index = loadIndex(m_dir.toPath(), m_retention, m_budget != null || m_dedup);
+			m_walker.setScanIndex(m_index);
+			if (m_maxDurationMinutes > 0) {
+				m_cursor = loadCursor(m_dir.toPath());
+				m_walker.setDeadline(System.currentTimeMillis() + m_maxDurationMinutes * 60L * 1000L, m_cursor);
+			}
+			int retval = m_walker.processDirectory(m_dir);
+			if (m_cursor != null) {
+				saveCursor();
+			}
+
+			long start = m_walker.getMetrics().startPhase();
+			try {
+				if (m_walker.isIncomplete()) {
+					m_index.keepUnvisited();
+				}
+				m_index.save();
+			} catch (IOException e) {
+				System.err.println("Failed to save scan index of '" + m_dir + "': " + e);
+			}
+			m_walker.getMetrics().endPhase(CleanupMetrics.Phase.SAVE_INDEX, start);
+			return retval;
+		}
+
+		private void saveCursor() {
+			try {
+				if (!m_walker.isIncomplete()) {
+					m_cursor.clear();
+				} else if (m_walker.getLastCompleted() != null) {
+					m_cursor.save(m_walker.getLastCompleted());
+				}
+			} catch (IOException e) {
+				System.err.println("Failed to save walk cursor of '" + m_dir + "': " + e);
+			}
+		}
+
+		void printStatistics() {
+			if (m_cursor != null && !m_cursor.isEmpty()) {
+				System.out.println("Continued after '" + m_cursor + "'.");
+			}
+			if (m_walker.isIncomplete()) {
+				Path last = m_walker.getLastCompleted();
+				System.out.println("Stopped after " + m_maxDurationMinutes + " minute(s), next run continues after '"
+						+ ((last != null) ? m_dir.toPath().relativize(last) : m_cursor) + "'.");
+			}
+			Launcher.this.printStatistics(m_walker);
+			printBudget(m_walker, m_budget);
+			printGuard(m_guard);
+			printMarkers(m_purger);
+			printArchive(m_archive);
+			if (m_index.getUnchangedDirs() > 0) {
+				System.out.println("Skipped " + m_index.getUnchangedDirs() + " unchanged snapshot directories.");
+			}
+		}
+
+		/**
+		 * Starts counting anew after a report of a watched cache.
+		 */
+		void resetStatistics() {
+			m_walker.resetStatistics();
+			if (m_guard != null) {
+				m_guard.resetStatistics();
+			}
+			if (m_purger != null) {
+				m_purger.resetStatistics();
+			}
+			if (m_archive != null) {
+				m_archive.resetStatistics();
+			}
+		}
+
+		void close() {
+			if (m_budget != null) {
+				m_budget.close();
+			}
+		}
+	}
+
 	private static long KB = 1024L;
 	private static long MB = KB * 1024L;
 	private static long GB = MB * 1024L;
@@ -0,0 +1,362 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent index of the previous cache scan, stored in
+ * <code>.m2cachecleanup/index</code> inside the cache directory.
+ * <p>
+ * For every visited directory the index records its modification time. For
+ * group and artifact directories it also keeps the classified list of
+ * sub-directories, so an unchanged directory is not listed again. For
+ * snapshot version directories it keeps the version that survived the last
+ * cleanup and the time when a build kept for its age expires, an unchanged
+ * snapshot directory is not cleaned again before that time. Snapshot records
+ * are only valid for the retention policy they were created with, directory
+ * records only for the version prefixes they were classified with.
+ * <p>
+ * A directory modification time only changes when entries are added to or
+ * removed from that very directory, so the walker still visits every
+ * directory, but an unchanged one costs a single stat instead of a listing.
+ */
+final class ScanIndex {
+	/**
+	 * Directory holding the tool state inside of the cache directory
+	 */
+	static final String STATE_DIR = ".m2cachecleanup";
+
+	private static final String INDEX_FILE = "index";
+	private static final int MAGIC = 0x4D32434C; // "M2CL"
+	private static final int FORMAT_VERSION = 3;
+
+	private static final byte KIND_DIRECTORY = 1;
+	private static final byte KIND_SNAPSHOT = 2;
+
+	/**
+	 * Modification time of a directory which could not be stat'ed. Records
+	 * with this time never match.
+	 */
+	static final long UNKNOWN_TIME = Long.MIN_VALUE;
+
+	// Modification times this close to the scan start may still change
+	// within the file system time granularity, such records are not
+	// trusted on the next run
+	private static final long MTIME_GRANULARITY = 2000L;
+
+	private final Path m_root;
+	private final String m_policy;
+	private final String m_versions;
+	private final Map<String, Record> m_previous;
+	private final ConcurrentMap<String, Record> m_current;
+	private final Set<String> m_invalid;
+	private final long m_startTime;
+	private final AtomicLong m_unchangedDirs;
+
+	private ScanIndex(Path root, String policy, String versions,
+			Map<String, Record> previous) {
+		m_root = root;
+		m_policy = policy;
+		m_versions = versions;
+		m_previous = previous;
+		m_current = new ConcurrentHashMap<String, Record>();
+		m_invalid = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		m_startTime = System.currentTimeMillis();
+		m_unchangedDirs = new AtomicLong(0L);
+	}
+
+	/**
+	 * Creates an empty index, every directory will be scanned.
+	 *
+	 * @param policy
+	 *            Textual form of the retention policy in use
+	 * @param versions
+	 *            Additional version prefixes in use, <code>null</code> or
+	 *            empty for numeric versions only
+	 */
+	static ScanIndex create(Path root, String policy, String versions) {
+		return new ScanIndex(root, policy, normalize(versions),
+				Collections.<String, Record> emptyMap());
+	}
+
+	/**
+	 * Loads index of the previous run. Missing index results in an empty
+	 * one. Snapshot records of a different retention policy are dropped, so
+	 * are directory records of different version prefixes.
+	 *
+	 * @param policy
+	 *            Textual form of the retention policy in use
+	 * @param versions
+	 *            Additional version prefixes in use, <code>null</code> or
+	 *            empty for numeric versions only
+	 * @throws IOException
+	 *             if the index exists but cannot be read
+	 */
+	static ScanIndex load(Path root, String policy, String versions)
+			throws IOException {
+		versions = normalize(versions);
+		Path indexFile = root.resolve(STATE_DIR).resolve(INDEX_FILE);
+		Map<String, Record> records = new HashMap<String, Record>();
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Files.newInputStream(indexFile)))) {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+				throw new IOException("Unsupported index format in '"
+						+ indexFile + "'");
+			}
+
+			boolean samePolicy = policy.equals(in.readUTF());
+			boolean sameVersions = versions.equals(in.readUTF());
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				Record record = Record.read(in);
+				if (record.m_kind == KIND_SNAPSHOT ? samePolicy
+						: sameVersions) {
+					records.put(path, record);
+				}
+			}
+		} catch (NoSuchFileException e) {
+			// First run, nothing indexed yet
+		}
+
+		return new ScanIndex(root, policy, versions, records);
+	}
+
+	/**
+	 * Writes records of all directories visited during this run. Directories
+	 * which were not visited any more are dropped.
+	 */
+	void save() throws IOException {
+		Path stateDir = m_root.resolve(STATE_DIR);
+		Files.createDirectories(stateDir);
+		Path tmpFile = stateDir.resolve(INDEX_FILE + ".tmp");
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(m_policy);
+			out.writeUTF(m_versions);
+			out.writeInt(m_current.size());
+			for (Map.Entry<String, Record> entry : m_current.entrySet()) {
+				Record record = entry.getValue();
+				if (m_invalid.contains(entry.getKey())) {
+					record = record.untrusted();
+				}
+				out.writeUTF(entry.getKey());
+				record.write(out);
+			}
+		}
+
+		Files.move(tmpFile, stateDir.resolve(INDEX_FILE),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return Listing of the previous run or <code>null</code> if directory
+	 *         was changed since then. Entries of the returned listing carry no
+	 *         attributes.
+	 */
+	DirectoryScanner.Listing getListing(Path dir, long lastModified) {
+		String key = getKey(dir);
+		Record record = m_previous.get(key);
+		if (record == null || record.m_kind != KIND_DIRECTORY
+				|| record.m_lastModified != lastModified
+				|| lastModified == UNKNOWN_TIME)
+			return null;
+
+		m_current.put(key, record);
+
+		DirectoryScanner.Listing listing = new DirectoryScanner.Listing();
+		for (String name : record.m_versionDirs) {
+			listing.getVersionDirs().add(
+					new DirectoryScanner.Entry(dir.resolve(name), null));
+		}
+		for (String name : record.m_subDirs) {
+			listing.getSubDirs().add(
+					new DirectoryScanner.Entry(dir.resolve(name), null));
+		}
+		return listing;
+	}
+
+	void putListing(Path dir, long lastModified,
+			DirectoryScanner.Listing listing) {
+		m_current.put(getKey(dir), new Record(KIND_DIRECTORY,
+				trusted(lastModified), getNames(listing.getVersionDirs()),
+				getNames(listing.getSubDirs()), SnapshotVersionParser.INVALID,
+				Long.MAX_VALUE));
+	}
+
+	/**
+	 * @return <code>true</code> if the snapshot directory was not changed
+	 *         since the previous cleanup and none of its kept builds expired,
+	 *         so it can be skipped
+	 */
+	boolean isSnapshotUnchanged(Path versionDir, long lastModified) {
+		String key = getKey(versionDir);
+		Record record = m_previous.get(key);
+		if (record == null || record.m_kind != KIND_SNAPSHOT
+				|| record.m_lastModified != lastModified
+				|| lastModified == UNKNOWN_TIME
+				|| record.m_expires <= m_startTime)
+			return false;
+
+		m_current.put(key, record);
+		m_unchangedDirs.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * @param lastModified
+	 *            Modification time read before the directory was cleaned
+	 * @param keptVersion
+	 *            Packed key of the latest surviving version
+	 * @param expires
+	 *            Time when the first build kept for its age expires
+	 */
+	void putSnapshot(Path versionDir, long lastModified, long keptVersion,
+			long expires) {
+		m_current.put(getKey(versionDir), new Record(KIND_SNAPSHOT,
+				trusted(lastModified), null, null, keptVersion, expires));
+	}
+
+	/**
+	 * Keeps records of the previous run for directories which were not
+	 * visited, e.g. because a time limited walk stopped early. Records of
+	 * directories removed meanwhile stay until the next complete walk.
+	 */
+	void keepUnvisited() {
+		for (Map.Entry<String, Record> entry : m_previous.entrySet()) {
+			m_current.putIfAbsent(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Forces the directory to be processed again on the next run, e.g.
+	 * because some of its files could not be deleted.
+	 */
+	void invalidate(Path dir) {
+		m_invalid.add(getKey(dir));
+	}
+
+	/**
+	 * @return Number of snapshot directories skipped as unchanged
+	 */
+	long getUnchangedDirs() {
+		return m_unchangedDirs.get();
+	}
+
+	private long trusted(long lastModified) {
+		return (lastModified > m_startTime - MTIME_GRANULARITY) ? UNKNOWN_TIME
+				: lastModified;
+	}
+
+	private static String normalize(String versions) {
+		return (versions == null) ? "" : versions;
+	}
+
+	private String getKey(Path dir) {
+		StringBuilder sb = new StringBuilder();
+		for (Path name : m_root.relativize(dir)) {
+			if (sb.length() > 0)
+				sb.append('/');
+			sb.append(name.toString());
+		}
+		return sb.toString();
+	}
+
+	private static String[] getNames(List<DirectoryScanner.Entry> entries) {
+		String[] names = new String[entries.size()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = entries.get(i).getName();
+		}
+		return names;
+	}
+
+	private static final class Record {
+		private final byte m_kind;
+		private final long m_lastModified;
+		private final String[] m_versionDirs;
+		private final String[] m_subDirs;
+		private final long m_keptVersion;
+		private final long m_expires;
+
+		Record(byte kind, long lastModified, String[] versionDirs,
+				String[] subDirs, long keptVersion, long expires) {
+			m_kind = kind;
+			m_lastModified = lastModified;
+			m_versionDirs = versionDirs;
+			m_subDirs = subDirs;
+			m_keptVersion = keptVersion;
+			m_expires = expires;
+		}
+
+		Record untrusted() {
+			return new Record(m_kind, UNKNOWN_TIME, m_versionDirs, m_subDirs,
+					m_keptVersion, m_expires);
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeByte(m_kind);
+			out.writeLong(m_lastModified);
+			if (m_kind == KIND_DIRECTORY) {
+				writeNames(out, m_versionDirs);
+				writeNames(out, m_subDirs);
+			} else {
+				out.writeLong(m_keptVersion);
+				out.writeLong(m_expires);
+			}
+		}
+
+		static Record read(DataInputStream in) throws IOException {
+			byte kind = in.readByte();
+			long lastModified = in.readLong();
+			if (kind == KIND_DIRECTORY) {
+				String[] versionDirs = readNames(in);
+				String[] subDirs = readNames(in);
+				return new Record(kind, lastModified, versionDirs, subDirs,
+						SnapshotVersionParser.INVALID, Long.MAX_VALUE);
+			} else if (kind == KIND_SNAPSHOT) {
+				long keptVersion = in.readLong();
+				return new Record(kind, lastModified, null, null,
+						keptVersion, in.readLong());
+			}
+			throw new IOException("Unknown index record kind " + kind);
+		}
+
+		private static void writeNames(DataOutputStream out, String[] names)
+				throws IOException {
+			out.writeInt(names.length);
+			for (String name : names) {
+				out.writeUTF(name);
+			}
+		}
+
+		private static String[] readNames(DataInputStream in)
+				throws IOException {
+			String[] names = new String[in.readInt()];
+			for (int i = 0; i < names.length; i++) {
+				names[i] = in.readUTF();
+			}
+			return names;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size limit of the whole cache. While walking, the size of every version
+ * directory and the time it was last used are collected, afterwards whole
+ * version directories are evicted, least recently used first, until the
+ * cache fits into the limit.
+ * <p>
+ * A directory was last used when its most recently accessed or modified file
+ * was. Access times depend on the file system mount options, modification
+ * times are the fallback.
+ */
+final class SizeBudget implements Closeable {
+	private static final long KB = 1024L;
+
+	private final long m_maxSize;
+	private final AtomicLong m_totalSize;
+	private final UsageSorter m_sorter;
+	private IOException m_failure;
+
+	/**
+	 * @param maxSize
+	 *            Maximal size of the cache in bytes
+	 */
+	SizeBudget(long maxSize) {
+		m_maxSize = maxSize;
+		m_totalSize = new AtomicLong(0L);
+		m_sorter = new UsageSorter();
+	}
+
+	/**
+	 * Parses size like <code>200G</code>, <code>512m</code> or
+	 * <code>1048576</code>. Units K, M, G and T are binary, an optional
+	 * trailing B is ignored.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if text is not a valid size
+	 */
+	static long parseSize(String text) {
+		String value = text.trim().toUpperCase();
+		if (value.endsWith("B")) {
+			value = value.substring(0, value.length() - 1);
+		}
+
+		long multiplier = 1L;
+		if (!value.isEmpty()) {
+			int unit = "KMGT".indexOf(value.charAt(value.length() - 1));
+			if (unit >= 0) {
+				for (int i = 0; i <= unit; i++) {
+					multiplier *= KB;
+				}
+				value = value.substring(0, value.length() - 1);
+			}
+		}
+
+		long number;
+		try {
+			number = Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid size '" + text + "'");
+		}
+		if (number < 0L || number > Long.MAX_VALUE / multiplier) {
+			throw new IllegalArgumentException("Invalid size '" + text + "'");
+		}
+		return number * multiplier;
+	}
+
+	long getMaxSize() {
+		return m_maxSize;
+	}
+
+	/**
+	 * @return Size of all files seen during the walk, without files selected
+	 *         for deletion
+	 */
+	long getTotalSize() {
+		return m_totalSize.get();
+	}
+
+	/**
+	 * Accounts files that do not belong to any version directory, e.g.
+	 * metadata of a group or an artifact. Such files are never evicted.
+	 */
+	void addFiles(long size) {
+		m_totalSize.addAndGet(size);
+	}
+
+	/**
+	 * Reads size and time of last use of all files in the version directory.
+	 * Files which vanish meanwhile are ignored.
+	 */
+	Usage measure(Path versionDir) throws IOException {
+		final Usage usage = new Usage();
+		Files.walkFileTree(versionDir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) {
+				if (attrs.isRegularFile()) {
+					usage.m_size += attrs.size();
+					usage.m_lastUsed = Math.max(usage.m_lastUsed, Math.max(
+							attrs.lastAccessTime().toMillis(), attrs
+									.lastModifiedTime().toMillis()));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return usage;
+	}
+
+	/**
+	 * Adds version directory as a candidate for eviction. Safe to use from
+	 * several traversal threads.
+	 */
+	void addVersionDir(Path versionDir, Usage usage) {
+		m_totalSize.addAndGet(usage.m_size);
+		synchronized (this) {
+			if (m_failure != null)
+				return;
+			try {
+				m_sorter.add(usage.m_lastUsed, usage.m_size,
+						versionDir.toString());
+			} catch (IOException e) {
+				m_failure = e;
+			}
+		}
+	}
+
+	/**
+	 * @return Version directories, least recently used first
+	 * @throws IOException
+	 *             if collected usage could not be sorted
+	 */
+	synchronized UsageSorter.Cursor leastRecentlyUsed() throws IOException {
+		if (m_failure != null)
+			throw m_failure;
+		return m_sorter.sort();
+	}
+
+	public void close() {
+		m_sorter.close();
+	}
+
+	/**
+	 * Size and time of last use of one version directory. Used by a single
+	 * thread only.
+	 */
+	static final class Usage {
+		private long m_size;
+		private long m_lastUsed;
+
+		/**
+		 * Excludes a file which is going to be deleted anyway.
+		 */
+		void remove(long size) {
+			m_size -= size;
+		}
+	}
+}
@@ -0,0 +1,259 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps outdated snapshot builds in compressed archives outside of the cache
+ * instead of deleting them for good.
+ * <p>
+ * Every artifact gets one ZIP file,
+ * <code>&lt;archive&gt;/&lt;group path&gt;/&lt;artifactId&gt;.zip</code>,
+ * holding the builds as <code>&lt;version&gt;/&lt;file name&gt;</code>.
+ * Archives are written through the JDK zip file system with
+ * <code>useTempFile</code>, so file contents are streamed through temporary
+ * files and never held in memory. Closing the zip file system rewrites the
+ * archive, existing entries are copied without being compressed again. All
+ * snapshot directories of an artifact are therefore archived in one session,
+ * so a cleanup rewrites every archive at most once.
+ * <p>
+ * Restored builds are ordinary files of the cache again. Builds older than
+ * the ones the retention policy keeps are archived and deleted by the next
+ * cleanup, unless <code>-keep</code> or <code>-keepDays</code> covers them or
+ * the group is excluded.
+ */
+final class SnapshotArchive {
+	static final String ARCHIVE_SUFFIX = ".zip";
+
+	private final Path m_root;
+	private final Path m_cacheDir;
+	private final AtomicLong m_archivedFiles;
+	private final AtomicLong m_archivedSize;
+
+	/**
+	 * @param root
+	 *            Archive directory, must not be inside of the cache
+	 * @param cacheDir
+	 *            Cache directory the archived files come from
+	 */
+	SnapshotArchive(Path root, Path cacheDir) {
+		m_root = root.toAbsolutePath();
+		m_cacheDir = cacheDir.toAbsolutePath();
+		m_archivedFiles = new AtomicLong(0L);
+		m_archivedSize = new AtomicLong(0L);
+	}
+
+	/**
+	 * Copies files of one snapshot version directory into the archive of the
+	 * artifact. Either all files are archived or an exception is thrown.
+	 *
+	 * @throws IOException
+	 *             if the archive cannot be written, the files must be kept
+	 */
+	void archive(Path versionDir, List<DirectoryScanner.Entry> files)
+			throws IOException {
+		archive(Collections.singletonMap(versionDir, files));
+	}
+
+	/**
+	 * Copies files of several snapshot version directories of the same
+	 * artifact into its archive, which is written once. Either all files are
+	 * archived or an exception is thrown. Version directories of one artifact
+	 * are cleaned by one thread, so an archive is never opened twice at the
+	 * same time.
+	 *
+	 * @param versionDirs
+	 *            Files to archive by their version directory
+	 * @throws IOException
+	 *             if the archive cannot be written, the files must be kept
+	 */
+	void archive(Map<Path, List<DirectoryScanner.Entry>> versionDirs)
+			throws IOException {
+		if (versionDirs.isEmpty())
+			return;
+
+		Path artifactDir = null;
+		for (Path versionDir : versionDirs.keySet()) {
+			Path parent = versionDir.toAbsolutePath().getParent();
+			if (artifactDir != null && !artifactDir.equals(parent))
+				throw new IllegalArgumentException("Version directories of '"
+						+ artifactDir + "' and '" + parent
+						+ "' can not be archived together");
+			artifactDir = parent;
+		}
+		Path zipFile = getZipFile(m_cacheDir.relativize(artifactDir));
+		Files.createDirectories(zipFile.getParent());
+
+		long count = 0L;
+		long size = 0L;
+		try (FileSystem zip = openZip(zipFile, true)) {
+			for (Map.Entry<Path, List<DirectoryScanner.Entry>> entry : versionDirs
+					.entrySet()) {
+				Path dir = zip.getPath(entry.getKey().getFileName().toString());
+				Files.createDirectories(dir);
+				for (DirectoryScanner.Entry file : entry.getValue()) {
+					// Already archived if the build was restored meanwhile
+					Files.copy(file.getPath(), dir.resolve(file.getName()),
+							StandardCopyOption.REPLACE_EXISTING,
+							StandardCopyOption.COPY_ATTRIBUTES);
+					count++;
+					size += file.getSize();
+				}
+			}
+		}
+		m_archivedFiles.addAndGet(count);
+		m_archivedSize.addAndGet(size);
+	}
+
+	/**
+	 * @return Archived builds of a snapshot version, e.g.
+	 *         <code>20200101.120001-1</code>, oldest first
+	 */
+	List<String> listBuilds(String groupId, String artifactId, String version)
+			throws IOException {
+		Path zipFile = getZipFile(getGroupPath(groupId).resolve(artifactId));
+		if (!Files.isRegularFile(zipFile))
+			return Collections.emptyList();
+
+		String filenamePrefix = getFilenamePrefix(artifactId, version);
+		TreeSet<Long> keys = new TreeSet<Long>();
+		try (FileSystem zip = openZip(zipFile, false)) {
+			Path dir = zip.getPath(version);
+			if (!Files.isDirectory(dir))
+				return Collections.emptyList();
+
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (Path entry : stream) {
+					String name = entry.getFileName().toString();
+					if (name.startsWith(filenamePrefix)) {
+						keys.add(SnapshotVersionParser.parse(name,
+								filenamePrefix.length()));
+					}
+				}
+			}
+		}
+		keys.remove(SnapshotVersionParser.INVALID);
+
+		List<String> builds = new ArrayList<String>(keys.size());
+		for (Long key : keys) {
+			builds.add(SnapshotVersionParser.format(key));
+		}
+		return builds;
+	}
+
+	/**
+	 * Copies all files of an archived build back into its version directory
+	 * of the cache. The build stays in the archive.
+	 *
+	 * @return Number of restored files, 0 if the build is not archived
+	 */
+	int restore(String groupId, String artifactId, String version,
+			String build) throws IOException {
+		Path zipFile = getZipFile(getGroupPath(groupId).resolve(artifactId));
+		if (!Files.isRegularFile(zipFile))
+			return 0;
+
+		Path versionDir = m_cacheDir.resolve(getGroupPath(groupId))
+				.resolve(artifactId).resolve(version);
+		String filenamePrefix = getFilenamePrefix(artifactId, version) + build;
+
+		int restored = 0;
+		try (FileSystem zip = openZip(zipFile, false)) {
+			Path dir = zip.getPath(version);
+			if (!Files.isDirectory(dir))
+				return 0;
+
+			Files.createDirectories(versionDir);
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (Path entry : stream) {
+					String name = entry.getFileName().toString();
+					if (!isBuild(name, filenamePrefix))
+						continue;
+
+					Files.copy(entry, versionDir.resolve(name),
+							StandardCopyOption.REPLACE_EXISTING,
+							StandardCopyOption.COPY_ATTRIBUTES);
+					restored++;
+				}
+			}
+		}
+		return restored;
+	}
+
+	long getArchivedFiles() {
+		return m_archivedFiles.get();
+	}
+
+	/**
+	 * @return Uncompressed size of the archived files
+	 */
+	long getArchivedSize() {
+		return m_archivedSize.get();
+	}
+
+	/**
+	 * Drops the counts of the previous run.
+	 */
+	void resetStatistics() {
+		m_archivedFiles.set(0L);
+		m_archivedSize.set(0L);
+	}
+
+	Path getRoot() {
+		return m_root;
+	}
+
+	private Path getZipFile(Path artifactPath) {
+		Path groupDir = (artifactPath.getParent() != null) ? m_root
+				.resolve(artifactPath.getParent().toString()) : m_root;
+		return groupDir.resolve(artifactPath.getFileName().toString()
+				+ ARCHIVE_SUFFIX);
+	}
+
+	private Path getGroupPath(String groupId) {
+		return m_cacheDir.getFileSystem().getPath(
+				groupId.replace('.', '/'));
+	}
+
+	/**
+	 * @return Prefix of the timestamped file names of a snapshot version,
+	 *         e.g. <code>lib-1.0-</code> for version <code>1.0-SNAPSHOT</code>
+	 */
+	private static String getFilenamePrefix(String artifactId, String version) {
+		String baseVersion = version.endsWith("SNAPSHOT") ? version.substring(
+				0, version.length() - "SNAPSHOT".length()) : version;
+		return artifactId + "-" + baseVersion;
+	}
+
+	private static boolean isBuild(String name, String buildPrefix) {
+		// The build number must not continue, e.g. build 1 is not build 12
+		return name.startsWith(buildPrefix)
+				&& name.length() > buildPrefix.length()
+				&& !Character.isDigit(name.charAt(buildPrefix.length()));
+	}
+
+	private static FileSystem openZip(Path zipFile, boolean create)
+			throws IOException {
+		Map<String, Object> env = new HashMap<String, Object>();
+		if (create) {
+			env.put("create", "true");
+		}
+		// Entries are buffered in temporary files instead of memory
+		env.put("useTempFile", Boolean.TRUE);
+		URI uri = URI.create("jar:" + zipFile.toUri());
+		return FileSystems.newFileSystem(uri, env);
+	}
+}
@@ -0,0 +1,349 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Reads and updates the <code>maven-metadata-*.xml</code> files of a
+ * snapshot version directory with streaming StAX, documents are never built
+ * as a tree.
+ * <p>
+ * Metadata of a remote repository names the current build in
+ * <code>versioning/snapshot</code> and lists the files of the builds in
+ * <code>versioning/snapshotVersions</code>. Local installs are recorded in
+ * <code>maven-metadata-local.xml</code> with non-timestamped files only.
+ */
+final class SnapshotMetadata {
+	static final String PREFIX = "maven-metadata-";
+
+	static final String SUFFIX = ".xml";
+
+	private static final String LOCAL = PREFIX + "local" + SUFFIX;
+
+	private static final String SNAPSHOT = "snapshot";
+	private static final String TIMESTAMP = "timestamp";
+	private static final String BUILD_NUMBER = "buildNumber";
+	private static final String SNAPSHOT_VERSION = "snapshotVersion";
+	private static final String CLASSIFIER = "classifier";
+	private static final String EXTENSION = "extension";
+	private static final String VALUE = "value";
+
+	private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+	private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory
+			.newInstance();
+	private static final XMLEventFactory EVENT_FACTORY = XMLEventFactory
+			.newInstance();
+
+	private SnapshotMetadata() {
+	}
+
+	/**
+	 * @return <code>true</code> for metadata of a remote repository, local
+	 *         metadata never names timestamped files
+	 */
+	static boolean isRemoteMetadata(String fileName) {
+		return fileName.startsWith(PREFIX) && fileName.endsWith(SUFFIX)
+				&& !LOCAL.equals(fileName);
+	}
+
+	/**
+	 * Finds the current build of a snapshot directory in the metadata of its
+	 * remote repositories. The metadata is trusted only if it was written
+	 * after every timestamped file of the directory and a file of the current
+	 * build is present.
+	 *
+	 * @param metadataFiles
+	 *            Remote metadata files of the directory
+	 * @param filenamePrefix
+	 *            Common prefix of the timestamped file names
+	 * @param lastModified
+	 *            Latest modification time of the timestamped files
+	 * @return Version key of the current build or
+	 *         {@link SnapshotVersionParser#INVALID} if the metadata is missing
+	 *         or not trustworthy
+	 */
+	static long getCurrentBuild(Path versionDir,
+			List<DirectoryScanner.Entry> metadataFiles, String artifactId,
+			String filenamePrefix, long lastModified) {
+		long current = SnapshotVersionParser.INVALID;
+		long written = Long.MIN_VALUE;
+		String currentFile = null;
+		for (DirectoryScanner.Entry file : metadataFiles) {
+			String name = readCurrentFile(file.getPath(), artifactId,
+					filenamePrefix);
+			long key = (name != null) ? SnapshotVersionParser.parse(name,
+					filenamePrefix.length()) : SnapshotVersionParser.INVALID;
+			if (key > current) {
+				current = key;
+				written = file.getAttributes().lastModifiedTime().toMillis();
+				currentFile = name;
+			}
+		}
+		if (current == SnapshotVersionParser.INVALID || lastModified > written)
+			return SnapshotVersionParser.INVALID;
+
+		return Files.exists(versionDir.resolve(currentFile)) ? current
+				: SnapshotVersionParser.INVALID;
+	}
+
+	/**
+	 * Removes <code>snapshotVersion</code> entries of files which no longer
+	 * exist. Entries of the build named current by the file itself are kept
+	 * even if not downloaded, as are entries of non-timestamped files. The
+	 * file is replaced only if an entry was removed.
+	 *
+	 * @param existing
+	 *            Names of the timestamped files still present
+	 * @return <code>true</code> if the file was rewritten
+	 */
+	static boolean removeMissingFiles(Path file, String artifactId,
+			String filenamePrefix, Set<String> existing) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		boolean changed = false;
+
+		try (InputStream in = Files.newInputStream(file)) {
+			XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(in);
+			XMLEventWriter writer = OUTPUT_FACTORY.createXMLEventWriter(out,
+					"UTF-8");
+			try {
+				List<XMLEvent> pending = new ArrayList<XMLEvent>();
+				SnapshotVersion entry = null;
+				String timestamp = null;
+				String buildNumber = null;
+				boolean inSnapshot = false;
+				String element = null;
+
+				while (reader.hasNext()) {
+					XMLEvent event = reader.nextEvent();
+
+					if (event.isCharacters() && event.asCharacters().isWhiteSpace()) {
+						// Indentation goes together with the following element
+						if (entry != null) {
+							entry.m_events.add(event);
+						} else {
+							pending.add(event);
+						}
+						continue;
+					}
+
+					if (event.isStartElement()) {
+						element = event.asStartElement().getName().getLocalPart();
+						if (SNAPSHOT.equals(element)) {
+							inSnapshot = true;
+						} else if (SNAPSHOT_VERSION.equals(element)) {
+							entry = new SnapshotVersion(pending);
+							pending.clear();
+						}
+					} else if (event.isCharacters() && element != null) {
+						String text = event.asCharacters().getData().trim();
+						if (entry != null) {
+							entry.setProperty(element, text);
+						} else if (inSnapshot && TIMESTAMP.equals(element)) {
+							timestamp = text;
+						} else if (inSnapshot && BUILD_NUMBER.equals(element)) {
+							buildNumber = text;
+						}
+					} else if (event.isEndElement()) {
+						element = null;
+						String name = event.asEndElement().getName().getLocalPart();
+						if (SNAPSHOT.equals(name)) {
+							inSnapshot = false;
+						} else if (SNAPSHOT_VERSION.equals(name) && entry != null) {
+							entry.m_events.add(event);
+							long current = (timestamp != null && buildNumber != null) ? SnapshotVersionParser
+									.parseVersion(timestamp + "-" + buildNumber)
+									: SnapshotVersionParser.INVALID;
+							if (entry.isMissing(artifactId, filenamePrefix, existing, current)) {
+								changed = true;
+							} else {
+								for (XMLEvent buffered : entry.m_events) {
+									writer.add(buffered);
+								}
+							}
+							entry = null;
+							continue;
+						}
+					}
+
+					if (entry != null) {
+						entry.m_events.add(event);
+					} else {
+						for (XMLEvent space : pending) {
+							writer.add(space);
+						}
+						pending.clear();
+						writer.add(event);
+						if (event.isStartDocument()) {
+							// Parsers drop the line break after the declaration
+							writer.add(EVENT_FACTORY.createCharacters("\n"));
+						}
+					}
+				}
+				writer.flush();
+			} finally {
+				writer.close();
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("Malformed metadata", e);
+		}
+
+		if (!changed)
+			return false;
+
+		// Readers see either the old or the new file
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.write(tmp, out.toByteArray());
+		try {
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+		return true;
+	}
+
+	/**
+	 * @return Name of a file of the build named by
+	 *         <code>versioning/snapshot</code>, <code>null</code> if the file
+	 *         names no timestamped build or cannot be read
+	 */
+	private static String readCurrentFile(Path file, String artifactId,
+			String filenamePrefix) {
+		try (InputStream in = Files.newInputStream(file)) {
+			XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+			try {
+				String timestamp = null;
+				String buildNumber = null;
+				long current = SnapshotVersionParser.INVALID;
+				boolean inSnapshot = false;
+				SnapshotVersion entry = null;
+				while (reader.hasNext()) {
+					int type = reader.next();
+					if (type == XMLStreamConstants.START_ELEMENT) {
+						String name = reader.getLocalName();
+						if (SNAPSHOT.equals(name)) {
+							inSnapshot = true;
+						} else if (SNAPSHOT_VERSION.equals(name)) {
+							entry = new SnapshotVersion(
+									Collections.<XMLEvent> emptyList());
+						} else if (entry != null) {
+							entry.setProperty(name, reader.getElementText()
+									.trim());
+						} else if (inSnapshot && TIMESTAMP.equals(name)) {
+							timestamp = reader.getElementText().trim();
+						} else if (inSnapshot && BUILD_NUMBER.equals(name)) {
+							buildNumber = reader.getElementText().trim();
+						}
+					} else if (type == XMLStreamConstants.END_ELEMENT) {
+						String name = reader.getLocalName();
+						if (SNAPSHOT.equals(name)) {
+							inSnapshot = false;
+							if (timestamp == null || buildNumber == null)
+								return null;
+							current = SnapshotVersionParser
+									.parseVersion(timestamp + "-" + buildNumber);
+						} else if (SNAPSHOT_VERSION.equals(name) && entry != null) {
+							String fileName = entry.getFileName(artifactId);
+							if (fileName != null
+									&& current != SnapshotVersionParser.INVALID
+									&& SnapshotVersionParser.parse(fileName,
+											filenamePrefix.length()) == current)
+								return fileName;
+							entry = null;
+						}
+					}
+				}
+				return null;
+			} finally {
+				reader.close();
+			}
+		} catch (IOException | XMLStreamException e) {
+			return null;
+		}
+	}
+
+	private static XMLInputFactory createInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		// Text of an element arrives as one event
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+				Boolean.FALSE);
+		return factory;
+	}
+
+	/**
+	 * Buffered <code>snapshotVersion</code> element, written out only if its
+	 * file still exists.
+	 */
+	private static final class SnapshotVersion {
+		private final List<XMLEvent> m_events;
+		private String m_classifier;
+		private String m_extension;
+		private String m_value;
+
+		SnapshotVersion(List<XMLEvent> leadingSpace) {
+			m_events = new ArrayList<XMLEvent>(leadingSpace);
+		}
+
+		void setProperty(String element, String text) {
+			if (CLASSIFIER.equals(element)) {
+				m_classifier = text;
+			} else if (EXTENSION.equals(element)) {
+				m_extension = text;
+			} else if (VALUE.equals(element)) {
+				m_value = text;
+			}
+		}
+
+		boolean isMissing(String artifactId, String filenamePrefix,
+				Set<String> existing, long current) {
+			String name = getFileName(artifactId);
+			if (name == null)
+				return false;
+
+			long key = SnapshotVersionParser.parse(name, filenamePrefix.length());
+			if (key == SnapshotVersionParser.INVALID || key == current)
+				return false;
+			return !existing.contains(name);
+		}
+
+		/**
+		 * @return Name of the file described by the entry, <code>null</code>
+		 *         if incomplete
+		 */
+		String getFileName(String artifactId) {
+			if (m_value == null || m_extension == null)
+				return null;
+
+			// Value is the unique version, e.g. 1.0-20200103.120003-3
+			StringBuilder name = new StringBuilder(artifactId).append('-')
+					.append(m_value);
+			if (m_classifier != null && !m_classifier.isEmpty()) {
+				name.append('-').append(m_classifier);
+			}
+			name.append('.').append(m_extension);
+			return name.toString();
+		}
+	}
+}
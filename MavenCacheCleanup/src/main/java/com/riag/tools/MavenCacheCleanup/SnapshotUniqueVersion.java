@@ -3,41 +3,45 @@
  */
 package com.riag.tools.MavenCacheCleanup;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.TimeZone;
 
 /**
  * Helper class holding Timestamp and Build number.
- * Class is comparable to itself
+ * Class is comparable to itself.
+ * It is a thin view over the packed version key produced by {@link SnapshotVersionParser}
  *
  */
 public final class SnapshotUniqueVersion implements Comparable<SnapshotUniqueVersion>
 {
-  private final Date m_timestamp;
-  private final int m_buildNo;
+  private final long m_key;
   
-  SnapshotUniqueVersion(String date, String time, String buildNo) throws ParseException
+  SnapshotUniqueVersion(long key)
   {
-    m_timestamp = getFormat().parse(date + "." + time);
-    m_buildNo = Integer.parseInt(buildNo);
+    m_key = key;
+  }
+  
+  /**
+   * @return Packed version key, keys compare like the versions they represent
+   */
+  public long getKey()
+  {
+    return m_key;
   }
   
   public Date getTimestamp()
   {
-    return m_timestamp;
+    return new Date(SnapshotVersionParser.getEpochSeconds(m_key) * 1000L);
   }
   
   public int getBuildNo()
   {
-    return m_buildNo;
+    return SnapshotVersionParser.getBuildNo(m_key);
   }
   
   @Override
   public String toString()
   {
-    return getFormat().format(m_timestamp) + "-" + Integer.toString(m_buildNo);
+    return SnapshotVersionParser.format(m_key);
   }
   
   @Override
@@ -47,8 +51,7 @@ public final class SnapshotUniqueVersion implements Comparable<SnapshotUniqueVer
     if(this == obj) return true;
     if(obj instanceof SnapshotUniqueVersion)
     {
-      SnapshotUniqueVersion ver = (SnapshotUniqueVersion) obj;
-      return (getTimestamp().getTime() == ver.getTimestamp().getTime()) && (getBuildNo() == ver.getBuildNo()); 
+      return m_key == ((SnapshotUniqueVersion) obj).m_key;
     }
     return false;
   }
@@ -56,26 +59,13 @@ public final class SnapshotUniqueVersion implements Comparable<SnapshotUniqueVer
   @Override
   public int hashCode()
   {
-    return toString().hashCode();
+    return (int) (m_key ^ (m_key >>> 32));
   }
   
   public int compareTo(SnapshotUniqueVersion o)
   {
     if(o == null) return 1; // Non-null is greater then null
-      
-    int retval = getTimestamp().compareTo(o.getTimestamp());
-    if(retval != 0) return retval;
     
-    // Compare build Numbers
-    if(getBuildNo() < o.getBuildNo()) return -1;
-    if(getBuildNo() > o.getBuildNo()) return 1;
-    return 0;
-  }
-
-  private static SimpleDateFormat getFormat()
-  {
-    SimpleDateFormat fmt = new SimpleDateFormat("yyyyMMdd.HHmmss");
-    fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
-    return fmt;
+    return (m_key < o.m_key) ? -1 : ((m_key == o.m_key) ? 0 : 1);
   }
 }
@@ -0,0 +1,247 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a cache clean between regular runs by watching snapshot version
+ * directories and cleaning a directory as soon as new builds were installed
+ * into it.
+ * <p>
+ * Snapshot directories which received new builds since their last cleanup
+ * are watched, free watches are filled with recently modified directories.
+ * Registrations are kept in least recently active order and limited in
+ * number, the watch of the least recently active directory is cancelled when
+ * an active directory needs a watch and the limit is reached. Directories
+ * which are not watched, e.g. new snapshot versions, are picked up by a
+ * periodic incremental rescan, which also runs as soon as the watch service
+ * reports lost events.
+ * <p>
+ * Events of a directory are debounced, the directory is cleaned once no
+ * file was created in it for {@value #DEBOUNCE_MILLIS} ms, so an install
+ * writing several files triggers a single cleanup.
+ */
+final class SnapshotWatcher {
+	/**
+	 * Directories modified within this period are considered active and
+	 * get watched
+	 */
+	static final long ACTIVE_PERIOD = 7L * 24L * 60L * 60L * 1000L;
+
+	static final long DEBOUNCE_MILLIS = 5000L;
+
+	/**
+	 * Runs an incremental scan of the whole cache
+	 */
+	interface Rescan {
+		void rescan() throws IOException;
+	}
+
+	private final CacheWalker m_walker;
+	private final WatchService m_service;
+	private final Map<Path, WatchKey> m_watches;
+	private final Map<Path, Long> m_pending;
+	private final int m_maxWatches;
+	private final boolean m_verbose;
+	private volatile boolean m_stopped;
+	private boolean m_overflow;
+	private boolean m_limitReported;
+
+	/**
+	 * @param maxWatches
+	 *            Maximal number of watched directories
+	 * @param verbose
+	 *            Report registered and cancelled watches
+	 */
+	SnapshotWatcher(CacheWalker walker, FileSystem fileSystem,
+			int maxWatches, boolean verbose) throws IOException {
+		m_walker = walker;
+		m_maxWatches = maxWatches;
+		m_service = fileSystem.newWatchService();
+		m_verbose = verbose;
+		m_pending = new HashMap<Path, Long>();
+		m_watches = new LinkedHashMap<Path, WatchKey>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Path, WatchKey> eldest) {
+				if (size() <= m_maxWatches)
+					return false;
+
+				eldest.getValue().cancel();
+				if (m_verbose) {
+					System.out.println("Stopped watching " + eldest.getKey());
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Watches a snapshot directory visited by the walker if it was modified
+	 * recently and the limit is not reached yet. Called from traversal
+	 * threads.
+	 */
+	synchronized void visitSnapshotDir(Path versionDir, long lastModified) {
+		if (m_watches.size() >= m_maxWatches
+				|| m_watches.containsKey(versionDir)
+				|| lastModified < System.currentTimeMillis() - ACTIVE_PERIOD)
+			return;
+
+		register(versionDir);
+	}
+
+	/**
+	 * Watches a snapshot directory which had outdated builds, replacing the
+	 * least recently active watch if necessary. Called from traversal
+	 * threads.
+	 */
+	synchronized void watchActiveDir(Path versionDir) {
+		if (m_watches.get(versionDir) == null) {
+			register(versionDir);
+		}
+	}
+
+	synchronized int getWatchedDirs() {
+		return m_watches.size();
+	}
+
+	private void register(Path versionDir) {
+		if (m_stopped)
+			return;
+
+		try {
+			WatchKey key = versionDir.register(m_service,
+					StandardWatchEventKinds.ENTRY_CREATE);
+			m_watches.put(versionDir, key);
+			if (m_verbose) {
+				System.out.println("Watching " + versionDir);
+			}
+		} catch (ClosedWatchServiceException e) {
+			// Stopped meanwhile
+		} catch (IOException e) {
+			// Usually the limit of the operating system, the rescan still
+			// covers the directory
+			if (!m_limitReported) {
+				System.err.println("Failed to watch '" + versionDir + "': " + e);
+				m_limitReported = true;
+			}
+		}
+	}
+
+	/**
+	 * Processes events until {@link #stop()} is called.
+	 *
+	 * @param rescanInterval
+	 *            Time between incremental rescans in milliseconds
+	 */
+	void run(Rescan rescan, long rescanInterval) {
+		long nextRescan = System.currentTimeMillis() + rescanInterval;
+
+		try {
+			while (!m_stopped) {
+				long now = System.currentTimeMillis();
+				long timeout = Math.min(nextRescan, getNextSettled()) - now;
+				WatchKey key = (timeout > 0L) ? m_service.poll(timeout,
+						TimeUnit.MILLISECONDS) : m_service.poll();
+				while (key != null) {
+					processEvents(key);
+					key = m_service.poll();
+				}
+
+				cleanSettledDirs();
+
+				now = System.currentTimeMillis();
+				if (m_overflow || now >= nextRescan) {
+					if (m_overflow) {
+						System.out.println("Watch events were lost, rescanning the cache");
+					}
+					m_overflow = false;
+					try {
+						rescan.rescan();
+					} catch (IOException e) {
+						System.err.println("Failed to rescan the cache: " + e);
+					}
+					nextRescan = System.currentTimeMillis() + rescanInterval;
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			// Stopped
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stops watching, {@link #run(Rescan, long)} returns after the current
+	 * cleanup or rescan.
+	 */
+	void stop() {
+		m_stopped = true;
+		try {
+			m_service.close();
+		} catch (IOException e) {
+			// Nothing to release any more
+		}
+	}
+
+	private void processEvents(WatchKey key) {
+		Path dir = (Path) key.watchable();
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				m_overflow = true;
+			} else {
+				m_pending.put(dir, System.currentTimeMillis());
+			}
+		}
+
+		synchronized (this) {
+			if (key.reset()) {
+				// Keep active directories watched
+				m_watches.get(dir);
+			} else {
+				// Directory was removed
+				m_watches.remove(dir);
+				m_pending.remove(dir);
+			}
+		}
+	}
+
+	private long getNextSettled() {
+		long next = Long.MAX_VALUE;
+		for (Long lastEvent : m_pending.values()) {
+			next = Math.min(next, lastEvent + DEBOUNCE_MILLIS);
+		}
+		return next;
+	}
+
+	private void cleanSettledDirs() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<Path, Long>> it = m_pending.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Path, Long> entry = it.next();
+			if (entry.getValue() + DEBOUNCE_MILLIS > now)
+				continue;
+
+			it.remove();
+			long deleted = m_walker.getDeleted();
+			m_walker.cleanSnapshot(entry.getKey());
+			deleted = m_walker.getDeleted() - deleted;
+			if (deleted > 0) {
+				System.out.println("Cleaned " + entry.getKey() + ", deleted "
+						+ deleted + " file(s).");
+			}
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * External sort of version directory usage records by the time of last use.
+ * <p>
+ * At most <code>runSize</code> records are held in memory. A full buffer is
+ * sorted and spilled to a temporary run file, the runs are merged with a
+ * priority queue holding one record per run when the sorted records are
+ * read. Memory stays bounded no matter how many version directories the
+ * cache holds.
+ */
+final class UsageSorter implements Closeable {
+	static final int DEFAULT_RUN_SIZE = 64 * 1024;
+
+	private final int m_runSize;
+	private final List<Path> m_runs;
+	private Record[] m_buffer;
+	private int m_count;
+
+	UsageSorter() {
+		this(DEFAULT_RUN_SIZE);
+	}
+
+	UsageSorter(int runSize) {
+		m_runSize = Math.max(1, runSize);
+		m_runs = new ArrayList<Path>();
+		m_buffer = new Record[Math.min(m_runSize, 1024)];
+		m_count = 0;
+	}
+
+	synchronized void add(long lastUsed, long size, String path)
+			throws IOException {
+		if (m_count == m_buffer.length) {
+			if (m_count == m_runSize) {
+				spill();
+			} else {
+				m_buffer = Arrays.copyOf(m_buffer,
+						Math.min(m_runSize, m_buffer.length * 2));
+			}
+		}
+		m_buffer[m_count++] = new Record(lastUsed, size, path);
+	}
+
+	/**
+	 * Finishes adding and returns all records, least recently used first.
+	 */
+	synchronized Cursor sort() throws IOException {
+		Arrays.sort(m_buffer, 0, m_count);
+		if (m_runs.isEmpty()) {
+			// Everything fitted into memory
+			return new ArrayCursor(m_buffer, m_count);
+		}
+
+		spill();
+		MergeCursor cursor = new MergeCursor();
+		try {
+			for (Path run : m_runs) {
+				cursor.addRun(run);
+			}
+		} catch (IOException e) {
+			cursor.close();
+			throw e;
+		}
+		return cursor;
+	}
+
+	/**
+	 * Removes temporary run files.
+	 */
+	public synchronized void close() {
+		for (Path run : m_runs) {
+			try {
+				Files.deleteIfExists(run);
+			} catch (IOException e) {
+				// Temporary file, nothing else to do
+			}
+		}
+		m_runs.clear();
+		m_count = 0;
+	}
+
+	private void spill() throws IOException {
+		Arrays.sort(m_buffer, 0, m_count);
+		Path run = Files.createTempFile("m2cachecleanup-usage", ".run");
+		m_runs.add(run);
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(run)))) {
+			for (int i = 0; i < m_count; i++) {
+				m_buffer[i].write(out);
+				m_buffer[i] = null;
+			}
+		}
+		m_count = 0;
+	}
+
+	/**
+	 * Usage of one version directory.
+	 */
+	static final class Record implements Comparable<Record> {
+		private final long m_lastUsed;
+		private final long m_size;
+		private final String m_path;
+
+		Record(long lastUsed, long size, String path) {
+			m_lastUsed = lastUsed;
+			m_size = size;
+			m_path = path;
+		}
+
+		long getLastUsed() {
+			return m_lastUsed;
+		}
+
+		long getSize() {
+			return m_size;
+		}
+
+		String getPath() {
+			return m_path;
+		}
+
+		public int compareTo(Record other) {
+			if (m_lastUsed != other.m_lastUsed)
+				return (m_lastUsed < other.m_lastUsed) ? -1 : 1;
+			// Same time, keep the order stable between runs
+			return m_path.compareTo(other.m_path);
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeLong(m_lastUsed);
+			out.writeLong(m_size);
+			out.writeUTF(m_path);
+		}
+
+		static Record read(DataInputStream in) throws IOException {
+			long lastUsed;
+			try {
+				lastUsed = in.readLong();
+			} catch (EOFException e) {
+				return null;
+			}
+			long size = in.readLong();
+			return new Record(lastUsed, size, in.readUTF());
+		}
+	}
+
+	/**
+	 * Sorted records, read one by one.
+	 */
+	abstract static class Cursor implements Closeable {
+		/**
+		 * @return Next record or <code>null</code> at the end
+		 */
+		abstract Record next() throws IOException;
+
+		public void close() {
+		}
+	}
+
+	private static final class ArrayCursor extends Cursor {
+		private final Record[] m_records;
+		private final int m_count;
+		private int m_next;
+
+		ArrayCursor(Record[] records, int count) {
+			m_records = records;
+			m_count = count;
+		}
+
+		@Override
+		Record next() {
+			return (m_next < m_count) ? m_records[m_next++] : null;
+		}
+	}
+
+	private static final class MergeCursor extends Cursor {
+		private final PriorityQueue<Run> m_queue = new PriorityQueue<Run>();
+		private final List<Run> m_open = new ArrayList<Run>();
+
+		void addRun(Path file) throws IOException {
+			Run run = new Run(new DataInputStream(new BufferedInputStream(
+					Files.newInputStream(file))));
+			m_open.add(run);
+			if (run.advance()) {
+				m_queue.add(run);
+			}
+		}
+
+		@Override
+		Record next() throws IOException {
+			Run run = m_queue.poll();
+			if (run == null)
+				return null;
+
+			Record record = run.m_current;
+			if (run.advance()) {
+				m_queue.add(run);
+			}
+			return record;
+		}
+
+		@Override
+		public void close() {
+			for (Run run : m_open) {
+				try {
+					run.m_in.close();
+				} catch (IOException e) {
+					// Read only, nothing is lost
+				}
+			}
+			m_open.clear();
+			m_queue.clear();
+		}
+	}
+
+	private static final class Run implements Comparable<Run> {
+		private final DataInputStream m_in;
+		private Record m_current;
+
+		Run(DataInputStream in) {
+			m_in = in;
+		}
+
+		boolean advance() throws IOException {
+			m_current = Record.read(m_in);
+			return m_current != null;
+		}
+
+		public int compareTo(Run other) {
+			return m_current.compareTo(other.m_current);
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Decides whether a directory name is a version, without regular
+ * expressions on the common path.
+ * <p>
+ * Versions used to be recognized by {@link #VERSION_PATTERN}. As its groups
+ * are all optional after the leading digits and <code>.</code> matches any
+ * character but line terminators, a name matches exactly if it starts with
+ * an ASCII digit and contains no line terminator. This is checked by a single
+ * scan over the name.
+ * <p>
+ * Additional version prefixes, e.g. <code>trunk</code> or <code>main</code>,
+ * are kept in a character trie. They used to be alternatives in front of the
+ * numeric form, so a name matches if it starts with one of them and no line
+ * terminator follows the prefix. Prefixes are regular expressions, those
+ * using anything but literal characters fall back to the combined pattern.
+ */
+final class VersionClassifier {
+	private static final String VERSION_PATTERN_PREFIX = "(\\d+)(\\.)?(\\d+)?(\\.)?(.+)?";
+	private static final String VERSION_PATTERN_SUFFIX = "(\\-)?(.+)?";
+	private static final String VERSION_STRING_DELIMITER = ",";
+	private static final String REGEX_CHARS = "\\^$.|?*+()[]{}";
+
+	/**
+	 * Pattern of numeric versions, as matched by {@link #NUMERIC}
+	 */
+	static final Pattern VERSION_PATTERN = Pattern.compile("("
+			+ VERSION_PATTERN_PREFIX + VERSION_PATTERN_SUFFIX + ")");
+
+	/**
+	 * Recognizes numeric versions only
+	 */
+	static final VersionClassifier NUMERIC = new VersionClassifier(null, null);
+
+	private final Node m_prefixes;
+	private final Pattern m_pattern;
+
+	private VersionClassifier(Node prefixes, Pattern pattern) {
+		m_prefixes = prefixes;
+		m_pattern = pattern;
+	}
+
+	/**
+	 * @param versionString
+	 *            Comma separated version prefixes recognized in addition to
+	 *            numeric versions, <code>null</code> or empty for none
+	 */
+	static VersionClassifier create(String versionString) {
+		if (versionString == null || versionString.isEmpty())
+			return NUMERIC;
+
+		List<String> prefixes = new ArrayList<String>();
+		boolean literal = true;
+		for (String prefix : versionString.split(VERSION_STRING_DELIMITER)) {
+			prefixes.add(prefix);
+			literal &= isLiteral(prefix);
+		}
+		if (!literal)
+			return new VersionClassifier(null, compile(prefixes));
+
+		Node root = new Node();
+		for (String prefix : prefixes) {
+			Node node = root;
+			for (int i = 0; i < prefix.length(); i++) {
+				node = node.child(prefix.charAt(i));
+			}
+			node.m_terminal = true;
+		}
+		return new VersionClassifier(root, null);
+	}
+
+	/**
+	 * @return <code>true</code> if the name is a version
+	 */
+	boolean isVersion(String name) {
+		if (m_pattern != null)
+			return m_pattern.matcher(name).matches();
+
+		int lastTerminator = lastLineTerminator(name);
+		if (lastTerminator < 0 && !name.isEmpty() && name.charAt(0) >= '0'
+				&& name.charAt(0) <= '9')
+			return true;
+
+		// Prefixes may contain line terminators, the rest of the name not
+		Node node = m_prefixes;
+		for (int i = 0; node != null; i++) {
+			if (node.m_terminal && i > lastTerminator)
+				return true;
+			if (i == name.length())
+				break;
+			node = node.find(name.charAt(i));
+		}
+		return false;
+	}
+
+	/**
+	 * @return Prefixes as alternatives to the numeric form, followed by the
+	 *         common suffix
+	 */
+	private static Pattern compile(List<String> prefixes) {
+		StringBuilder versions = new StringBuilder();
+		for (String prefix : prefixes) {
+			versions.append("(").append(prefix).append(")|");
+		}
+		return Pattern.compile("((" + versions + "(" + VERSION_PATTERN_PREFIX
+				+ "))" + VERSION_PATTERN_SUFFIX + ")");
+	}
+
+	private static boolean isLiteral(String prefix) {
+		for (int i = 0; i < prefix.length(); i++) {
+			if (REGEX_CHARS.indexOf(prefix.charAt(i)) >= 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return Index of the last character <code>.</code> does not match, -1
+	 *         if there is none
+	 */
+	private static int lastLineTerminator(String name) {
+		for (int i = name.length() - 1; i >= 0; i--) {
+			char c = name.charAt(i);
+			if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028'
+					|| c == '\u2029')
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Node of the prefix trie, reached after matching one character.
+	 */
+	private static final class Node {
+		private char[] m_chars = new char[0];
+		private Node[] m_children = new Node[0];
+		/** A prefix ends here */
+		private boolean m_terminal;
+
+		Node find(char c) {
+			for (int i = 0; i < m_chars.length; i++) {
+				if (m_chars[i] == c)
+					return m_children[i];
+			}
+			return null;
+		}
+
+		Node child(char c) {
+			Node child = find(c);
+			if (child != null)
+				return child;
+
+			int n = m_chars.length;
+			char[] chars = new char[n + 1];
+			Node[] children = new Node[n + 1];
+			System.arraycopy(m_chars, 0, chars, 0, n);
+			System.arraycopy(m_children, 0, children, 0, n);
+			chars[n] = c;
+			children[n] = new Node();
+			m_chars = chars;
+			m_children = children;
+			return children[n];
+		}
+	}
+}
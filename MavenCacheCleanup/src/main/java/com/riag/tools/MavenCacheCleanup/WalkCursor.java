@@ -0,0 +1,131 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Position of a time limited walk, stored in
+ * <code>.m2cachecleanup/cursor</code> inside the cache directory.
+ * <p>
+ * Such a walk visits sub-directories sorted by name, so the cache is always
+ * traversed in the same order. The cursor is the path of the last directory
+ * whose whole subtree was processed. The next walk skips every directory up
+ * to and including it, so over several runs the whole cache is covered.
+ * After a complete walk the cursor is removed and the next walk starts over.
+ */
+final class WalkCursor {
+	private static final String CURSOR_FILE = "cursor";
+
+	private final Path m_cacheDir;
+	private final Path m_file;
+	private final List<String> m_names;
+
+	private WalkCursor(Path cacheDir, List<String> names) {
+		m_cacheDir = cacheDir;
+		m_file = cacheDir.resolve(ScanIndex.STATE_DIR).resolve(CURSOR_FILE);
+		m_names = names;
+	}
+
+	/**
+	 * Creates a cursor at the beginning of the cache.
+	 */
+	static WalkCursor create(Path cacheDir) {
+		return new WalkCursor(cacheDir, Collections.<String> emptyList());
+	}
+
+	/**
+	 * @return Cursor of the previous walk, an empty one if it was complete
+	 * @throws IOException
+	 *             if the cursor exists but cannot be read
+	 */
+	static WalkCursor load(Path cacheDir) throws IOException {
+		Path file = cacheDir.resolve(ScanIndex.STATE_DIR).resolve(CURSOR_FILE);
+		List<String> names = new ArrayList<String>();
+		try {
+			String cursor = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+			for (String name : cursor.split("/")) {
+				if (!name.isEmpty()) {
+					names.add(name);
+				}
+			}
+		} catch (NoSuchFileException e) {
+			// Previous walk was complete or there was none
+		}
+		return new WalkCursor(cacheDir, Collections.unmodifiableList(names));
+	}
+
+	/**
+	 * @return <code>true</code> if the walk starts at the beginning of the
+	 *         cache
+	 */
+	boolean isEmpty() {
+		return m_names.isEmpty();
+	}
+
+	/**
+	 * @param dir
+	 *            Directory inside the cache
+	 * @return <code>true</code> if the previous walk processed the whole
+	 *         directory, i.e. it is the cursor, below it or sorted before it.
+	 *         Directories on the path to the cursor are not covered.
+	 */
+	boolean covers(Path dir) {
+		if (m_names.isEmpty())
+			return false;
+
+		Path relative = m_cacheDir.relativize(dir);
+		int depth = relative.getNameCount();
+		for (int i = 0; i < depth && i < m_names.size(); i++) {
+			int order = relative.getName(i).toString().compareTo(m_names.get(i));
+			if (order != 0)
+				return order < 0;
+		}
+		return depth >= m_names.size();
+	}
+
+	/**
+	 * Stores the last directory processed completely.
+	 */
+	void save(Path lastDir) throws IOException {
+		StringBuilder cursor = new StringBuilder();
+		for (Path name : m_cacheDir.relativize(lastDir)) {
+			if (cursor.length() > 0) {
+				cursor.append('/');
+			}
+			cursor.append(name.toString());
+		}
+
+		Path stateDir = m_file.getParent();
+		Files.createDirectories(stateDir);
+		Path tmpFile = stateDir.resolve(CURSOR_FILE + ".tmp");
+		Files.write(tmpFile, cursor.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+		Files.move(tmpFile, m_file, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Removes the cursor after a complete walk.
+	 */
+	void clear() throws IOException {
+		Files.deleteIfExists(m_file);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder cursor = new StringBuilder();
+		for (String name : m_names) {
+			if (cursor.length() > 0) {
+				cursor.append('/');
+			}
+			cursor.append(name);
+		}
+		return cursor.toString();
+	}
+}
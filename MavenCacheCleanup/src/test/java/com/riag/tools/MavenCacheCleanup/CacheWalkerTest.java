@@ -0,0 +1,105 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Cleaning snapshot directories together with the scan index.
+ */
+public class CacheWalkerTest extends TempDirectoryCase
+{
+  private static final long MTIME = 1500000000000L;
+
+  private Path m_artifactDir;
+  private Path m_versionDir;
+
+  @Override
+  protected void setUp() throws IOException
+  {
+    super.setUp();
+    m_artifactDir = m_root.resolve("com/acme/foo");
+    m_versionDir = m_artifactDir.resolve("1.0-SNAPSHOT");
+    write("com/acme/foo/1.0-SNAPSHOT/foo-1.0-20200101.120000-1.jar", new byte[] { 1 });
+    write("com/acme/foo/1.0-SNAPSHOT/foo-1.0-20200102.120000-2.jar", new byte[] { 2 });
+    setDirectoryTimes(MTIME);
+  }
+
+  public void testOutdatedBuildsAreDeleted() throws IOException
+  {
+    clean();
+
+    assertFalse(Files.exists(m_versionDir.resolve("foo-1.0-20200101.120000-1.jar")));
+    assertTrue(Files.exists(m_versionDir.resolve("foo-1.0-20200102.120000-2.jar")));
+  }
+
+  public void testUnlistableSnapshotDirIsNotRecorded() throws IOException
+  {
+    clean();
+    setDirectoryTimes(MTIME);
+    assertTrue(load().isSnapshotUnchanged(m_versionDir, MTIME));
+
+    // The cached listing of the artifact still names the directory, listing it fails
+    delete(m_versionDir);
+    Files.write(m_versionDir, new byte[0]);
+    Files.setLastModifiedTime(m_versionDir, FileTime.fromMillis(MTIME + 1000L));
+    Files.setLastModifiedTime(m_artifactDir, FileTime.fromMillis(MTIME));
+    clean();
+
+    assertFalse(load().isSnapshotUnchanged(m_versionDir, MTIME + 1000L));
+  }
+
+  private void clean() throws IOException
+  {
+    ScanIndex index = load();
+    CacheWalker walker = new CacheWalker(false);
+    walker.setScanIndex(index);
+    walker.processDirectory(m_root.toFile());
+    index.save();
+  }
+
+  private ScanIndex load() throws IOException
+  {
+    return ScanIndex.load(m_root, RetentionPolicy.LATEST.toString(), null);
+  }
+
+  /**
+   * Dates the directories back, so the scan index trusts their times.
+   */
+  private void setDirectoryTimes(final long mtime) throws IOException
+  {
+    Files.walkFileTree(m_root, new SimpleFileVisitor<Path>()
+    {
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException
+      {
+        if(!dir.getFileName().toString().equals(ScanIndex.STATE_DIR)) Files.setLastModifiedTime(dir, FileTime.fromMillis(mtime));
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private static void delete(Path dir) throws IOException
+  {
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>()
+    {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+      {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException
+      {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
@@ -0,0 +1,91 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+/**
+ * Linking of identical files within one cache and across caches.
+ */
+public class DeduplicatorTest extends TempDirectoryCase
+{
+  private static final int SIZE = 3 * (int) Deduplicator.MIN_FILE_SIZE;
+
+  public void testLinksAcrossCaches() throws IOException
+  {
+    Path first = write("executor-1/repository/com/acme/foo/1.0/foo-1.0.jar", content((byte) 1));
+    Path second = write("executor-2/repository/com/acme/foo/1.0/foo-1.0.jar", content((byte) 1));
+    Path third = write("executor-3/repository/com/acme/foo/1.0/foo-1.0.jar", content((byte) 1));
+
+    Deduplicator dedup = new Deduplicator(false);
+    dedup.addVersionDir(first.getParent());
+    dedup.addVersionDir(second.getParent());
+    dedup.addVersionDir(third.getParent());
+    dedup.run(2);
+
+    assertEquals(2L, dedup.getLinkedFiles());
+    assertEquals(2L * SIZE, dedup.getSavedSpace());
+    assertEquals(0L, dedup.getFailedToLink());
+    Object fileKey = fileKey(first);
+    if(fileKey != null)
+    {
+      assertEquals(fileKey, fileKey(second));
+      assertEquals(fileKey, fileKey(third));
+    }
+    assertTrue(Arrays.equals(content((byte) 1), Files.readAllBytes(third)));
+
+    // Already linked files are not linked again
+    dedup.run(1);
+    assertEquals(2L, dedup.getLinkedFiles());
+  }
+
+  public void testDifferentContentIsKept() throws IOException
+  {
+    byte[] other = content((byte) 1);
+    other[SIZE - 1] = 2;
+    Path first = write("a/com/acme/foo/1.0/foo-1.0.jar", content((byte) 1));
+    Path second = write("b/com/acme/foo/1.0/foo-1.0.jar", other);
+    Path small = write("b/com/acme/foo/1.0/foo-1.0.pom", new byte[100]);
+    write("a/com/acme/foo/1.0/foo-1.0.pom", new byte[100]);
+
+    Deduplicator dedup = new Deduplicator(false);
+    dedup.addVersionDir(first.getParent());
+    dedup.addVersionDir(second.getParent());
+    dedup.run(1);
+
+    assertEquals(0L, dedup.getLinkedFiles());
+    assertTrue(Arrays.equals(other, Files.readAllBytes(second)));
+    assertEquals(100L, Files.size(small));
+  }
+
+  public void testMetadataAndTrackingFilesAreNotLinked() throws IOException
+  {
+    String[] names = { "maven-metadata-central.xml", "_remote.repositories", "resolver-status.properties",
+        "foo-1.0.jar.lastUpdated", "bar-1.0.jar" };
+    Deduplicator dedup = new Deduplicator(false);
+    for(String cache : new String[] { "a", "b" })
+    {
+      for(String name : names) write(cache + "/com/acme/foo/1.0/" + name, content((byte) 1));
+      dedup.addVersionDir(m_root.resolve(cache + "/com/acme/foo/1.0"));
+    }
+    dedup.run(1);
+
+    assertEquals(0L, dedup.getLinkedFiles());
+    assertTrue(Deduplicator.isArtifactFile(m_root.resolve("a/com/acme/foo/1.0/foo-1.0-sources.jar")));
+    assertFalse(Deduplicator.isArtifactFile(m_root.resolve("a/com/acme/foo/1.0/foo-1.0.jar.m2cachecleanup-link")));
+  }
+
+  private static byte[] content(byte value)
+  {
+    byte[] content = new byte[SIZE];
+    Arrays.fill(content, value);
+    return content;
+  }
+
+  private static Object fileKey(Path file) throws IOException
+  {
+    return Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+  }
+}
@@ -0,0 +1,95 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writing and executing deletion plans.
+ */
+public class DeletionPlanTest extends TempDirectoryCase
+{
+  private Path m_planFile;
+  private Path m_file;
+
+  @Override
+  protected void setUp() throws IOException
+  {
+    super.setUp();
+    m_planFile = m_root.resolve("plan.txt");
+    m_file = write("com/acme/foo/1.0-SNAPSHOT/foo-1.0-20200101.120000-1.jar", new byte[] { 1, 2, 3 });
+  }
+
+  public void testCompletePlanIsExecuted() throws IOException
+  {
+    DeletionPlan.Writer plan = new DeletionPlan.Writer(m_planFile, m_root);
+    try
+    {
+      plan.delete(m_file, Files.readAttributes(m_file, BasicFileAttributes.class));
+      plan.complete();
+    }
+    finally
+    {
+      plan.close();
+    }
+    assertEquals(1L, plan.getFiles());
+    assertEquals(3L, plan.getSize());
+
+    assertEquals(m_root.toAbsolutePath().normalize(), DeletionPlan.readRoot(m_planFile));
+    final List<Path> deleted = new ArrayList<Path>();
+    long skipped = DeletionPlan.execute(m_planFile, m_root, new FileDeleter()
+    {
+      public void delete(Path file, BasicFileAttributes attrs)
+      {
+        deleted.add(file);
+      }
+    });
+    assertEquals(0L, skipped);
+    assertEquals(1, deleted.size());
+    assertEquals(m_file.toAbsolutePath().normalize(), deleted.get(0));
+  }
+
+  public void testChangedFileIsSkipped() throws IOException
+  {
+    DeletionPlan.Writer plan = new DeletionPlan.Writer(m_planFile, m_root);
+    try
+    {
+      plan.delete(m_file, Files.readAttributes(m_file, BasicFileAttributes.class));
+      plan.complete();
+    }
+    finally
+    {
+      plan.close();
+    }
+    Files.write(m_file, new byte[] { 1, 2, 3, 4 });
+
+    assertEquals(1L, DeletionPlan.execute(m_planFile, m_root, new FileDeleter()
+    {
+      public void delete(Path file, BasicFileAttributes attrs)
+      {
+        fail("Changed file " + file + " must not be deleted");
+      }
+    }));
+  }
+
+  public void testUncompletedPlanIsRefused() throws IOException
+  {
+    DeletionPlan.Writer plan = new DeletionPlan.Writer(m_planFile, m_root);
+    plan.delete(m_file, Files.readAttributes(m_file, BasicFileAttributes.class));
+    // Walk failed, the plan is closed without its total line
+    plan.close();
+
+    try
+    {
+      DeletionPlan.readRoot(m_planFile);
+      fail("Incomplete plan was accepted");
+    }
+    catch(IOException e)
+    {
+      assertTrue(e.getMessage(), e.getMessage().contains("incomplete"));
+    }
+  }
+}
@@ -0,0 +1,251 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Matching and directory pruning of the groupId trie.
+ */
+public class GroupFilterTest extends TestCase
+{
+  private static final String[] SEGMENTS = { "com", "org", "acme", "api", "x" };
+
+  public void testSplit()
+  {
+    assertEquals(Arrays.asList("com.acme.**", "org.x"), GroupFilter.split(" com.acme.** ,,org.x, "));
+    assertTrue(GroupFilter.split(null).isEmpty());
+    assertTrue(GroupFilter.split("").isEmpty());
+  }
+
+  public void testInvalidPatterns()
+  {
+    assertInvalid("com.ac*");
+    assertInvalid("**x");
+    assertInvalid(".");
+    assertInvalid(" / ");
+  }
+
+  public void testNoPatternsSelectEverything()
+  {
+    GroupFilter filter = filter("", "");
+    assertTrue(filter.isEmpty());
+    assertTrue(filter.selectsGroup(path("com/acme")));
+    assertTrue(filter.needsDirectory(path("org")));
+  }
+
+  public void testLiteralPattern()
+  {
+    GroupFilter filter = filter("com.acme", "");
+    assertTrue(filter.selectsGroup(path("com/acme")));
+    assertFalse(filter.selectsGroup(path("com")));
+    assertFalse(filter.selectsGroup(path("com/acme/x")));
+    assertFalse(filter.selectsGroup(path("com/acmex")));
+    assertFalse(filter.selectsGroup(path("")));
+    assertFalse(filter.selectsGroup(null));
+  }
+
+  public void testSlashSeparatedPattern()
+  {
+    assertTrue(filter("com/acme", "").selectsGroup(path("com/acme")));
+  }
+
+  public void testAnyPathMatchesNoSegment()
+  {
+    GroupFilter filter = filter("com.acme.**", "");
+    assertTrue(filter.selectsGroup(path("com/acme")));
+    assertTrue(filter.selectsGroup(path("com/acme/x")));
+    assertTrue(filter.selectsGroup(path("com/acme/x/api")));
+    assertFalse(filter.selectsGroup(path("com")));
+    assertFalse(filter.selectsGroup(path("com/acmex")));
+
+    filter = filter("com.**.api", "");
+    assertTrue(filter.selectsGroup(path("com/api")));
+    assertTrue(filter.selectsGroup(path("com/x/acme/api")));
+    assertFalse(filter.selectsGroup(path("com/api/x")));
+
+    filter = filter("**.api", "");
+    assertTrue(filter.selectsGroup(path("api")));
+    assertTrue(filter.selectsGroup(path("org/x/api")));
+    assertFalse(filter.selectsGroup(path("org")));
+  }
+
+  public void testAnySegmentMatchesOneSegment()
+  {
+    GroupFilter filter = filter("com.*.api", "");
+    assertTrue(filter.selectsGroup(path("com/acme/api")));
+    assertFalse(filter.selectsGroup(path("com/api")));
+    assertFalse(filter.selectsGroup(path("com/acme/x/api")));
+  }
+
+  public void testIncludePrunesOtherDirectories()
+  {
+    GroupFilter filter = filter("com.acme.**", "");
+    assertTrue(filter.needsDirectory(path("com")));
+    assertTrue(filter.needsDirectory(path("com/acme")));
+    assertTrue(filter.needsDirectory(path("com/acme/x/api")));
+    assertFalse(filter.needsDirectory(path("org")));
+    assertFalse(filter.needsDirectory(path("com/x")));
+
+    // Artifact directories of a selected group are listed
+    filter = filter("com.acme", "");
+    assertTrue(filter.needsDirectory(path("com/acme/foo")));
+    assertFalse(filter.needsDirectory(path("com/acme/foo/bar")));
+  }
+
+  public void testExcludePrunesWholeSubtree()
+  {
+    GroupFilter filter = filter("", "com.acme.**");
+    assertFalse(filter.isEmpty());
+    assertTrue(filter.needsDirectory(path("com")));
+    assertTrue(filter.needsDirectory(path("org/acme")));
+    // Still listed as a possible artifact directory of group com
+    assertTrue(filter.needsDirectory(path("com/acme")));
+    assertFalse(filter.needsDirectory(path("com/acme/x")));
+    assertFalse(filter.needsDirectory(path("com/acme/x/api")));
+    assertFalse(filter.selectsGroup(path("com/acme")));
+    assertTrue(filter.selectsGroup(path("com")));
+  }
+
+  public void testExcludeWithoutAnyPathKeepsSubgroups()
+  {
+    GroupFilter filter = filter("", "com.acme");
+    assertTrue(filter.needsDirectory(path("com/acme")));
+    assertFalse(filter.selectsGroup(path("com/acme")));
+    assertTrue(filter.selectsGroup(path("com/acme/x")));
+  }
+
+  public void testExcludeWinsOverInclude()
+  {
+    GroupFilter filter = filter("com.**", "com.acme.**,*.x");
+    assertTrue(filter.selectsGroup(path("com/api")));
+    assertFalse(filter.selectsGroup(path("com/acme/api")));
+    assertFalse(filter.selectsGroup(path("com/x")));
+    assertTrue(filter.selectsGroup(path("com/api/x")));
+    assertFalse(filter.needsDirectory(path("com/acme/api")));
+  }
+
+  /**
+   * Compares the trie with a direct matcher for random patterns and groups,
+   * and checks that no directory holding a selected group is pruned.
+   */
+  public void testRandomPatterns()
+  {
+    Random random = new Random(20200101L);
+    for(int round = 0; round < 500; round++)
+    {
+      List<String> includes = randomPatterns(random);
+      List<String> excludes = randomPatterns(random);
+      GroupFilter filter = new GroupFilter(includes, excludes);
+
+      for(int i = 0; i < 50; i++)
+      {
+        String[] group = randomSegments(random, SEGMENTS, 1 + random.nextInt(5));
+        boolean expected = (includes.isEmpty() || matchesAny(includes, group)) && !matchesAny(excludes, group);
+        String message = includes + " / " + excludes + " : " + Arrays.toString(group);
+        assertEquals(message, expected, filter.selectsGroup(path(group, group.length)));
+
+        if(expected)
+        {
+          for(int depth = 1; depth <= group.length + 1; depth++)
+          {
+            String[] dir = Arrays.copyOf(group, depth);
+            if(depth > group.length) dir[group.length] = "artifact";
+            assertTrue(message + " at depth " + depth, filter.needsDirectory(path(dir, depth)));
+          }
+        }
+      }
+    }
+  }
+
+  private static List<String> randomPatterns(Random random)
+  {
+    String[] segments = Arrays.copyOf(SEGMENTS, SEGMENTS.length + 2);
+    segments[SEGMENTS.length] = "*";
+    segments[SEGMENTS.length + 1] = "**";
+
+    List<String> patterns = new ArrayList<String>();
+    int count = random.nextInt(3);
+    for(int i = 0; i < count; i++)
+    {
+      StringBuilder pattern = new StringBuilder();
+      for(String segment : randomSegments(random, segments, 1 + random.nextInt(4)))
+      {
+        if(pattern.length() > 0) pattern.append(random.nextBoolean() ? '.' : '/');
+        pattern.append(segment);
+      }
+      patterns.add(pattern.toString());
+    }
+    return patterns;
+  }
+
+  private static String[] randomSegments(Random random, String[] choices, int count)
+  {
+    String[] segments = new String[count];
+    for(int i = 0; i < count; i++) segments[i] = choices[random.nextInt(choices.length)];
+    return segments;
+  }
+
+  private static boolean matchesAny(List<String> patterns, String[] group)
+  {
+    for(String pattern : patterns)
+    {
+      if(matches(pattern.split("[./]"), 0, group, 0)) return true;
+    }
+    return false;
+  }
+
+  private static boolean matches(String[] pattern, int p, String[] group, int g)
+  {
+    if(p == pattern.length) return g == group.length;
+    if("**".equals(pattern[p]))
+    {
+      for(int skip = g; skip <= group.length; skip++)
+      {
+        if(matches(pattern, p + 1, group, skip)) return true;
+      }
+      return false;
+    }
+    if(g == group.length) return false;
+    return ("*".equals(pattern[p]) || pattern[p].equals(group[g])) && matches(pattern, p + 1, group, g + 1);
+  }
+
+  private static GroupFilter filter(String includes, String excludes)
+  {
+    return new GroupFilter(GroupFilter.split(includes), GroupFilter.split(excludes));
+  }
+
+  private static void assertInvalid(String pattern)
+  {
+    try
+    {
+      new GroupFilter(Arrays.asList(pattern), new ArrayList<String>());
+      fail("Pattern '" + pattern + "' accepted");
+    }
+    catch(IllegalArgumentException e)
+    {
+      // expected
+    }
+  }
+
+  private static Path path(String path)
+  {
+    return Paths.get(path);
+  }
+
+  private static Path path(String[] segments, int count)
+  {
+    StringBuilder path = new StringBuilder();
+    for(int i = 0; i < count; i++)
+    {
+      if(i > 0) path.append('/');
+      path.append(segments[i]);
+    }
+    return Paths.get(path.toString());
+  }
+}
@@ -0,0 +1,141 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Save/load round trips of the scan index.
+ */
+public class ScanIndexTest extends TempDirectoryCase
+{
+  private static final String POLICY = "keep 1 build(s)";
+  private static final long MTIME = 1500000000000L;
+
+  private Path m_artifactDir;
+  private Path m_versionDir;
+
+  @Override
+  protected void setUp() throws IOException
+  {
+    super.setUp();
+    m_artifactDir = m_root.resolve("com/acme/foo");
+    m_versionDir = m_artifactDir.resolve("1.0-SNAPSHOT");
+  }
+
+  public void testMissingIndexIsEmpty() throws IOException
+  {
+    ScanIndex index = ScanIndex.load(m_root, POLICY, null);
+    assertNull(index.getListing(m_artifactDir, MTIME));
+    assertFalse(index.isSnapshotUnchanged(m_versionDir, MTIME));
+  }
+
+  public void testRoundTrip() throws IOException
+  {
+    save(null);
+
+    ScanIndex index = ScanIndex.load(m_root, POLICY, null);
+    DirectoryScanner.Listing listing = index.getListing(m_artifactDir, MTIME);
+    assertNotNull(listing);
+    assertEquals(names("1.0-SNAPSHOT", "2.0"), names(listing.getVersionDirs()));
+    assertEquals(names("docs"), names(listing.getSubDirs()));
+    assertEquals(m_versionDir, listing.getVersionDirs().get(0).getPath());
+    assertTrue(index.isSnapshotUnchanged(m_versionDir, MTIME));
+    assertEquals(1L, index.getUnchangedDirs());
+
+    // A changed directory is listed again
+    index = ScanIndex.load(m_root, POLICY, null);
+    assertNull(index.getListing(m_artifactDir, MTIME + 1000L));
+    assertFalse(index.isSnapshotUnchanged(m_versionDir, MTIME + 1000L));
+  }
+
+  public void testPolicyChangeDropsSnapshotRecords() throws IOException
+  {
+    save(null);
+
+    ScanIndex index = ScanIndex.load(m_root, "keep 2 build(s)", null);
+    assertNotNull(index.getListing(m_artifactDir, MTIME));
+    assertFalse(index.isSnapshotUnchanged(m_versionDir, MTIME));
+  }
+
+  public void testVersionChangeDropsDirectoryRecords() throws IOException
+  {
+    save(null);
+
+    ScanIndex index = ScanIndex.load(m_root, POLICY, "trunk");
+    assertNull(index.getListing(m_artifactDir, MTIME));
+    assertTrue(index.isSnapshotUnchanged(m_versionDir, MTIME));
+
+    save("trunk");
+    assertNotNull(ScanIndex.load(m_root, POLICY, "trunk").getListing(m_artifactDir, MTIME));
+    assertNull(ScanIndex.load(m_root, POLICY, "").getListing(m_artifactDir, MTIME));
+  }
+
+  public void testInvalidatedAndRecentRecordsAreNotTrusted() throws IOException
+  {
+    long recent = System.currentTimeMillis();
+    ScanIndex index = ScanIndex.create(m_root, POLICY, null);
+    index.putListing(m_artifactDir, recent, new DirectoryScanner.Listing());
+    index.putSnapshot(m_versionDir, MTIME, SnapshotVersionParser.INVALID, Long.MAX_VALUE);
+    index.invalidate(m_versionDir);
+    index.save();
+
+    index = ScanIndex.load(m_root, POLICY, null);
+    assertNull(index.getListing(m_artifactDir, recent));
+    assertFalse(index.isSnapshotUnchanged(m_versionDir, MTIME));
+  }
+
+  public void testExpiredSnapshotIsCleanedAgain() throws IOException
+  {
+    ScanIndex index = ScanIndex.create(m_root, POLICY, null);
+    index.putSnapshot(m_versionDir, MTIME, SnapshotVersionParser.INVALID, System.currentTimeMillis() - 1L);
+    index.save();
+
+    assertFalse(ScanIndex.load(m_root, POLICY, null).isSnapshotUnchanged(m_versionDir, MTIME));
+  }
+
+  public void testUnvisitedRecordsAreDroppedOrKept() throws IOException
+  {
+    save(null);
+
+    ScanIndex index = ScanIndex.load(m_root, POLICY, null);
+    index.save();
+    assertNull(ScanIndex.load(m_root, POLICY, null).getListing(m_artifactDir, MTIME));
+
+    save(null);
+    index = ScanIndex.load(m_root, POLICY, null);
+    index.keepUnvisited();
+    index.save();
+    index = ScanIndex.load(m_root, POLICY, null);
+    assertNotNull(index.getListing(m_artifactDir, MTIME));
+    assertTrue(index.isSnapshotUnchanged(m_versionDir, MTIME));
+  }
+
+  private void save(String versions) throws IOException
+  {
+    DirectoryScanner.Listing listing = new DirectoryScanner.Listing();
+    listing.getVersionDirs().add(new DirectoryScanner.Entry(m_versionDir, null));
+    listing.getVersionDirs().add(new DirectoryScanner.Entry(m_artifactDir.resolve("2.0"), null));
+    listing.getSubDirs().add(new DirectoryScanner.Entry(m_artifactDir.resolve("docs"), null));
+
+    ScanIndex index = ScanIndex.create(m_root, POLICY, versions);
+    index.putListing(m_artifactDir, MTIME, listing);
+    index.putSnapshot(m_versionDir, MTIME, SnapshotVersionParser.parseVersion("20200101.120000-1"), Long.MAX_VALUE);
+    index.save();
+  }
+
+  private static List<String> names(String... names)
+  {
+    List<String> list = new ArrayList<String>();
+    for(String name : names) list.add(name);
+    return list;
+  }
+
+  private static List<String> names(List<DirectoryScanner.Entry> entries)
+  {
+    List<String> list = new ArrayList<String>();
+    for(DirectoryScanner.Entry entry : entries) list.add(entry.getName());
+    return list;
+  }
+}
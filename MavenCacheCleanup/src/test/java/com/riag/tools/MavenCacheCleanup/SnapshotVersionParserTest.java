@@ -0,0 +1,138 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the packed version keys against the regular expression and
+ * <code>SimpleDateFormat</code> the parser replaced.
+ */
+public class SnapshotVersionParserTest extends TestCase
+{
+  private static final Pattern SNAPSHOT_VERSION_PATTERN = Pattern.compile("(\\d{8})\\.(\\d{6})\\-(\\d+)(.+)");
+
+  public void testParseFields()
+  {
+    long key = SnapshotVersionParser.parse("20200229.235958-17.jar");
+    assertEquals(17, SnapshotVersionParser.getBuildNo(key));
+    assertEquals(1583020798L, SnapshotVersionParser.getEpochSeconds(key));
+  }
+
+  public void testParseWithOffset()
+  {
+    String name = "foo-1.0-20200101.120001-3-sources.jar";
+    long key = SnapshotVersionParser.parse(name, "foo-1.0-".length());
+    assertEquals("20200101.120001-3", SnapshotVersionParser.format(key));
+  }
+
+  public void testFormatRoundTrip()
+  {
+    String[] versions = { "19700101.000000-1", "19691231.235959-2", "20000229.120000-1", "21000301.000000-99",
+        "20201231.235959-" + SnapshotVersionParser.MAX_BUILD_NO };
+    for(String version : versions)
+    {
+      assertEquals(version, SnapshotVersionParser.format(SnapshotVersionParser.parseVersion(version)));
+    }
+  }
+
+  public void testLenientRollover() throws ParseException
+  {
+    // Month 13 and second 60 roll over like a lenient SimpleDateFormat
+    assertEquals("20210101.000000-1", SnapshotVersionParser.format(SnapshotVersionParser.parse("20201301.000000-1.jar")));
+    assertEquals("20200101.000100-1", SnapshotVersionParser.format(SnapshotVersionParser.parse("20200101.000060-1.jar")));
+    assertEquals(seconds("20200230.250000"), SnapshotVersionParser.getEpochSeconds(SnapshotVersionParser.parse("20200230.250000-1.jar")));
+  }
+
+  public void testInvalid()
+  {
+    String[] names = {
+        "2020010.120000-1.jar", // short date
+        "20200101.12000-1.jar", // short time
+        "20200101-120000-1.jar", // wrong separator
+        "20200101.120000-.jar", // missing build number
+        "20200101.120000-x.jar", // non-digit build number
+        "20200101.120000-1", // nothing after the build number
+        "20200101.120000_1.jar", "2020a101.120000-1.jar", "20200101.120000-1.j\nar", "",
+        "20200101.120000-" + (SnapshotVersionParser.MAX_BUILD_NO + 1L) + ".jar" };
+    for(String name : names)
+    {
+      assertEquals(name, SnapshotVersionParser.INVALID, SnapshotVersionParser.parse(name));
+    }
+    assertEquals(SnapshotVersionParser.INVALID, SnapshotVersionParser.parseVersion("20200101.120000"));
+  }
+
+  public void testTrailingDigits()
+  {
+    // The regex hands the last digit to the mandatory trailing group
+    assertEquals(1, SnapshotVersionParser.getBuildNo(SnapshotVersionParser.parse("20200101.120000-12")));
+  }
+
+  /**
+   * Random names are accepted exactly when the regex matches, and keys
+   * compare like the former date and build number comparison.
+   */
+  public void testMatchesFormerParsing() throws ParseException
+  {
+    Random random = new Random(20200101L);
+    String[] suffixes = { ".jar", ".pom", "-sources.jar", "", "7", "x", ".jar.sha1" };
+    String previous = null;
+    long previousKey = 0L;
+    for(int i = 0; i < 20000; i++)
+    {
+      StringBuilder sb = new StringBuilder();
+      sb.append(1970 + random.nextInt(130));
+      append2(sb, random.nextInt(14));
+      append2(sb, random.nextInt(33));
+      sb.append(random.nextInt(50) == 0 ? '-' : '.');
+      append2(sb, random.nextInt(25));
+      append2(sb, random.nextInt(61));
+      append2(sb, random.nextInt(61));
+      sb.append(random.nextInt(50) == 0 ? '.' : '-');
+      if(random.nextInt(50) != 0) sb.append(1 + random.nextInt(200));
+      sb.append(suffixes[random.nextInt(suffixes.length)]);
+      String name = sb.toString();
+
+      Matcher m = SNAPSHOT_VERSION_PATTERN.matcher(name);
+      long key = SnapshotVersionParser.parse(name);
+      if(!m.matches())
+      {
+        assertEquals(name, SnapshotVersionParser.INVALID, key);
+        continue;
+      }
+      assertTrue(name, key != SnapshotVersionParser.INVALID);
+      long expectedSeconds = seconds(m.group(1) + "." + m.group(2));
+      assertEquals(name, expectedSeconds, SnapshotVersionParser.getEpochSeconds(key));
+      assertEquals(name, Integer.parseInt(m.group(3)), SnapshotVersionParser.getBuildNo(key));
+
+      if(previous != null)
+      {
+        Matcher p = SNAPSHOT_VERSION_PATTERN.matcher(previous);
+        assertTrue(p.matches());
+        int expected = Long.compare(seconds(p.group(1) + "." + p.group(2)), expectedSeconds);
+        if(expected == 0) expected = Integer.compare(Integer.parseInt(p.group(3)), Integer.parseInt(m.group(3)));
+        assertEquals(previous + " vs " + name, expected, Long.signum(Long.compare(previousKey, key)));
+      }
+      previous = name;
+      previousKey = key;
+    }
+  }
+
+  private static long seconds(String timestamp) throws ParseException
+  {
+    SimpleDateFormat fmt = new SimpleDateFormat("yyyyMMdd.HHmmss");
+    fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return fmt.parse(timestamp).getTime() / 1000L;
+  }
+
+  private static void append2(StringBuilder sb, int value)
+  {
+    if(value < 10) sb.append('0');
+    sb.append(value);
+  }
+}
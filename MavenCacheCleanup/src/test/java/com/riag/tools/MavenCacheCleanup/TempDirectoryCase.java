@@ -0,0 +1,50 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case working in a temporary directory, created before and deleted
+ * after each test.
+ */
+public abstract class TempDirectoryCase extends TestCase
+{
+  protected Path m_root;
+
+  @Override
+  protected void setUp() throws IOException
+  {
+    m_root = Files.createTempDirectory(getClass().getSimpleName());
+  }
+
+  @Override
+  protected void tearDown()
+  {
+    delete(m_root.toFile());
+  }
+
+  /**
+   * Writes a file below the temporary directory, creating its parents.
+   */
+  protected Path write(String name, byte[] content) throws IOException
+  {
+    Path file = m_root.resolve(name);
+    Files.createDirectories(file.getParent());
+    Files.write(file, content);
+    return file;
+  }
+
+  private static void delete(File file)
+  {
+    File[] children = file.listFiles();
+    if(children != null)
+    {
+      for(File child : children) delete(child);
+    }
+    file.delete();
+  }
+}
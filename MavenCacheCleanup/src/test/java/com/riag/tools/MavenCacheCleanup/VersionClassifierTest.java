@@ -0,0 +1,159 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the version classifier with the regular expression it replaces.
+ */
+public class VersionClassifierTest extends TestCase
+{
+  private static final String VERSION_PATTERN_PREFIX = "(\\d+)(\\.)?(\\d+)?(\\.)?(.+)?";
+  private static final String VERSION_PATTERN_SUFFIX = "(\\-)?(.+)?";
+  private static final Pattern VERSION_PATTERN = Pattern.compile("(" + VERSION_PATTERN_PREFIX + VERSION_PATTERN_SUFFIX + ")");
+
+  private static final String[] NAMES = { "1.0", "1.0-SNAPSHOT", "2", "10.2.3-beta-1", "1.", "1..2", "1.2.", "0-SNAPSHOT",
+      "trunk", "trunk-SNAPSHOT", "trunk.1", "trunkx", "main-1.0", "mainline", "release", "maven-metadata.xml", "", "-",
+      ".", ".1", "-1.0", "a1", "1\n", "1\nx", "trunk\n", "trunk\r-SNAPSHOT", "\u0661.0", "1.0\u2028", " 1.0" };
+
+  private static final String[] VERSION_STRINGS = { null, "", "trunk", "trunk,main", "main,mainline", ",", "trunk,",
+      ",trunk", "trunk,,main", "m", "trunk.", "tr.nk", "main|trunk", "r[a-z]+", "x\ny" };
+
+  private static final String ALPHABET = "0123456789.-abmnrtukSNAPHOT,|*\n\u0085";
+
+  public void testFixedNames()
+  {
+    for(String versionString : VERSION_STRINGS)
+    {
+      for(String name : NAMES)
+      {
+        assertSame(versionString, name);
+      }
+    }
+  }
+
+  public void testNumericVersions()
+  {
+    VersionClassifier classifier = VersionClassifier.create(null);
+    assertTrue(classifier.isVersion("1.0"));
+    assertTrue(classifier.isVersion("1.0-SNAPSHOT"));
+    assertTrue(classifier.isVersion("1."));
+    assertTrue(classifier.isVersion("1..2"));
+    assertFalse(classifier.isVersion("trunk"));
+    assertFalse(classifier.isVersion(""));
+    assertFalse(classifier.isVersion("1\n"));
+    assertFalse(classifier.isVersion("\u0661"));
+  }
+
+  public void testCustomPrefixes()
+  {
+    VersionClassifier classifier = VersionClassifier.create("trunk,main");
+    assertTrue(classifier.isVersion("trunk"));
+    assertTrue(classifier.isVersion("trunk-SNAPSHOT"));
+    assertTrue(classifier.isVersion("mainline"));
+    assertTrue(classifier.isVersion("2.0"));
+    assertFalse(classifier.isVersion("tru"));
+    assertFalse(classifier.isVersion("release"));
+    assertFalse(classifier.isVersion("trunk\n"));
+  }
+
+  public void testEmptySegmentMatchesAnyName()
+  {
+    assertTrue(VersionClassifier.create("trunk,,main").isVersion("release"));
+    assertTrue(VersionClassifier.create(",trunk").isVersion(""));
+    assertFalse(VersionClassifier.create(",trunk").isVersion("a\nb"));
+    assertFalse(VersionClassifier.create(",").isVersion("release"));
+    assertFalse(VersionClassifier.create("trunk,").isVersion("release"));
+  }
+
+  /**
+   * Random names and version strings over an alphabet rich in digits,
+   * separators, prefix characters and line terminators.
+   */
+  public void testRandomCorpus()
+  {
+    Random random = new Random(20200101L);
+    for(int round = 0; round < 2000; round++)
+    {
+      String versionString = random.nextInt(4) == 0 ? null : randomString(random, 8);
+      Pattern baseline;
+      try
+      {
+        baseline = baseline(versionString);
+      }
+      catch(PatternSyntaxException e)
+      {
+        assertInvalid(versionString);
+        continue;
+      }
+      VersionClassifier classifier = VersionClassifier.create(versionString);
+      for(int i = 0; i < 50; i++)
+      {
+        String name = randomString(random, 12);
+        assertEquals(describe(versionString, name), baseline.matcher(name).matches(), classifier.isVersion(name));
+      }
+    }
+  }
+
+  public void testInvalidPrefixIsRejected()
+  {
+    assertInvalid("[");
+    assertInvalid("trunk,*");
+  }
+
+  private static void assertInvalid(String versionString)
+  {
+    try
+    {
+      VersionClassifier.create(versionString);
+      fail("Accepted " + describe(versionString, ""));
+    }
+    catch(PatternSyntaxException e)
+    {
+      // expected, as by the regular expression before
+    }
+  }
+
+  private static void assertSame(String versionString, String name)
+  {
+    assertEquals(describe(versionString, name), baseline(versionString).matcher(name).matches(),
+        VersionClassifier.create(versionString).isVersion(name));
+  }
+
+  private static String randomString(Random random, int maxLength)
+  {
+    StringBuilder string = new StringBuilder();
+    int length = random.nextInt(maxLength + 1);
+    for(int i = 0; i < length; i++) string.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+    return string.toString();
+  }
+
+  private static String describe(String versionString, String name)
+  {
+    return "versions '" + escape(versionString) + "', name '" + escape(name) + "'";
+  }
+
+  private static String escape(String string)
+  {
+    return string == null ? null : string.replace("\n", "\\n").replace("\r", "\\r");
+  }
+
+  /**
+   * @return Pattern the cache walker built from the version string before
+   *         the classifier replaced it
+   */
+  private static Pattern baseline(String versionString)
+  {
+    if(versionString == null || versionString.isEmpty()) return VERSION_PATTERN;
+
+    StringBuilder versions = new StringBuilder();
+    for(String str : versionString.split(","))
+    {
+      versions.append("(").append(str).append(")").append("|");
+    }
+    return Pattern.compile("((" + versions.toString() + "(" + VERSION_PATTERN_PREFIX + "))" + VERSION_PATTERN_SUFFIX + ")");
+  }
+}
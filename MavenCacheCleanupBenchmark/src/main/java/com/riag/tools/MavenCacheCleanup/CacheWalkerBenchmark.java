@@ -0,0 +1,151 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link CacheWalker#processDirectory(java.io.File)} on generated
+ * repositories. The <code>files</code> counter reports walked files per
+ * second.
+ * <p>
+ * Repositories are generated below the directory given by the system
+ * property <code>benchmark.dir</code>, the default temporary directory
+ * otherwise.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CacheWalkerBenchmark {
+
+	/**
+	 * Repository with outdated snapshot builds, regenerated before every
+	 * cleanup.
+	 */
+	@State(Scope.Benchmark)
+	public static class DirtyRepository {
+		@Param({ "20" })
+		public int groups;
+
+		@Param({ "10" })
+		public int buildsPerSnapshot;
+
+		@Param({ "1", "4" })
+		public int threads;
+
+		@Param({ "0", "2" })
+		public int deleteThreads;
+
+		Path m_root;
+		long m_files;
+		private final RepositoryGenerator m_generator = new RepositoryGenerator();
+
+		@Setup(Level.Trial)
+		public void createDirectory() throws IOException {
+			m_root = createBenchmarkDir();
+			m_generator.setGroups(groups);
+			m_generator.setBuildsPerSnapshot(buildsPerSnapshot);
+			m_files = m_generator.getFileCount();
+		}
+
+		@Setup(Level.Invocation)
+		public void generate() throws IOException {
+			RepositoryGenerator.delete(m_root);
+			m_generator.generate(m_root);
+		}
+
+		@TearDown(Level.Trial)
+		public void delete() throws IOException {
+			RepositoryGenerator.delete(m_root);
+		}
+	}
+
+	/**
+	 * Repository without outdated builds, the steady state of a cache which
+	 * is cleaned regularly.
+	 */
+	@State(Scope.Benchmark)
+	public static class CleanRepository {
+		@Param({ "100" })
+		public int groups;
+
+		@Param({ "1", "4" })
+		public int threads;
+
+		Path m_root;
+		long m_files;
+
+		@Setup(Level.Trial)
+		public void generate() throws IOException {
+			m_root = createBenchmarkDir();
+			RepositoryGenerator generator = new RepositoryGenerator();
+			generator.setGroups(groups);
+			generator.setBuildsPerSnapshot(1);
+			m_files = generator.generate(m_root);
+		}
+
+		@TearDown(Level.Trial)
+		public void delete() throws IOException {
+			RepositoryGenerator.delete(m_root);
+		}
+	}
+
+	/**
+	 * Reports walked files as operations, JMH normalizes them to a rate.
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class FileCounter {
+		public long files;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			files = 0L;
+		}
+	}
+
+	@Benchmark
+	public int cleanup(DirtyRepository repository, FileCounter counter) {
+		CacheWalker walker = new CacheWalker(false, repository.threads);
+		walker.setDeletionPipeline(repository.deleteThreads, 1024);
+		int retval = walker.processDirectory(repository.m_root.toFile());
+		counter.files += repository.m_files;
+		return retval;
+	}
+
+	@Benchmark
+	public int walkClean(CleanRepository repository, FileCounter counter) {
+		CacheWalker walker = new CacheWalker(false, repository.threads);
+		int retval = walker.processDirectory(repository.m_root.toFile());
+		counter.files += repository.m_files;
+		return retval;
+	}
+
+	static Path createBenchmarkDir() throws IOException {
+		String dir = System.getProperty("benchmark.dir");
+		if (dir == null) {
+			return Files.createTempDirectory("m2cachecleanup-bench");
+		}
+		Files.createDirectories(Paths.get(dir));
+		return Files.createTempDirectory(Paths.get(dir), "m2cachecleanup-bench");
+	}
+}
@@ -0,0 +1,125 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures listing and filtering of single cache directories: sorting the
+ * sub-directories of an artifact into version directories and selecting the
+ * timestamped files of a snapshot directory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DirectoryFilterBenchmark {
+	private static final String ARTIFACT_ID = "artifact";
+
+	@Param({ "200" })
+	public int versions;
+
+	@Param({ "500" })
+	public int builds;
+
+	private Path m_root;
+	private Path m_artifactDir;
+	private Path m_snapshotDir;
+	private List<String> m_versionNames;
+	private DirectoryScanner m_scanner;
+
+	@Setup
+	public void generate() throws IOException {
+		m_root = CacheWalkerBenchmark.createBenchmarkDir();
+		m_artifactDir = m_root.resolve(ARTIFACT_ID);
+		m_snapshotDir = m_artifactDir.resolve("2.0-SNAPSHOT");
+
+		RepositoryGenerator generator = new RepositoryGenerator();
+		generator.setReleasesPerArtifact(versions);
+		generator.setBuildsPerSnapshot(builds);
+		generator.generateArtifact(m_artifactDir);
+
+		m_versionNames = new ArrayList<String>();
+		try (DirectoryStream<Path> stream = Files
+				.newDirectoryStream(m_artifactDir)) {
+			for (Path path : stream) {
+				m_versionNames.add(path.getFileName().toString());
+			}
+		}
+		m_scanner = new DirectoryScanner(VersionClassifier.NUMERIC);
+
+		// Classifier and pattern have to agree on every name
+		for (String name : m_versionNames) {
+			if (VersionClassifier.NUMERIC.isVersion(name) != VersionClassifier.VERSION_PATTERN
+					.matcher(name).matches())
+				throw new IllegalStateException("Version classifier disagrees with the version pattern on '" + name + "'");
+		}
+	}
+
+	@TearDown
+	public void delete() throws IOException {
+		RepositoryGenerator.delete(m_root);
+	}
+
+	@Benchmark
+	public DirectoryScanner.Listing scanArtifactDir() throws IOException {
+		return m_scanner.scan(m_artifactDir);
+	}
+
+	@Benchmark
+	public List<DirectoryScanner.Entry> scanSnapshotDir() throws IOException {
+		return m_scanner.scanFiles(m_snapshotDir,
+				new CacheWalker.TimestampedFileFilter(ARTIFACT_ID + "-2.0-"));
+	}
+
+	/**
+	 * Version pattern alone, without any file system access. Baseline of
+	 * {@link #classifyVersionNames()}.
+	 */
+	@Benchmark
+	public int matchVersionNames() {
+		Pattern pattern = VersionClassifier.VERSION_PATTERN;
+		int matches = 0;
+		for (String name : m_versionNames) {
+			if (pattern.matcher(name).matches()) {
+				matches++;
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Version classifier alone, without any file system access
+	 */
+	@Benchmark
+	public int classifyVersionNames() {
+		VersionClassifier classifier = VersionClassifier.NUMERIC;
+		int matches = 0;
+		for (String name : m_versionNames) {
+			if (classifier.isVersion(name)) {
+				matches++;
+			}
+		}
+		return matches;
+	}
+}
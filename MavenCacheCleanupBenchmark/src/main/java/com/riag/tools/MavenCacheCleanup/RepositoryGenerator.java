@@ -0,0 +1,267 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Generates synthetic local Maven repositories for benchmarks.
+ * <p>
+ * Every artifact gets a number of release versions and snapshot versions,
+ * every snapshot version a number of timestamped builds. Each build or
+ * release consists of a pom and a jar per classifier, version directories
+ * also hold the usual metadata files. Generate large repositories on a
+ * tmpfs (e.g. <code>/dev/shm</code>) to measure the walker rather than the
+ * disk.
+ * <p>
+ * Can be run from the command line to create a repository for manual tests:
+ *
+ * <pre>
+ * java -cp benchmarks.jar com.riag.tools.MavenCacheCleanup.RepositoryGenerator -dir /dev/shm/repo -groups 1000
+ * </pre>
+ */
+public final class RepositoryGenerator {
+	private static final long BUILD_INTERVAL = 60L * 60L * 1000L;
+	private static final long FIRST_BUILD = 1514764800000L; // 2018-01-01
+
+	private int m_groupDepth = 3;
+	private int m_groups = 10;
+	private int m_artifactsPerGroup = 10;
+	private int m_releasesPerArtifact = 2;
+	private int m_snapshotsPerArtifact = 1;
+	private int m_buildsPerSnapshot = 5;
+	private String[] m_classifiers = { "", "sources" };
+	private int m_fileSize = 0;
+
+	/**
+	 * @param groupDepth
+	 *            Number of path segments of a groupId
+	 */
+	public void setGroupDepth(int groupDepth) {
+		m_groupDepth = Math.max(1, groupDepth);
+	}
+
+	public void setGroups(int groups) {
+		m_groups = groups;
+	}
+
+	public void setArtifactsPerGroup(int artifactsPerGroup) {
+		m_artifactsPerGroup = artifactsPerGroup;
+	}
+
+	public void setReleasesPerArtifact(int releasesPerArtifact) {
+		m_releasesPerArtifact = releasesPerArtifact;
+	}
+
+	public void setSnapshotsPerArtifact(int snapshotsPerArtifact) {
+		m_snapshotsPerArtifact = snapshotsPerArtifact;
+	}
+
+	public void setBuildsPerSnapshot(int buildsPerSnapshot) {
+		m_buildsPerSnapshot = buildsPerSnapshot;
+	}
+
+	/**
+	 * @param classifiers
+	 *            Classifiers of the jars of every build, empty string is the
+	 *            main jar
+	 */
+	public void setClassifiers(String... classifiers) {
+		m_classifiers = classifiers.clone();
+	}
+
+	/**
+	 * @param fileSize
+	 *            Size of every generated file in bytes
+	 */
+	public void setFileSize(int fileSize) {
+		m_fileSize = fileSize;
+	}
+
+	/**
+	 * @return Number of files a repository generated with the current
+	 *         settings consists of
+	 */
+	public long getFileCount() {
+		long perArtifact = m_releasesPerArtifact * (filesPerBuild() + 1L)
+				+ m_snapshotsPerArtifact
+				* (m_buildsPerSnapshot * (long) filesPerBuild()
+						+ filesPerBuild() + 1L);
+		return (long) m_groups * m_artifactsPerGroup * perArtifact;
+	}
+
+	/**
+	 * Number of files which remain after a cleanup keeping the latest build
+	 */
+	public long getCleanFileCount() {
+		return getFileCount() - (long) m_groups * m_artifactsPerGroup
+				* m_snapshotsPerArtifact * Math.max(0, m_buildsPerSnapshot - 1)
+				* filesPerBuild();
+	}
+
+	/**
+	 * Generates the repository below <code>root</code>.
+	 *
+	 * @return Number of generated files
+	 */
+	public long generate(Path root) throws IOException {
+		long files = 0L;
+		for (int group = 0; group < m_groups; group++) {
+			Path groupDir = root.resolve(getGroupPath(group));
+			for (int artifact = 0; artifact < m_artifactsPerGroup; artifact++) {
+				files += generateArtifact(groupDir.resolve("artifact" + artifact));
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Generates all versions of one artifact.
+	 *
+	 * @return Number of generated files
+	 */
+	public long generateArtifact(Path artifactDir) throws IOException {
+		String artifactId = artifactDir.getFileName().toString();
+		long files = 0L;
+
+		for (int release = 0; release < m_releasesPerArtifact; release++) {
+			String version = "1." + release;
+			Path versionDir = artifactDir.resolve(version);
+			Files.createDirectories(versionDir);
+			files += writeBuild(versionDir, artifactId + "-" + version);
+			files += writeFile(versionDir.resolve("_remote.repositories"));
+		}
+
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd.HHmmss");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		for (int snapshot = 0; snapshot < m_snapshotsPerArtifact; snapshot++) {
+			String baseVersion = "2." + snapshot + "-";
+			Path versionDir = artifactDir.resolve(baseVersion + "SNAPSHOT");
+			Files.createDirectories(versionDir);
+			for (int build = 1; build <= m_buildsPerSnapshot; build++) {
+				String timestamp = format.format(new Date(FIRST_BUILD + build
+						* BUILD_INTERVAL));
+				files += writeBuild(versionDir, artifactId + "-" + baseVersion
+						+ timestamp + "-" + build);
+			}
+			files += writeBuild(versionDir, artifactId + "-" + baseVersion
+					+ "SNAPSHOT");
+			files += writeFile(versionDir.resolve("maven-metadata-local.xml"));
+		}
+		return files;
+	}
+
+	/**
+	 * Removes a generated repository.
+	 */
+	public static void delete(Path root) throws IOException {
+		if (!Files.exists(root))
+			return;
+
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e)
+					throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private int filesPerBuild() {
+		return m_classifiers.length + 1;
+	}
+
+	private String getGroupPath(int group) {
+		// Upper levels are shared by several groups like "org/apache/..."
+		StringBuilder sb = new StringBuilder("org");
+		for (int level = 1; level < m_groupDepth - 1; level++) {
+			sb.append("/level").append(level).append('x')
+					.append(group % (level + 3));
+		}
+		if (m_groupDepth > 1) {
+			sb.append("/group").append(group);
+		}
+		return sb.toString();
+	}
+
+	private long writeBuild(Path versionDir, String baseName)
+			throws IOException {
+		long files = writeFile(versionDir.resolve(baseName + ".pom"));
+		for (String classifier : m_classifiers) {
+			String name = classifier.isEmpty() ? baseName : baseName + "-"
+					+ classifier;
+			files += writeFile(versionDir.resolve(name + ".jar"));
+		}
+		return files;
+	}
+
+	private long writeFile(Path file) throws IOException {
+		try (OutputStream out = Files.newOutputStream(file)) {
+			if (m_fileSize > 0) {
+				out.write(new byte[m_fileSize]);
+			}
+		}
+		return 1L;
+	}
+
+	public static void main(String[] args) throws IOException {
+		RepositoryGenerator generator = new RepositoryGenerator();
+		Path root = null;
+
+		for (int i = 0; i < args.length; i++) {
+			String key = args[i];
+			if (i + 1 >= args.length) {
+				System.err.println("Option " + key + " should be followed by a value");
+				System.exit(1);
+			}
+			String value = args[++i];
+
+			if ("-dir".equals(key)) {
+				root = Paths.get(value);
+			} else if ("-depth".equals(key)) {
+				generator.setGroupDepth(Integer.parseInt(value));
+			} else if ("-groups".equals(key)) {
+				generator.setGroups(Integer.parseInt(value));
+			} else if ("-artifacts".equals(key)) {
+				generator.setArtifactsPerGroup(Integer.parseInt(value));
+			} else if ("-releases".equals(key)) {
+				generator.setReleasesPerArtifact(Integer.parseInt(value));
+			} else if ("-snapshots".equals(key)) {
+				generator.setSnapshotsPerArtifact(Integer.parseInt(value));
+			} else if ("-builds".equals(key)) {
+				generator.setBuildsPerSnapshot(Integer.parseInt(value));
+			} else if ("-classifiers".equals(key)) {
+				generator.setClassifiers(value.split(",", -1));
+			} else if ("-size".equals(key)) {
+				generator.setFileSize(Integer.parseInt(value));
+			} else {
+				System.err.println("Argument '" + key + "' is not a valid option.");
+				System.exit(1);
+			}
+		}
+
+		if (root == null) {
+			System.err.println("Option -dir is required");
+			System.exit(1);
+		}
+
+		long files = generator.generate(root);
+		System.out.println("Generated " + files + " file(s) in '" + root + "'");
+	}
+}
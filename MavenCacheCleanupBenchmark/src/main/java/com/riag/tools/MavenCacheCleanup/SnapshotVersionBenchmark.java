@@ -0,0 +1,116 @@
+package com.riag.tools.MavenCacheCleanup;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures parsing and ordering of unique snapshot versions of one snapshot
+ * directory holding {@value #BUILDS} builds. Results are per file name.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SnapshotVersionBenchmark {
+	static final int BUILDS = 4096;
+	private static final String PREFIX = "artifact-1.0-";
+	private static final String[] SUFFIXES = { ".jar", ".pom",
+			"-sources.jar", "-javadoc.jar" };
+
+	private String[] m_names;
+	private long[] m_keys;
+
+	@Setup
+	public void createNames() {
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd.HHmmss");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		Random random = new Random(42L);
+
+		m_names = new String[BUILDS];
+		m_keys = new long[BUILDS];
+		for (int i = 0; i < BUILDS; i++) {
+			// Builds are listed in directory order, not in version order
+			int build = random.nextInt(BUILDS) + 1;
+			long time = 1514764800000L + build * 3600000L;
+			m_names[i] = PREFIX + format.format(new Date(time)) + "-" + build
+					+ SUFFIXES[i % SUFFIXES.length];
+			m_keys[i] = SnapshotVersionParser.parse(m_names[i],
+					PREFIX.length());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BUILDS)
+	public void parse(Blackhole blackhole) {
+		for (String name : m_names) {
+			blackhole.consume(SnapshotVersionParser.parse(name, PREFIX.length()));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BUILDS)
+	public long selectLatest() {
+		RetentionPolicy.Selector selector = RetentionPolicy.LATEST
+				.newSelector();
+		for (long key : m_keys) {
+			selector.offer(key);
+		}
+		return selector.getLatest();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BUILDS)
+	public long selectNewestFive() {
+		RetentionPolicy.Selector selector = new RetentionPolicy(5, 0)
+				.newSelector();
+		for (long key : m_keys) {
+			selector.offer(key);
+		}
+		return selector.getLatest();
+	}
+
+	/**
+	 * Full ordering of all versions, the approach the top-K selection
+	 * replaced.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BUILDS)
+	public SnapshotUniqueVersion sortedSetLatest() {
+		TreeSet<SnapshotUniqueVersion> versions = new TreeSet<SnapshotUniqueVersion>();
+		for (long key : m_keys) {
+			versions.add(new SnapshotUniqueVersion(key));
+		}
+		return versions.last();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BUILDS)
+	public SnapshotUniqueVersion[] sortVersions() {
+		SnapshotUniqueVersion[] versions = new SnapshotUniqueVersion[m_keys.length];
+		for (int i = 0; i < versions.length; i++) {
+			versions[i] = new SnapshotUniqueVersion(m_keys[i]);
+		}
+		Arrays.sort(versions);
+		return versions;
+	}
+}
@@ -0,0 +1,112 @@
+package ch.ringler.tools.m2cachecleanup;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+/**
+ * Goal which reports the disk usage of the local Maven cache per groupId,
+ * artifact and version, and how much cleaning snapshots would reclaim.
+ * Nothing is deleted.
+ */
+@Mojo(name = "analyze", requiresProject = false)
+public class AnalyzeMavenCache extends AbstractMojo {
+	/**
+	 * Location of the cache.
+	 */
+	@Parameter(defaultValue = "${settings.localRepository}", property = "directory", required = true)
+	private File directory;
+
+	/**
+	 * Comma separated list of non-numeric version prefixes, e.g.
+	 * <code>trunk</code>, see the cleanup-cache goal.
+	 */
+	@Parameter(defaultValue = "", property = "versionString", required = false)
+	private String versionString;
+
+	/**
+	 * Number of threads used to walk the cache.
+	 */
+	@Parameter(defaultValue = "1", property = "threads", required = false)
+	private int threads;
+
+	/**
+	 * Number of newest timestamped builds the cleanup would keep per snapshot
+	 * version.
+	 */
+	@Parameter(defaultValue = "1", property = "keepBuilds", required = false)
+	private int keepBuilds;
+
+	/**
+	 * Builds younger than this number of days the cleanup would keep
+	 * additionally.
+	 */
+	@Parameter(defaultValue = "0", property = "keepDays", required = false)
+	private int keepDays;
+
+	/**
+	 * Comma separated groupId patterns of the artifacts to analyze, see the
+	 * cleanup-cache goal.
+	 */
+	@Parameter(defaultValue = "", property = "includeGroups", required = false)
+	private String includeGroups;
+
+	/**
+	 * Comma separated groupId patterns of artifacts to leave out.
+	 */
+	@Parameter(defaultValue = "", property = "excludeGroups", required = false)
+	private String excludeGroups;
+
+	/**
+	 * Number of largest groups, artifacts and versions to report. Value 0
+	 * reports all of them.
+	 */
+	@Parameter(defaultValue = "20", property = "top", required = false)
+	private int top;
+
+	/**
+	 * Write the report to this file as well, as JSON or CSV if the file name
+	 * ends with <code>.json</code> or <code>.csv</code>, as text otherwise.
+	 */
+	@Parameter(property = "reportFile", required = false)
+	private File reportFile;
+
+	public void execute() throws MojoExecutionException {
+		if (top < 0)
+			throw new MojoExecutionException("Parameter top must not be negative, got " + top);
+
+		GroupFilter groupFilter;
+		try {
+			groupFilter = new GroupFilter(GroupFilter.split(includeGroups), GroupFilter.split(excludeGroups));
+		} catch (IllegalArgumentException e) {
+			throw new MojoExecutionException("Parameters includeGroups and excludeGroups require groupId patterns like com.acme.**: "
+					+ e.getMessage());
+		}
+
+		try {
+			getLog().info("Analyzing Maven local cache at '" + directory.getCanonicalPath() + "'");
+			UsageReport report = new UsageReport(directory.toPath());
+			CacheWalker walker = new CacheWalker(getLog(), versionString, threads);
+			walker.setRetentionPolicy(new RetentionPolicy(keepBuilds, keepDays));
+			walker.setGroupFilter(groupFilter);
+			// No scan index, every directory has to be measured
+			walker.setDeleter(report);
+			walker.setUsageReport(report);
+			walker.processDirectory(directory);
+
+			for (String line : report.getSummary(top)) {
+				getLog().info(line);
+			}
+			if (reportFile != null) {
+				report.write(reportFile.toPath(), top);
+				getLog().info("Report written to '" + reportFile.getCanonicalPath() + "'");
+			}
+		} catch (IOException e) {
+			throw new MojoExecutionException("Unexpected exception during cache analysis", e);
+		}
+	}
+}
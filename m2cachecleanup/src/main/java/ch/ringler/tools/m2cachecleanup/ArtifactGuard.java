@@ -0,0 +1,168 @@
+package ch.ringler.tools.m2cachecleanup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Protects artifacts of builds running concurrently with the cleanup.
+ * <p>
+ * Files modified within the grace period are never deleted, they may belong
+ * to an install in progress. A version directory is cleaned only while
+ * holding an exclusive lock on the lock file Maven Resolver uses for the
+ * artifact with file based named locks (<code>file-lock</code> factory,
+ * <code>file-gav</code> name mapper), e.g.
+ * <code>.locks/artifact~org.example~lib~1.0-SNAPSHOT.resolverlock</code>.
+ * A build resolving or installing the artifact holds that lock, the
+ * directory is skipped then and cleaned on a later run.
+ * <p>
+ * Locks are only taken if the cache contains the lock directory, i.e. if
+ * builds use file locks at all. Lock files are left in place, deleting them
+ * would break the mutual exclusion of processes which opened them already.
+ */
+final class ArtifactGuard {
+	/**
+	 * Lock directory of Maven Resolver inside of the cache directory
+	 */
+	static final String LOCKS_DIR = ".locks";
+
+	private static final String LOCK_SUFFIX = ".resolverlock";
+
+	private static final Closeable NO_LOCK = new Closeable() {
+		public void close() {
+		}
+	};
+
+	private final Path m_root;
+	private final Path m_locksDir;
+	private final long m_graceMillis;
+	private final AtomicLong m_busyDirs;
+	private final AtomicLong m_recentFiles;
+	private final AtomicLong m_changedDirs;
+
+	/**
+	 * @param root
+	 *            Cache directory
+	 * @param graceMillis
+	 *            Files modified within this period are kept
+	 */
+	ArtifactGuard(Path root, long graceMillis) {
+		m_root = root.toAbsolutePath();
+		m_locksDir = m_root.resolve(LOCKS_DIR);
+		m_graceMillis = graceMillis;
+		m_busyDirs = new AtomicLong(0L);
+		m_recentFiles = new AtomicLong(0L);
+		m_changedDirs = new AtomicLong(0L);
+	}
+
+	/**
+	 * Locks the artifact of a version directory against concurrent builds.
+	 *
+	 * @return Lock to close after cleaning, <code>null</code> if a build
+	 *         holds the artifact
+	 * @throws IOException
+	 *             if the lock file cannot be opened
+	 */
+	Closeable tryLock(Path versionDir) throws IOException {
+		if (!Files.isDirectory(m_locksDir))
+			return NO_LOCK;
+
+		Path lockFile = m_locksDir.resolve(getLockName(versionDir));
+		FileChannel channel = FileChannel.open(lockFile,
+				StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE);
+		FileLock lock;
+		try {
+			lock = channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			// Held by this process
+			lock = null;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		if (lock == null) {
+			channel.close();
+			m_busyDirs.incrementAndGet();
+			return null;
+		}
+		// Closing the channel releases the lock
+		return channel;
+	}
+
+	/**
+	 * @return <code>true</code> if the file was modified within the grace
+	 *         period and must be kept
+	 */
+	boolean isRecent(BasicFileAttributes attrs) {
+		if (attrs.lastModifiedTime().toMillis() <= System.currentTimeMillis()
+				- m_graceMillis)
+			return false;
+
+		m_recentFiles.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Accounts a directory skipped because its latest version changed while
+	 * it was being cleaned.
+	 */
+	void addChangedDir() {
+		m_changedDirs.incrementAndGet();
+	}
+
+	/**
+	 * @return Number of version directories skipped because a build held
+	 *         the artifact lock
+	 */
+	long getBusyDirs() {
+		return m_busyDirs.get();
+	}
+
+	/**
+	 * @return Number of files kept because they were modified recently
+	 */
+	long getRecentFiles() {
+		return m_recentFiles.get();
+	}
+
+	long getChangedDirs() {
+		return m_changedDirs.get();
+	}
+
+	/**
+	 * Drops the counts of the previous run.
+	 */
+	void resetStatistics() {
+		m_busyDirs.set(0L);
+		m_recentFiles.set(0L);
+		m_changedDirs.set(0L);
+	}
+
+	/**
+	 * @return Lock file name of the artifact stored in a version directory,
+	 *         <code>artifact~groupId~artifactId~version.resolverlock</code>
+	 */
+	String getLockName(Path versionDir) {
+		Path relative = m_root.relativize(versionDir.toAbsolutePath());
+		int count = relative.getNameCount();
+
+		StringBuilder sb = new StringBuilder("artifact~");
+		for (int i = 0; i < count - 2; i++) {
+			if (i > 0)
+				sb.append('.');
+			sb.append(relative.getName(i).toString());
+		}
+		sb.append('~').append(relative.getName(count - 2).toString());
+		sb.append('~').append(relative.getName(count - 1).toString());
+		return sb.append(LOCK_SUFFIX).toString();
+	}
+}
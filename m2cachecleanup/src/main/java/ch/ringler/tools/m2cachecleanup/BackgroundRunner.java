@@ -0,0 +1,120 @@
+package ch.ringler.tools.m2cachecleanup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.maven.plugin.AbstractMojo;
+
+/**
+ * Cleans the cache in a separate process, so the build starting it does not
+ * wait for the cleanup.
+ * <p>
+ * The process gets the parameters of the goal as arguments and writes its
+ * output and statistics to <code>.m2cachecleanup/cleanup.log</code> inside
+ * the cache. It runs only if it gets the {@link CleanupLock}, otherwise
+ * another cleanup is still running and it exits silently. After a successful
+ * cleanup it stamps the {@link RunThrottle} with its start time.
+ */
+public final class BackgroundRunner {
+	static final String LOG_FILE = "cleanup.log";
+
+	private BackgroundRunner() {
+	}
+
+	/**
+	 * Starts a detached Java process cleaning the cache with the given
+	 * configuration. The process keeps running after the build ends.
+	 *
+	 * @return Log file of the process
+	 */
+	static Path start(Path cacheDir, List<String> arguments) throws IOException {
+		Path logFile = getLogFile(cacheDir);
+		Files.createDirectories(logFile.getParent());
+
+		List<String> command = new ArrayList<String>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		command.add("-cp");
+		command.add(getClassPath());
+		command.add(BackgroundRunner.class.getName());
+		command.addAll(arguments);
+
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+		// Only failures before the runner takes over its output end up here
+		builder.redirectOutput(Redirect.appendTo(logFile.toFile()));
+		Process process = builder.start();
+		process.getOutputStream().close();
+		return logFile;
+	}
+
+	static Path getLogFile(Path cacheDir) {
+		return cacheDir.resolve(ScanIndex.STATE_DIR).resolve(LOG_FILE);
+	}
+
+	/**
+	 * @return Locations of the plugin and the Maven plugin API, the only
+	 *         classes the cleanup needs
+	 */
+	private static String getClassPath() throws IOException {
+		Set<String> entries = new LinkedHashSet<String>();
+		for (Class<?> type : new Class<?>[] { BackgroundRunner.class, AbstractMojo.class }) {
+			CodeSource source = type.getProtectionDomain().getCodeSource();
+			if (source == null)
+				throw new IOException("Cannot locate classes of " + type.getName());
+
+			try {
+				entries.add(new File(source.getLocation().toURI()).getPath());
+			} catch (URISyntaxException e) {
+				throw new IOException("Cannot locate classes of " + type.getName(), e);
+			}
+		}
+
+		StringBuilder classPath = new StringBuilder();
+		for (String entry : entries) {
+			if (classPath.length() > 0) {
+				classPath.append(File.pathSeparatorChar);
+			}
+			classPath.append(entry);
+		}
+		return classPath.toString();
+	}
+
+	public static void main(String[] args) {
+		CleanupMavenCache mojo = new CleanupMavenCache();
+		try {
+			mojo.configure(args);
+			Path cacheDir = mojo.getDirectory().toPath();
+			try (CleanupLock lock = CleanupLock.tryAcquire(cacheDir)) {
+				if (lock == null)
+					return;
+
+				// Log of the previous run is replaced
+				PrintStream out = new PrintStream(Files.newOutputStream(getLogFile(cacheDir)), true, "UTF-8");
+				System.setOut(out);
+				System.setErr(out);
+				long start = System.currentTimeMillis();
+				out.println("Cleanup started at " + new Date(start));
+				mojo.cleanup();
+				// Only read by builds with intervalHours set
+				new RunThrottle(cacheDir, 0L).stamp(start);
+				out.println("Cleanup finished after " + (System.currentTimeMillis() - start) / 1000L + " s");
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
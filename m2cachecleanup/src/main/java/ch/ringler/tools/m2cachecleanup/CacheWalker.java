@@ -3,13 +3,28 @@
  */
 package ch.ringler.tools.m2cachecleanup;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
-import java.text.ParseException;
-import java.util.TreeSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.maven.plugin.logging.Log;
 
@@ -18,80 +33,631 @@ import org.apache.maven.plugin.logging.Log;
  *
  */
 public class CacheWalker {
-	private static final String VERSION_PATTERN_PREFIX = "(\\d+)(\\.)?(\\d+)?(\\.)?(.+)?";
-    private static final String VERSION_PATTERN_SUFFIX = "(\\-)?(.+)?";
-    private static final Pattern VERSION_PATTERN = Pattern.compile("(" + VERSION_PATTERN_PREFIX + VERSION_PATTERN_SUFFIX + ")");
-	private static final Pattern SNAPSHOT_VERSION_PATTERN = Pattern
-			.compile("(\\d{8})\\.(\\d{6})\\-(\\d+)(.+)");
 	private static final String SNAPSHOT_SUFFIX = "-SNAPSHOT";
 	private static final int SNAPSHOT_LEN = "SNAPSHOT".length();
-    private static final String VERSION_STRING_DELIMITER = ",";
+	private static final Comparator<DirectoryScanner.Entry> BY_NAME = new Comparator<DirectoryScanner.Entry>() {
+		public int compare(DirectoryScanner.Entry a, DirectoryScanner.Entry b) {
+			return a.getName().compareTo(b.getName());
+		}
+	};
 
-	private long m_deleted;
-	private long m_failedToDelete;
-	private long m_reclaimedSpace;
+	// Counters are shared by all traversal threads when running in parallel
+	// mode
+	private final AtomicLong m_deleted;
+	private final AtomicLong m_failedToDelete;
+	private final AtomicLong m_reclaimedSpace;
 
 	private final Log m_log;
-
-    private Pattern m_versionPattern = null;
+	private final int m_threads;
+	private final DirectoryScanner m_scanner;
+	private ScanIndex m_index;
+	private int m_deleteThreads;
+	private int m_deleteQueueSize;
+	private RetentionPolicy m_retention = RetentionPolicy.LATEST;
+	private SizeBudget m_budget;
+	private final AtomicLong m_evictedDirs;
+	private final AtomicLong m_updatedMetadata;
+	private final CleanupMetrics m_metrics;
+	private FileDeleter m_target;
+	private FileDeleter m_deleter;
+	private final FlightEvents m_events;
+	private ArtifactGuard m_guard;
+	private MarkerPurger m_purger;
+	private GroupFilter m_groupFilter;
+	private UsageReport m_report;
+	private long m_deadline;
+	private WalkCursor m_cursor;
+	private Path m_lastCompleted;
+	private boolean m_incomplete;
+	private Path m_cacheRoot;
 
 	CacheWalker(Log log) {
 		this(log, null);
 	}
 
     CacheWalker(Log log, String versionString) {
-        m_log = log;
-        m_deleted = 0L;
-        m_reclaimedSpace = 0L;
-        m_failedToDelete = 0L;
-        processVersionString(versionString);
+        this(log, versionString, 1);
     }
 
-    /**
+	/**
+	 * @param log
+	 *            Maven log
+	 * @param versionString
+	 *            Comma separated list of non-numeric version prefixes
+	 * @param threads
+	 *            Number of threads used to walk the cache. Value 1 means
+	 *            sequential traversal.
+	 */
+	CacheWalker(Log log, String versionString, int threads) {
+		m_log = log;
+		m_deleted = new AtomicLong(0L);
+		m_reclaimedSpace = new AtomicLong(0L);
+		m_failedToDelete = new AtomicLong(0L);
+		m_evictedDirs = new AtomicLong(0L);
+		m_updatedMetadata = new AtomicLong(0L);
+		m_metrics = new CleanupMetrics();
+		m_threads = Math.max(1, threads);
+		m_scanner = new DirectoryScanner(
+				VersionClassifier.create(versionString), m_metrics);
+		m_events = FlightEvents.getInstance();
+	}
+
+	/**
+	 * @param index
+	 *            Index of the previous run used to skip unchanged
+	 *            directories, <code>null</code> scans everything
+	 */
+	void setScanIndex(ScanIndex index) {
+		m_index = index;
+	}
+
+	/**
+	 * Moves file deletion off the traversal threads.
+	 * 
+	 * @param threads
+	 *            Number of deletion threads, 0 deletes files on the traversal
+	 *            threads
+	 * @param queueSize
+	 *            Maximal number of files waiting for deletion
+	 */
+	void setDeletionPipeline(int threads, int queueSize) {
+		m_deleteThreads = threads;
+		m_deleteQueueSize = queueSize;
+	}
+
+	/**
+	 * @param retention
+	 *            Selects snapshot builds to keep, by default only the latest
+	 *            build survives
+	 */
+	void setRetentionPolicy(RetentionPolicy retention) {
+		m_retention = retention;
+	}
+
+	/**
+	 * @param budget
+	 *            Size limit of the whole cache, version directories are
+	 *            evicted in least recently used order until the cache fits.
+	 *            <code>null</code> disables the limit.
+	 */
+	void setSizeBudget(SizeBudget budget) {
+		m_budget = budget;
+	}
+
+	/**
+	 * @param guard
+	 *            Protects artifacts of concurrently running builds,
+	 *            <code>null</code> cleans without coordination. Files are
+	 *            deleted on the traversal threads then, the artifact lock has
+	 *            to be held until they are gone.
+	 */
+	void setArtifactGuard(ArtifactGuard guard) {
+		m_guard = guard;
+	}
+
+	/**
+	 * @param purger
+	 *            Removes markers of failed downloads from artifact and
+	 *            version directories during the traversal, <code>null</code>
+	 *            keeps them
+	 */
+	void setMarkerPurger(MarkerPurger purger) {
+		m_purger = purger;
+	}
+
+	/**
+	 * @param groupFilter
+	 *            Selects the groups to clean, directories which cannot hold a
+	 *            selected group are not even listed. <code>null</code> cleans
+	 *            all groups.
+	 */
+	void setGroupFilter(GroupFilter groupFilter) {
+		m_groupFilter = (groupFilter != null && !groupFilter.isEmpty()) ? groupFilter
+				: null;
+	}
+
+	/**
 	 * @return NUmber of deleted files
 	 */
 	public long getDeleted() {
-		return m_deleted;
+		return m_deleted.get();
 	}
 
 	/**
 	 * @return Total size in Bytes of all deleted files
 	 */
 	public long getReclaimedSpace() {
-		return m_reclaimedSpace;
+		return m_reclaimedSpace.get();
+	}
+
+	/**
+	 * @param deleter
+	 *            Receives selected files instead of deleting them, e.g. to
+	 *            analyze the cache. <code>null</code> deletes the files.
+	 */
+	void setDeleter(FileDeleter deleter) {
+		m_target = deleter;
+	}
+
+	/**
+	 * @param report
+	 *            Measures every visited version directory, releases
+	 *            included. Set it as deleter as well to account the
+	 *            reclaimable files. <code>null</code> measures nothing.
+	 */
+	void setUsageReport(UsageReport report) {
+		m_report = report;
+	}
+
+	/**
+	 * Limits the time of the walk. Sub-directories are walked sequentially in
+	 * sorted order, the walk starts after the cursor and stops before
+	 * entering a directory once the deadline has passed.
+	 *
+	 * @param deadline
+	 *            Time in milliseconds when the walk stops
+	 * @param cursor
+	 *            Position where the previous walk stopped
+	 */
+	void setDeadline(long deadline, WalkCursor cursor) {
+		m_deadline = deadline;
+		m_cursor = cursor;
+	}
+
+	/**
+	 * @return <code>true</code> if the walk stopped at the deadline
+	 */
+	boolean isIncomplete() {
+		return m_incomplete;
+	}
+
+	/**
+	 * @return Last directory walked completely before the deadline,
+	 *         <code>null</code> if there is none
+	 */
+	Path getLastCompleted() {
+		return m_lastCompleted;
 	}
 
 	/**
 	 * @return Number of files that failed to be deleted
 	 */
 	public long getFailedToDelete() {
-		return m_failedToDelete;
+		return m_failedToDelete.get();
+	}
+
+	/**
+	 * @return Number of version directories evicted to fit the size budget
+	 */
+	public long getEvictedDirs() {
+		return m_evictedDirs.get();
+	}
+
+	/**
+	 * @return Number of snapshot metadata files rewritten to drop deleted
+	 *         builds
+	 */
+	public long getUpdatedMetadata() {
+		return m_updatedMetadata.get();
+	}
+
+	/**
+	 * @return Counters and phase timings of this walker
+	 */
+	CleanupMetrics getMetrics() {
+		return m_metrics;
 	}
 
 	public void processDirectory(File cacheDir) {
-        Pattern versionPattern = m_versionPattern != null ? m_versionPattern : VERSION_PATTERN;
-		// Search Versions sub-dirs first.
-		File[] versions = cacheDir.listFiles(new DirPatternFilter(versionPattern, false));
+		Path cachePath = cacheDir.toPath();
+
+		DeletionPipeline pipeline = startDeletion();
+		long start = m_metrics.startPhase();
+		try {
+			walkCache(cachePath);
+		} finally {
+			m_metrics.endPhase(CleanupMetrics.Phase.WALK, start);
+			finishDeletion(pipeline);
+		}
+
+		if (m_budget != null) {
+			// Outdated snapshots are gone now, so eviction never sees a file
+			// twice
+			List<Path> evictedDirs = new ArrayList<Path>();
+			pipeline = startDeletion();
+			start = m_metrics.startPhase();
+			try {
+				evictVersionDirs(evictedDirs);
+			} finally {
+				finishDeletion(pipeline);
+				removeEvictedDirs(evictedDirs);
+				m_metrics.endPhase(CleanupMetrics.Phase.EVICT, start);
+			}
+		}
+	}
+
+	private DeletionPipeline startDeletion() {
+		m_deleter = (m_target != null) ? m_target : new DirectDeleter();
+		if (m_deleteThreads > 0 && m_guard == null) {
+			DeletionPipeline pipeline = new DeletionPipeline(m_deleter,
+					m_deleteThreads, m_deleteQueueSize);
+			m_deleter = pipeline;
+			return pipeline;
+		}
+		return null;
+	}
+
+	private void finishDeletion(DeletionPipeline pipeline) {
+		if (pipeline != null) {
+			// Statistics are complete only after the queue is drained
+			long start = m_metrics.startPhase();
+			pipeline.close();
+			m_metrics.endPhase(CleanupMetrics.Phase.DRAIN, start);
+		}
+	}
+
+	private void walkCache(Path cachePath) {
+		m_cacheRoot = cachePath;
+		// Resumable walks are sequential to keep a deterministic order
+		if (m_threads > 1 && m_cursor == null) {
+			ForkJoinPool pool = new ForkJoinPool(m_threads);
+			try {
+				pool.invoke(new DirectoryTask(cachePath, null));
+			} finally {
+				pool.shutdown();
+			}
+		} else {
+			walkDirectory(cachePath, null);
+		}
+	}
+
+	/**
+	 * Walks the cache depth first with an explicit stack instead of
+	 * recursion. Only the sub-dirs of the directories on the current path are
+	 * held, so memory grows with depth and width of the tree, never with the
+	 * number of files.
+	 */
+	private void walkDirectory(Path cacheDir, BasicFileAttributes attrs) {
+		Deque<Iterator<DirectoryScanner.Entry>> stack = new ArrayDeque<Iterator<DirectoryScanner.Entry>>();
+		Deque<Path> dirs = new ArrayDeque<Path>();
+		pushDirectory(stack, dirs, cacheDir, attrs);
+
+		while (!stack.isEmpty()) {
+			Iterator<DirectoryScanner.Entry> subDirs = stack.peek();
+			if (!subDirs.hasNext()) {
+				stack.pop();
+				Path dir = dirs.pop();
+				if (m_cursor != null) {
+					m_lastCompleted = dir;
+				}
+				continue;
+			}
+
+			DirectoryScanner.Entry subdir = subDirs.next();
+			if (!needsDirectory(subdir.getPath()))
+				continue;
+
+			if (m_cursor != null) {
+				if (m_cursor.covers(subdir.getPath()))
+					continue;
+				if (System.currentTimeMillis() >= m_deadline) {
+					m_incomplete = true;
+					break;
+				}
+			}
+			pushDirectory(stack, dirs, subdir.getPath(), subdir.getAttributes());
+		}
+	}
+
+	private void pushDirectory(Deque<Iterator<DirectoryScanner.Entry>> stack,
+			Deque<Path> dirs, Path dir, BasicFileAttributes attrs) {
+		DirectoryScanner.Listing listing = listDirectory(dir, attrs);
+		if (listing == null)
+			return;
+
+		// Search Versions sub-dirs first, all sub-dirs which are not Versions
+		// are walked afterwards
+		cleanVersionDirs(listing);
+		List<DirectoryScanner.Entry> subDirs = listing.getSubDirs();
+		if (m_cursor != null) {
+			subDirs = new ArrayList<DirectoryScanner.Entry>(subDirs);
+			Collections.sort(subDirs, BY_NAME);
+		}
+		stack.push(subDirs.iterator());
+		dirs.push(dir);
+	}
+
+	/**
+	 * @return <code>false</code> if the group filter rules out all artifacts
+	 *         below the directory
+	 */
+	private boolean needsDirectory(Path dir) {
+		return m_groupFilter == null
+				|| m_groupFilter.needsDirectory(m_cacheRoot.relativize(dir));
+	}
+
+	private DirectoryScanner.Listing listDirectory(Path dir,
+			BasicFileAttributes attrs) {
+		if (m_index == null)
+			return scanDirectory(dir);
+
+		// Modification time has to be taken before listing, so changes made
+		// meanwhile are seen next time
+		long lastModified = getLastModified(dir, attrs);
+		DirectoryScanner.Listing listing = m_index.getListing(dir,
+				lastModified);
+		if (listing == null) {
+			listing = scanDirectory(dir);
+			if (listing != null) {
+				m_index.putListing(dir, lastModified, listing);
+			}
+		}
+		return listing;
+	}
+
+	private static long getLastModified(Path path, BasicFileAttributes attrs) {
+		try {
+			if (attrs == null) {
+				attrs = Files.readAttributes(path, BasicFileAttributes.class);
+			}
+			return attrs.lastModifiedTime().toMillis();
+		} catch (IOException e) {
+			return ScanIndex.UNKNOWN_TIME;
+		}
+	}
+
+	private DirectoryScanner.Listing scanDirectory(Path dir) {
+		try {
+			return m_scanner.scan(dir);
+		} catch (IOException e) {
+			m_log.warn("Failed to list directory '" + dir + "': " + e);
+			return null;
+		}
+	}
+
+	private void cleanVersionDirs(DirectoryScanner.Listing listing) {
+		if (m_groupFilter != null && !listing.getVersionDirs().isEmpty()) {
+			// Version directories are found in the artifact directory, its
+			// parent is the group
+			Path artifactDir = m_cacheRoot.relativize(listing.getVersionDirs()
+					.get(0).getPath().getParent());
+			if (!m_groupFilter.selectsGroup(artifactDir.getParent()))
+				return;
+		}
+
+		if (m_budget != null) {
+			m_budget.addFiles(listing.getFileSize());
+		}
+
+		if (m_purger != null && !listing.getVersionDirs().isEmpty()) {
+			// Status of the artifact metadata is kept next to the version
+			// directories
+			purgeMarkers(listing.getVersionDirs().get(0).getPath().getParent());
+		}
+
+		for (DirectoryScanner.Entry versionDir : listing.getVersionDirs()) {
+			if (m_purger != null) {
+				purgeMarkers(versionDir.getPath());
+			}
+
+			if (m_report != null) {
+				reportVersionDir(versionDir.getPath());
+			}
+
+			// Usage is measured before cleaning, files selected for deletion
+			// are subtracted afterwards
+			SizeBudget.Usage usage = (m_budget != null) ? measureVersionDir(versionDir
+					.getPath()) : null;
 
-		for (File versionDir : versions) {
 			if (versionDir.getName().endsWith(SNAPSHOT_SUFFIX)) // Only process
 																// snapshot
 																// version
 			{
-				cleanSnapshotDir(versionDir);
+				processSnapshotDir(versionDir, usage);
+			}
+
+			if (usage != null) {
+				m_budget.addVersionDir(versionDir.getPath(), usage);
+			}
+		}
+	}
+
+	/**
+	 * Version directories are listed for markers on every run, as markers
+	 * expire without touching the directory.
+	 */
+	private void purgeMarkers(Path dir) {
+		List<DirectoryScanner.Entry> markers;
+		try {
+			markers = m_scanner.scanFiles(dir, MarkerPurger.MARKER_FILTER);
+		} catch (IOException e) {
+			m_log.warn("Failed to list directory '" + dir + "': " + e);
+			return;
+		}
+
+		if (!markers.isEmpty()) {
+			try {
+				// Status files are only rewritten when cleaning
+				m_purger.purge(dir, markers, m_deleter, m_target == null);
+			} catch (IOException e) {
+				m_log.warn("Failed to purge '"
+						+ dir.resolve(MarkerPurger.STATUS_FILE) + "': " + e);
 			}
 		}
+	}
+
+	private SizeBudget.Usage measureVersionDir(Path versionDir) {
+		try {
+			return m_budget.measure(versionDir);
+		} catch (IOException e) {
+			m_log.warn("Failed to measure directory '" + versionDir + "': "
+					+ e);
+			return null;
+		}
+	}
+
+	private void reportVersionDir(Path versionDir) {
+		try {
+			m_report.addVersionDir(versionDir);
+		} catch (IOException e) {
+			m_log.warn("Failed to measure directory '" + versionDir + "': "
+					+ e);
+		}
+	}
+
+	private void processSnapshotDir(DirectoryScanner.Entry versionDir,
+			SizeBudget.Usage usage) {
+		if (m_index == null) {
+			cleanSnapshotDir(versionDir.getPath(), usage);
+			return;
+		}
+
+		long lastModified = getLastModified(versionDir.getPath(),
+				versionDir.getAttributes());
+		if (m_index.isSnapshotUnchanged(versionDir.getPath(), lastModified))
+			return;
+
+		// Deletions change the modification time again, so such directory is
+		// rescanned once more next time
+		RetentionPolicy.Selector selector = cleanSnapshotDir(
+				versionDir.getPath(), usage);
+		m_index.putSnapshot(versionDir.getPath(), lastModified,
+				selector.getLatest(), selector.getExpires());
+	}
 
-		// Recursively search all sub-dirs which are not Versions
-		File[] subdirs = cacheDir.listFiles(new DirPatternFilter(
-				versionPattern, true));
+	/**
+	 * Files are streamed twice from the directory instead of being listed.
+	 * The first pass selects the versions to keep, the second deletes files of
+	 * all other versions right away and is skipped for a single build.
+	 * Outdated files are collected only in safe mode, which has to look at
+	 * them before deleting.
+	 *
+	 * @param usage
+	 *            Usage of the directory to subtract deleted files from, may be
+	 *            <code>null</code>
+	 * @return Selector holding the kept versions
+	 */
+	private RetentionPolicy.Selector cleanSnapshotDir(Path versionDir,
+			SizeBudget.Usage usage) {
+		Closeable lock = null;
+		if (m_guard != null) {
+			lock = lockArtifact(versionDir);
+			if (lock == null)
+				return m_retention.newSelector();
+		}
+
+		try {
+			Object event = m_events.beginSnapshotDir();
+			String filenamePrefix = getFilenamePrefix(versionDir);
+			BuildSurvey survey = surveyBuilds(versionDir, filenamePrefix);
+			if (survey == null) {
+				// Not cleaned, so listed again on the next run even if it
+				// stays unchanged
+				invalidate(versionDir);
+				return m_retention.newSelector();
+			}
+			if (!survey.hasSeveralBuilds()) {
+				// The newest build is always kept, so there is nothing to
+				// delete and no second pass
+				m_events.commitSnapshotDir(event, versionDir, survey.m_files,
+						survey.m_size, 0, 0L);
+				return survey.m_selector;
+			}
+
+			OutdatedFileVisitor outdated = new OutdatedFileVisitor(survey,
+					filenamePrefix, usage, m_guard != null,
+					!survey.m_metadataFiles.isEmpty() && m_target == null);
+			try {
+				m_scanner.scanFiles(versionDir, outdated.m_filter, outdated);
+			} catch (IOException e) {
+				// Versions to keep are known already, files not visited yet
+				// stay until the next run
+				m_log.warn("Failed to list directory '" + versionDir + "': "
+						+ e);
+				invalidate(versionDir);
+			}
+			m_metrics.addParsedNames(outdated.m_filter.getParsed());
+
+			if (m_guard != null && !outdated.m_files.isEmpty()) {
+				outdated.deleteCollected(verifyOutdatedFiles(versionDir,
+						filenamePrefix, outdated.m_files,
+						survey.m_selector.getLatest()));
+			}
+
+			if (outdated.m_outdatedFiles > 0 && outdated.m_keptNames != null) {
+				updateMetadata(versionDir, filenamePrefix,
+						survey.m_metadataFiles, outdated.m_keptNames);
+			}
+			m_events.commitSnapshotDir(event, versionDir, survey.m_files,
+					survey.m_size, outdated.m_outdatedFiles,
+					outdated.m_outdatedSize);
+			return survey.m_selector;
+		} finally {
+			unlockArtifact(lock);
+		}
+	}
+
+	/**
+	 * Streams the directory once to find the versions to keep. Keeping only
+	 * the latest build, the current build named by trustworthy snapshot
+	 * metadata decides instead. The metadata is trusted only if written after
+	 * the newest timestamped file, so it is read after the stream, and only if
+	 * there are several builds to choose from.
+	 *
+	 * @return Survey of the directory, <code>null</code> if it cannot be
+	 *         listed
+	 */
+	private BuildSurvey surveyBuilds(Path versionDir, String filenamePrefix) {
+		BuildSurvey survey = new BuildSurvey(filenamePrefix,
+				m_retention.newSelector());
+		try {
+			m_scanner.scanFiles(versionDir, survey.m_filter, survey);
+		} catch (IOException e) {
+			m_log.warn("Failed to list directory '" + versionDir + "': " + e);
+			return null;
+		}
+		m_metrics.addParsedNames(survey.m_filter.getParsed());
 
-		for (File subdir : subdirs) {
-			processDirectory(subdir);
+		if (survey.hasSeveralBuilds() && !survey.m_metadataFiles.isEmpty()
+				&& m_retention.keepsLatestOnly()) {
+			String artifactId = versionDir.getParent().getFileName().toString();
+			long current = SnapshotMetadata.getCurrentBuild(versionDir,
+					survey.m_metadataFiles, artifactId, filenamePrefix,
+					survey.m_lastModified);
+			if (current != SnapshotVersionParser.INVALID) {
+				survey.m_current = current;
+				survey.m_selector = m_retention.newSelector();
+				survey.m_selector.offer(current);
+			}
 		}
+		return survey;
 	}
 
-	private void cleanSnapshotDir(File versionDir) {
+	/**
+	 * @return Common prefix of the timestamped file names in a snapshot
+	 *         version directory
+	 */
+	private static String getFilenamePrefix(Path versionDir) {
 		// Guess Artifact name prefix. VersionDir is a snapshot version
 		// directory
 		// So ArtifactId is Name of the parent Dir
@@ -101,133 +667,432 @@ public class CacheWalker {
 		// rest is not important
 		// All files that are patterned like this should be sorted by DateTime
 		// and buildNumber ("-n") in the reverse order
-		// and as last step we should delete all but latest.
+		// and as last step we should delete all but the builds selected by
+		// the retention policy.
 		// Files without pattern should not be touched
 
-		String artifactId = versionDir.getParentFile().getName();
-		String artifactBaseVersion = versionDir.getName().substring(0,
-				versionDir.getName().length() - SNAPSHOT_LEN);
-
-		String filenamePrefix = artifactId + "-" + artifactBaseVersion;
-
-		File[] timestampedFiles = versionDir
-				.listFiles(new TimestampedFileFilter(filenamePrefix));
-		if (timestampedFiles.length > 0) {
-			String versionToKeep = getLatestVersion(timestampedFiles,
-					filenamePrefix);
-			if (versionToKeep != null) {
-				String filePrifixToKeep = filenamePrefix + versionToKeep;
-
-				// Delete all files from the list that do not start from
-				// 'filePrefixToKeep'
-				for (File file : timestampedFiles) {
-					if (file.getName().startsWith(filePrifixToKeep))
-						continue;
-
-					long fileSize = file.length();
-
-					if (file.delete()) {
-						m_deleted++;
-						m_reclaimedSpace += fileSize;
-					} else {
-						m_failedToDelete++;
-						try {
-							m_log.warn("Failed to delete file '"
-									+ file.getCanonicalPath() + "'");
-						} catch (IOException e) {
-							// Should never occur, ignore
-						}
-					}
+		String artifactId = versionDir.getParent().getFileName().toString();
+		String versionDirName = versionDir.getFileName().toString();
+		String artifactBaseVersion = versionDirName.substring(0,
+				versionDirName.length() - SNAPSHOT_LEN);
+
+		return artifactId + "-" + artifactBaseVersion;
+	}
+
+	/**
+	 * Drops deleted builds from the <code>snapshotVersions</code> of the
+	 * metadata files, so they never point to files which are gone.
+	 *
+	 * @param existing
+	 *            Names of the timestamped files still present
+	 */
+	private void updateMetadata(Path versionDir, String filenamePrefix,
+			List<DirectoryScanner.Entry> metadataFiles, Set<String> existing) {
+		String artifactId = versionDir.getParent().getFileName().toString();
+		for (DirectoryScanner.Entry metadata : metadataFiles) {
+			try {
+				if (SnapshotMetadata.removeMissingFiles(metadata.getPath(),
+						artifactId, filenamePrefix, existing)) {
+					m_updatedMetadata.incrementAndGet();
+					m_log.debug("Updated " + metadata.getPath().toAbsolutePath());
 				}
+			} catch (IOException e) {
+				m_log.warn("Failed to update metadata '" + metadata.getPath()
+						+ "': " + e);
 			}
 		}
 	}
 
-	private String getLatestVersion(File[] timestampedFiles,
-			String filenamePrefix) {
-		TreeSet<SnapshotUniqueVersion> versions = new TreeSet<SnapshotUniqueVersion>();
-		int prefixLen = filenamePrefix.length();
+	/**
+	 * @return Lock of the artifact stored in the version directory,
+	 *         <code>null</code> if a build holds it
+	 */
+	private Closeable lockArtifact(Path versionDir) {
+		Closeable lock;
+		try {
+			lock = m_guard.tryLock(versionDir);
+		} catch (IOException e) {
+			m_log.warn("Failed to lock artifact in '" + versionDir + "': " + e);
+			lock = null;
+		}
+
+		if (lock == null) {
+			m_log.debug("Skipped " + versionDir.toAbsolutePath()
+					+ ", artifact is in use");
+			invalidate(versionDir);
+		}
+		return lock;
+	}
 
-		for (File file : timestampedFiles) {
-			String filenamerest = file.getName().substring(prefixLen);
-			Matcher m = SNAPSHOT_VERSION_PATTERN.matcher(filenamerest);
-			if (m.matches()) // It should always match
-			{
-				String dateString = m.group(1);
-				String timeString = m.group(2);
-				String buildString = m.group(3);
-				try {
-					SnapshotUniqueVersion ver = new SnapshotUniqueVersion(
-							dateString, timeString, buildString);
-					versions.add(ver);
-				} catch (ParseException e) {
-					m_log.warn("Failed to parse filename '"
-							+ file.getName() + "'.");
+	private static void unlockArtifact(Closeable lock) {
+		if (lock == null)
+			return;
+
+		try {
+			lock.close();
+		} catch (IOException e) {
+			// Lock is gone together with the channel anyway
+		}
+	}
+
+	/**
+	 * Keeps files modified within the grace period. Right before deleting,
+	 * the directory is listed again, nothing is deleted if a build has
+	 * installed a newer version meanwhile.
+	 *
+	 * @param latest
+	 *            Latest version selected from the first listing
+	 * @return Files which are safe to delete
+	 */
+	private List<DirectoryScanner.Entry> verifyOutdatedFiles(Path versionDir,
+			String filenamePrefix, List<DirectoryScanner.Entry> outdatedFiles,
+			long latest) {
+		List<DirectoryScanner.Entry> settledFiles = new ArrayList<DirectoryScanner.Entry>(
+				outdatedFiles.size());
+		for (DirectoryScanner.Entry file : outdatedFiles) {
+			if (!m_guard.isRecent(file.getAttributes())) {
+				settledFiles.add(file);
+			}
+		}
+		if (settledFiles.size() < outdatedFiles.size()) {
+			// Recent files are deleted on a later run
+			invalidate(versionDir);
+		}
+		if (settledFiles.isEmpty())
+			return settledFiles;
+
+		BuildSurvey current = surveyBuilds(versionDir, filenamePrefix);
+		if (current == null || current.m_selector.getLatest() != latest) {
+			m_log.debug("Skipped " + versionDir.toAbsolutePath()
+					+ ", new version installed meanwhile");
+			m_guard.addChangedDir();
+			invalidate(versionDir);
+			return Collections.emptyList();
+		}
+		return settledFiles;
+	}
+
+	private void invalidate(Path dir) {
+		if (m_index != null) {
+			m_index.invalidate(dir);
+		}
+	}
+
+	/**
+	 * Evicts whole version directories, least recently used first, until the
+	 * cache fits into the size budget.
+	 * 
+	 * @param evictedDirs
+	 *            Receives evicted directories, children before their parents
+	 */
+	private void evictVersionDirs(List<Path> evictedDirs) {
+		long excess = m_budget.getTotalSize() - m_budget.getMaxSize();
+		if (excess <= 0)
+			return;
+
+		try (UsageSorter.Cursor cursor = m_budget.leastRecentlyUsed()) {
+			UsageSorter.Record record;
+			while (excess > 0 && (record = cursor.next()) != null) {
+				Path versionDir = Paths.get(record.getPath());
+				m_log.debug("Evicting " + versionDir.toAbsolutePath());
+				evictVersionDir(versionDir, evictedDirs);
+				m_evictedDirs.incrementAndGet();
+				excess -= record.getSize();
+			}
+		} catch (IOException e) {
+			m_log.warn("Failed to sort cache usage, no directories evicted: "
+					+ e);
+		}
+	}
+
+	private void evictVersionDir(Path versionDir, List<Path> evictedDirs)
+			throws IOException {
+		Closeable lock = null;
+		if (m_guard != null) {
+			lock = lockArtifact(versionDir);
+			if (lock == null)
+				return;
+		}
+
+		try {
+			evictLockedVersionDir(versionDir, evictedDirs);
+		} finally {
+			unlockArtifact(lock);
+		}
+	}
+
+	private void evictLockedVersionDir(Path versionDir,
+			final List<Path> evictedDirs) throws IOException {
+		Files.walkFileTree(versionDir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) {
+				if (attrs.isRegularFile()
+						&& (m_guard == null || !m_guard.isRecent(attrs))) {
+					m_deleter.delete(file, attrs);
 				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				m_log.warn("Failed to evict '" + file + "': " + e);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+				evictedDirs.add(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void removeEvictedDirs(List<Path> evictedDirs) {
+		for (Path dir : evictedDirs) {
+			try {
+				Files.delete(dir);
+			} catch (IOException e) {
+				// Some files failed to be deleted, they are reported already
+			}
+		}
+	}
+
+	/**
+	 * Deletes files right away on the calling thread and accounts the result.
+	 */
+	private final class DirectDeleter implements FileDeleter {
+		public void delete(Path file, BasicFileAttributes attrs) {
+			long start = System.nanoTime();
+			try {
+				Files.delete(file);
+				m_deleted.incrementAndGet();
+				m_reclaimedSpace.addAndGet(attrs.size());
+			} catch (IOException e) {
+				m_failedToDelete.incrementAndGet();
+				if (m_index != null) {
+					// Retry on the next run even if directory stays unchanged
+					m_index.invalidate(file.getParent());
+				}
+				m_log.warn("Failed to delete file '" + file.toAbsolutePath()
+						+ "'");
+			} finally {
+				m_metrics.addDelete(System.nanoTime() - start);
 			}
 		}
+	}
+
+	/**
+	 * Fork-join task processing one directory of the cache. Version sub-dirs
+	 * are cleaned by the task itself, every other sub-dir (groupId or
+	 * artifactId level) becomes a subtask.
+	 */
+	private final class DirectoryTask extends RecursiveTask<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final Path m_dir;
+		private final BasicFileAttributes m_attrs;
 
-		// Treeset should be sorted, so we can just take last element which is
-		// latest version
-		if (versions.size() > 0) {
-			SnapshotUniqueVersion latestVersion = versions.last();
-			return latestVersion.toString();
+		DirectoryTask(Path dir, BasicFileAttributes attrs) {
+			m_dir = dir;
+			m_attrs = attrs;
 		}
 
-		// No versions in set, return null
-		return null;
+		@Override
+		protected Void compute() {
+			DirectoryScanner.Listing listing = listDirectory(m_dir, m_attrs);
+			if (listing == null)
+				return null;
+
+			cleanVersionDirs(listing);
+
+			List<DirectoryTask> tasks = new ArrayList<DirectoryTask>(listing
+					.getSubDirs().size());
+			for (DirectoryScanner.Entry subdir : listing.getSubDirs()) {
+				if (needsDirectory(subdir.getPath())) {
+					tasks.add(new DirectoryTask(subdir.getPath(), subdir
+							.getAttributes()));
+				}
+			}
+			invokeAll(tasks);
+			return null;
+		}
 	}
 
-    private void processVersionString(String versionString) {
-        if(versionString != null && !versionString.isEmpty()) {
-            StringBuilder versions = new StringBuilder();
-            for(String str : versionString.split(VERSION_STRING_DELIMITER)) {
-                versions.append(decorateVersionString(str)).append("|");
-            }
-            m_versionPattern = Pattern.compile("((" + versions.toString() + decorateVersionString(VERSION_PATTERN_PREFIX) + ")" + VERSION_PATTERN_SUFFIX  + ")");
-        }
-    }
+	/**
+	 * First pass over a snapshot directory, offers the version of every
+	 * timestamped file to the selector.
+	 */
+	private static final class BuildSurvey implements
+			DirectoryScanner.EntryVisitor {
+		private final TimestampedFileFilter m_filter;
+		private RetentionPolicy.Selector m_selector;
+		private final List<DirectoryScanner.Entry> m_metadataFiles;
+		private int m_files;
+		private long m_size;
+		private long m_lastModified;
+		private long m_earliest;
+		private long m_latest;
+		private long m_current;
 
-    private String decorateVersionString(String versionString) {
-        return "(" + versionString + ")";
-    }
+		BuildSurvey(String filenamePrefix, RetentionPolicy.Selector selector) {
+			m_filter = new TimestampedFileFilter(filenamePrefix, true);
+			m_selector = selector;
+			m_metadataFiles = new ArrayList<DirectoryScanner.Entry>();
+			m_lastModified = Long.MIN_VALUE;
+			m_earliest = Long.MAX_VALUE;
+			m_latest = SnapshotVersionParser.INVALID;
+			m_current = SnapshotVersionParser.INVALID;
+		}
 
-	private static final class DirPatternFilter implements FileFilter {
-		private final Pattern m_pattern;
-		private final boolean m_not;
+		public void visit(DirectoryScanner.Entry entry) {
+			long key = m_filter.getKey();
+			if (key == SnapshotVersionParser.INVALID) {
+				m_metadataFiles.add(entry);
+				return;
+			}
+
+			m_selector.offer(key);
+			m_earliest = Math.min(m_earliest, key);
+			m_latest = Math.max(m_latest, key);
+			m_lastModified = Math.max(m_lastModified, entry.getAttributes()
+					.lastModifiedTime().toMillis());
+			m_files++;
+			m_size += entry.getSize();
+		}
+
+		/**
+		 * @return <code>true</code> if timestamped files of more than one build
+		 *         were found
+		 */
+		boolean hasSeveralBuilds() {
+			return m_files > 0 && m_earliest < m_latest;
+		}
 
-		DirPatternFilter(Pattern pattern, boolean notPattern) {
-			m_pattern = pattern;
-			m_not = notPattern;
+		/**
+		 * @return <code>true</code> if files of the version have to stay
+		 */
+		boolean retains(long key) {
+			// Builds installed after the survey are never outdated
+			if (key > m_latest)
+				return true;
+			return (m_current != SnapshotVersionParser.INVALID) ? key == m_current
+					: m_selector.retains(key);
 		}
+	}
 
-		public boolean accept(File pathname) {
-			if (pathname.isDirectory()) {
-				Matcher m = m_pattern.matcher(pathname.getName());
-				boolean matches = m.matches();
-				return (m_not) ? !matches : matches;
+	/**
+	 * Second pass over a snapshot directory, deletes files of the versions
+	 * not kept by the survey.
+	 */
+	private final class OutdatedFileVisitor implements
+			DirectoryScanner.EntryVisitor {
+		private final TimestampedFileFilter m_filter;
+		private final BuildSurvey m_survey;
+		private final SizeBudget.Usage m_usage;
+		private final List<DirectoryScanner.Entry> m_files;
+		private final Set<String> m_keptNames;
+		private int m_outdatedFiles;
+		private long m_outdatedSize;
+
+		/**
+		 * @param collect
+		 *            Collect outdated files instead of deleting them
+		 * @param keepNames
+		 *            Collect names of kept files to update the metadata
+		 */
+		OutdatedFileVisitor(BuildSurvey survey, String filenamePrefix,
+				SizeBudget.Usage usage, boolean collect, boolean keepNames) {
+			m_filter = new TimestampedFileFilter(filenamePrefix, false);
+			m_survey = survey;
+			m_usage = usage;
+			m_files = collect ? new ArrayList<DirectoryScanner.Entry>() : null;
+			m_keptNames = keepNames ? new HashSet<String>() : null;
+		}
+
+		public void visit(DirectoryScanner.Entry entry) {
+			if (m_survey.retains(m_filter.getKey())) {
+				if (m_keptNames != null) {
+					m_keptNames.add(entry.getName());
+				}
+			} else if (m_files != null) {
+				m_files.add(entry);
+			} else {
+				delete(entry);
 			}
+		}
 
-			return false;
+		/**
+		 * Deletes the selected files out of the collected ones, the others
+		 * are kept.
+		 */
+		void deleteCollected(List<DirectoryScanner.Entry> selectedFiles) {
+			Set<DirectoryScanner.Entry> selected = new HashSet<DirectoryScanner.Entry>(
+					selectedFiles);
+			for (DirectoryScanner.Entry file : m_files) {
+				if (selected.contains(file)) {
+					delete(file);
+				} else if (m_keptNames != null) {
+					m_keptNames.add(file.getName());
+				}
+			}
+		}
+
+		private void delete(DirectoryScanner.Entry file) {
+			m_deleter.delete(file.getPath(), file.getAttributes());
+			if (m_usage != null) {
+				m_usage.remove(file.getSize());
+			}
+			m_outdatedFiles++;
+			m_outdatedSize += file.getSize();
 		}
 	}
 
-	private static final class TimestampedFileFilter implements FileFilter {
+	private static final class TimestampedFileFilter implements
+			DirectoryStream.Filter<Path> {
 		private final String m_filePrifix;
+		private final boolean m_metadata;
+		private int m_parsed;
+		private long m_key;
 
-		TimestampedFileFilter(String prefix) {
+		/**
+		 * @param metadata
+		 *            Accept metadata files of remote repositories as well
+		 */
+		TimestampedFileFilter(String prefix, boolean metadata) {
 			m_filePrifix = prefix;
+			m_metadata = metadata;
+		}
+
+		/**
+		 * @return Number of names parsed so far, the filter is used by one
+		 *         thread at a time
+		 */
+		int getParsed() {
+			return m_parsed;
+		}
+
+		/**
+		 * @return Version key of the name accepted last,
+		 *         {@link SnapshotVersionParser#INVALID} for metadata files
+		 */
+		long getKey() {
+			return m_key;
 		}
 
-		public boolean accept(File pathname) {
-			if (pathname.isFile()) {
-				String fileName = pathname.getName();
+		// Only the name is checked here, file type comes with the attributes
+		// read by the scanner
+		public boolean accept(Path pathname) {
+			String fileName = pathname.getFileName().toString();
 
-				if (fileName.startsWith(m_filePrifix)) {
-					String nameRest = fileName.substring(m_filePrifix.length());
-					Matcher m = SNAPSHOT_VERSION_PATTERN.matcher(nameRest);
-					return m.matches();
-				}
+			m_key = SnapshotVersionParser.INVALID;
+			if (m_metadata && SnapshotMetadata.isRemoteMetadata(fileName))
+				return true;
+			if (fileName.startsWith(m_filePrifix)) {
+				m_parsed++;
+				m_key = SnapshotVersionParser.parse(fileName,
+						m_filePrifix.length());
+				return m_key != SnapshotVersionParser.INVALID;
 			}
 			return false;
 		}
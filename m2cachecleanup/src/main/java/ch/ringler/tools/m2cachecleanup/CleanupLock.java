@@ -0,0 +1,70 @@
+package ch.ringler.tools.m2cachecleanup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Prevents overlapping cleanups of one cache, by builds in the foreground as
+ * well as by background cleanups.
+ * <p>
+ * The lock is a file lock on <code>.m2cachecleanup/cleanup.lock</code> inside
+ * the cache. The operating system releases it when the process ends, so a
+ * killed cleanup never leaves a stale lock behind.
+ */
+final class CleanupLock implements Closeable {
+	private static final String LOCK_FILE = "cleanup.lock";
+
+	private final FileChannel m_channel;
+	private final FileLock m_lock;
+
+	private CleanupLock(FileChannel channel, FileLock lock) {
+		m_channel = channel;
+		m_lock = lock;
+	}
+
+	/**
+	 * @return Lock of the cache or <code>null</code> if another cleanup holds
+	 *         it
+	 */
+	static CleanupLock tryAcquire(Path cacheDir) throws IOException {
+		Path stateDir = cacheDir.resolve(ScanIndex.STATE_DIR);
+		Files.createDirectories(stateDir);
+		FileChannel channel = FileChannel.open(stateDir.resolve(LOCK_FILE),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		FileLock lock = null;
+		try {
+			lock = channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			// Held by another cleanup of this JVM, e.g. a parallel build
+		} finally {
+			if (lock == null) {
+				channel.close();
+			}
+		}
+		return (lock != null) ? new CleanupLock(channel, lock) : null;
+	}
+
+	/**
+	 * @return <code>true</code> if no cleanup holds the lock at the moment
+	 */
+	static boolean isFree(Path cacheDir) throws IOException {
+		try (CleanupLock lock = tryAcquire(cacheDir)) {
+			return lock != null;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			m_lock.release();
+		} finally {
+			m_channel.close();
+		}
+	}
+}
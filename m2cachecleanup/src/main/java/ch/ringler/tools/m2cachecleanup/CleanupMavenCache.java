@@ -18,6 +18,16 @@ package ch.ringler.tools.m2cachecleanup;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
@@ -32,6 +42,23 @@ import org.apache.maven.plugins.annotations.Parameter;
  */
 @Mojo(name = "cleanup-cache", defaultPhase = LifecyclePhase.CLEAN, requiresProject = false)
 public class CleanupMavenCache extends AbstractMojo {
+	/**
+	 * Parameters which configure the cleanup itself, passed on to the
+	 * {@link BackgroundRunner}. Those deciding whether the build cleans at
+	 * all, like <code>async</code>, <code>oncePerBuild</code> and
+	 * <code>intervalHours</code>, are left out.
+	 */
+	private static final String[] CLEANUP_PARAMETERS = { "directory", "versionString", "threads", "fullScan",
+			"deleteThreads", "deleteQueueSize", "keepBuilds", "keepDays", "maxSize", "metricsFile", "safeMode",
+			"graceMinutes", "purgeMarkers", "markerAgeHours", "includeGroups", "excludeGroups",
+			"maxDurationMinutes" };
+
+	/**
+	 * Caches cleaned per build session. The classes of the plugin are shared
+	 * by all projects of a build, sessions of finished builds are dropped.
+	 */
+	private static final Map<Object, Set<File>> CLAIMED_CACHES = new WeakHashMap<Object, Set<File>>();
+
 	/**
 	 * Location of the file.
 	 */
@@ -44,6 +71,149 @@ public class CleanupMavenCache extends AbstractMojo {
     @Parameter(defaultValue = "", property = "versionString", required = false)
     private String versionString;
 
+	/**
+	 * Number of threads used to walk the cache. Value 1 keeps the sequential
+	 * traversal, larger values process groupId subtrees in parallel.
+	 */
+	@Parameter(defaultValue = "1", property = "threads", required = false)
+	private int threads;
+
+	/**
+	 * Ignore the scan index of the previous run, rescan the whole cache and
+	 * rebuild the index.
+	 */
+	@Parameter(defaultValue = "false", property = "fullScan", required = false)
+	private boolean fullScan;
+
+	/**
+	 * Number of threads deleting outdated files. Value 0 deletes files on the
+	 * threads walking the cache.
+	 */
+	@Parameter(defaultValue = "0", property = "deleteThreads", required = false)
+	private int deleteThreads;
+
+	/**
+	 * Maximal number of files waiting for the deletion threads. The walk
+	 * pauses while the queue is full.
+	 */
+	@Parameter(defaultValue = "1024", property = "deleteQueueSize", required = false)
+	private int deleteQueueSize;
+
+	/**
+	 * Number of newest timestamped builds kept per snapshot version.
+	 */
+	@Parameter(defaultValue = "1", property = "keepBuilds", required = false)
+	private int keepBuilds;
+
+	/**
+	 * Additionally keep all builds younger than this number of days. Value 0
+	 * keeps the newest builds only.
+	 */
+	@Parameter(defaultValue = "0", property = "keepDays", required = false)
+	private int keepDays;
+
+	/**
+	 * Size limit of the whole cache, e.g. <code>200G</code>. Version
+	 * directories, releases included, are evicted in least recently used order
+	 * until the cache fits. Empty value disables the limit.
+	 */
+	@Parameter(defaultValue = "", property = "maxSize", required = false)
+	private String maxSize;
+
+	/**
+	 * Write metrics of the run to this file in the Prometheus text format,
+	 * e.g. into the directory of the node_exporter textfile collector.
+	 */
+	@Parameter(property = "metricsFile", required = false)
+	private File metricsFile;
+
+	/**
+	 * Coordinate with builds running at the same time: keep recently modified
+	 * files, skip artifacts locked through Maven Resolver file locks and
+	 * verify the latest build right before deleting.
+	 */
+	@Parameter(defaultValue = "false", property = "safeMode", required = false)
+	private boolean safeMode;
+
+	/**
+	 * In safe mode, files modified within this number of minutes are kept.
+	 */
+	@Parameter(defaultValue = "10", property = "graceMinutes", required = false)
+	private int graceMinutes;
+
+	/**
+	 * Remove <code>*.lastUpdated</code> files and failed update checks of
+	 * <code>resolver-status.properties</code> once the artifact is present
+	 * or the marker is older than <code>markerAgeHours</code>, so Maven
+	 * retries failed downloads without <code>-U</code>.
+	 */
+	@Parameter(defaultValue = "false", property = "purgeMarkers", required = false)
+	private boolean purgeMarkers;
+
+	/**
+	 * Age in hours after which markers of failed downloads are purged.
+	 */
+	@Parameter(defaultValue = "24", property = "markerAgeHours", required = false)
+	private int markerAgeHours;
+
+	/**
+	 * Comma separated groupId patterns of the artifacts to clean, e.g.
+	 * <code>com.ourcompany.**</code>. <code>*</code> matches one segment of
+	 * the groupId, <code>**</code> any number of segments. All groups are
+	 * cleaned if empty. Directories outside of the included groups are not
+	 * even listed. Which directories of an artifact count as versions is
+	 * still decided by <code>versionString</code>.
+	 */
+	@Parameter(defaultValue = "", property = "includeGroups", required = false)
+	private String includeGroups;
+
+	/**
+	 * Comma separated groupId patterns of artifacts never to clean, same
+	 * syntax as <code>includeGroups</code>.
+	 */
+	@Parameter(defaultValue = "", property = "excludeGroups", required = false)
+	private String excludeGroups;
+
+	/**
+	 * Clean the cache only once per build, in the first project running the
+	 * goal, instead of once for every module.
+	 */
+	@Parameter(defaultValue = "true", property = "oncePerBuild", required = false)
+	private boolean oncePerBuild;
+
+	/**
+	 * Skip the cleanup if the cache was cleaned within this number of hours,
+	 * e.g. <code>24</code>. The start of the last successful cleanup is
+	 * recorded in <code>.m2cachecleanup/last-run</code> inside the cache, a
+	 * failed cleanup is retried by the next build. Value 0 cleans on every
+	 * build.
+	 */
+	@Parameter(defaultValue = "0", property = "intervalHours", required = false)
+	private int intervalHours;
+
+	/**
+	 * Stop the cleanup after this number of minutes and continue where it
+	 * stopped on the next run, so each run stays short and several runs
+	 * cover the whole cache. The position is kept in
+	 * <code>.m2cachecleanup/cursor</code> inside the cache. Directories are
+	 * walked sequentially in sorted order then, <code>threads</code> is
+	 * ignored. Value 0 cleans the whole cache in every run.
+	 */
+	@Parameter(defaultValue = "0", property = "maxDurationMinutes", required = false)
+	private int maxDurationMinutes;
+
+	/**
+	 * Clean the cache in a separate background process, so the build does
+	 * not wait for the cleanup. Its output and statistics are written to
+	 * <code>.m2cachecleanup/cleanup.log</code> inside the cache. No process
+	 * is started while another cleanup is running.
+	 */
+	@Parameter(defaultValue = "false", property = "async", required = false)
+	private boolean async;
+
+	@Parameter(defaultValue = "${session}", readonly = true, required = false)
+	private Object session;
+
 	public void execute() throws MojoExecutionException {
 		
 	    try {
@@ -51,27 +221,341 @@ public class CleanupMavenCache extends AbstractMojo {
 			// Sanity checks
 			//
 			if(!isValidCache(directory)) throw new MojoExecutionException("Directory '" + directory.getCanonicalPath() + "' is not a maven cache");
-			
-			CacheWalker walker = new CacheWalker(getLog(), versionString);
-			getLog().info("Cleaning Maven local cache at '" + directory.getCanonicalPath() + "'");
-            if(null != versionString && !versionString.isEmpty())
-            {
-                getLog().info("Version pattern overridden to also include the following version prefixes: [" + versionString + "]");
-            }
-			walker.processDirectory(directory);
-			
-			// Print statistics
-			getLog().info("Total deleted " + walker.getDeleted() + " file(s).");
-			getLog().info("Reclaimed space " + getHrSize(walker.getReclaimedSpace()));
-			if(walker.getFailedToDelete() > 0)
-			{
-				getLog().info("Failed to delete " + walker.getFailedToDelete() + " file(s).");
+			if (oncePerBuild && !claimCache()) {
+				getLog().debug("Cache is cleaned in the first project of the build only");
+				return;
+			}
+			if (intervalHours < 0) throw new MojoExecutionException("Parameter intervalHours must not be negative, got " + intervalHours);
+			RunThrottle throttle = new RunThrottle(directory.toPath(), intervalHours * 60L * 60L * 1000L);
+			long now = System.currentTimeMillis();
+			if (!throttle.isDue(now)) {
+				getLog().info("Skipping cleanup, cache was cleaned within the last " + intervalHours + " hour(s)");
+				return;
+			}
+			if (async) {
+				if (!CleanupLock.isFree(directory.toPath())) {
+					getLog().info("Skipping cleanup, another cleanup of the cache is running");
+					return;
+				}
+				// Report bad parameters to the build, not to the log file
+				createGroupFilter();
+				loadCursor();
+				SizeBudget budget = createBudget();
+				if (budget != null) {
+					budget.close();
+				}
+				// The background process stamps the throttle once it succeeded
+				Path logFile = BackgroundRunner.start(directory.toPath(), getArguments());
+				getLog().info("Cleaning Maven local cache at '" + directory.getCanonicalPath() + "' in the background, see '" + logFile + "'");
+				return;
+			}
+
+			try (CleanupLock lock = CleanupLock.tryAcquire(directory.toPath())) {
+				if (lock == null) {
+					getLog().info("Skipping cleanup, another cleanup of the cache is running");
+					return;
+				}
+				cleanup();
+				if (intervalHours > 0) {
+					throttle.stamp(now);
+				}
 			}
 		} catch (IOException e) {
 			throw new MojoExecutionException("Unexpected exception during cache cleanup", e);
 		}
 	}
 
+	/**
+	 * Cleans the cache and reports statistics, used by the goal as well as by
+	 * the {@link BackgroundRunner}.
+	 */
+	void cleanup() throws MojoExecutionException, IOException {
+		RetentionPolicy retention = new RetentionPolicy(keepBuilds, keepDays);
+		GroupFilter groupFilter = createGroupFilter();
+		WalkCursor cursor = loadCursor();
+		SizeBudget budget = createBudget();
+		CacheWalker walker = new CacheWalker(getLog(), versionString, threads);
+		ScanIndex index = loadIndex(directory.toPath(), retention, budget != null);
+		walker.setRetentionPolicy(retention);
+		walker.setGroupFilter(groupFilter);
+		walker.setSizeBudget(budget);
+		walker.setScanIndex(index);
+		walker.setDeletionPipeline(deleteThreads, deleteQueueSize);
+		ArtifactGuard guard = null;
+		if (safeMode) {
+			guard = new ArtifactGuard(directory.toPath(), graceMinutes * 60L * 1000L);
+			walker.setArtifactGuard(guard);
+		}
+		MarkerPurger purger = null;
+		if (purgeMarkers) {
+			purger = new MarkerPurger(markerAgeHours * 60L * 60L * 1000L);
+			walker.setMarkerPurger(purger);
+		}
+		if (cursor != null) {
+			walker.setDeadline(System.currentTimeMillis() + maxDurationMinutes * 60L * 1000L, cursor);
+		}
+		getLog().info("Cleaning Maven local cache at '" + directory.getCanonicalPath() + "'");
+        if(null != versionString && !versionString.isEmpty())
+        {
+            getLog().info("Version pattern overridden to also include the following version prefixes: [" + versionString + "]");
+        }
+		if (!GroupFilter.split(includeGroups).isEmpty()) {
+			getLog().info("Cleaning only groups matching [" + includeGroups + "]");
+		}
+		if (!GroupFilter.split(excludeGroups).isEmpty()) {
+			getLog().info("Skipping groups matching [" + excludeGroups + "]");
+		}
+		if (cursor != null && !cursor.isEmpty()) {
+			getLog().info("Continuing after '" + cursor + "'");
+		}
+		try {
+			walker.processDirectory(directory);
+		} finally {
+			if (budget != null) {
+				budget.close();
+			}
+		}
+		if (cursor != null) {
+			saveCursor(walker, cursor);
+		}
+
+		long start = walker.getMetrics().startPhase();
+		try {
+			if (walker.isIncomplete()) {
+				index.keepUnvisited();
+			}
+			index.save();
+		} catch (IOException e) {
+			getLog().warn("Failed to save scan index: " + e);
+		}
+		walker.getMetrics().endPhase(CleanupMetrics.Phase.SAVE_INDEX, start);
+		
+		// Print statistics
+		getLog().info("Total deleted " + walker.getDeleted() + " file(s).");
+		getLog().info("Reclaimed space " + getHrSize(walker.getReclaimedSpace()));
+		if(walker.getFailedToDelete() > 0)
+		{
+			getLog().info("Failed to delete " + walker.getFailedToDelete() + " file(s).");
+		}
+		if (walker.getUpdatedMetadata() > 0) {
+			getLog().info("Removed deleted builds from " + walker.getUpdatedMetadata() + " maven-metadata file(s).");
+		}
+		if (budget != null) {
+			getLog().info("Cache size before eviction " + getHrSize(budget.getTotalSize()) + ", limit " + getHrSize(budget.getMaxSize()));
+			if (walker.getEvictedDirs() > 0) {
+				getLog().info("Evicted " + walker.getEvictedDirs() + " least recently used version directories.");
+			}
+		}
+		if (guard != null) {
+			reportGuard(guard);
+		}
+		if (purger != null) {
+			getLog().info("Purged " + purger.getLastUpdatedFiles() + " *.lastUpdated file(s) and "
+					+ purger.getStatusEntries() + " failed update check(s) of " + MarkerPurger.STATUS_FILE + ".");
+		}
+		if (index.getUnchangedDirs() > 0) {
+			getLog().info("Skipped " + index.getUnchangedDirs() + " unchanged snapshot directories.");
+		}
+		reportMetrics(walker);
+	}
+
+	File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return Cleanup parameters of the goal as <code>name=value</code>
+	 *         arguments for the {@link BackgroundRunner}
+	 */
+	List<String> getArguments() throws IOException {
+		List<String> arguments = new ArrayList<String>();
+		try {
+			for (String name : CLEANUP_PARAMETERS) {
+				Field field = getParameterField(name);
+				Object value = field.get(this);
+				if (value instanceof File) {
+					value = ((File) value).getAbsolutePath();
+				}
+				if (value != null) {
+					arguments.add(name + "=" + value);
+				}
+			}
+		} catch (IllegalAccessException e) {
+			throw new IOException("Cannot read parameters", e);
+		}
+		return arguments;
+	}
+
+	/**
+	 * Sets parameters given as <code>name=value</code> arguments, the
+	 * counterpart of {@link #getArguments()}.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if an argument names no cleanup parameter or has a bad
+	 *             value
+	 */
+	void configure(String[] arguments) {
+		try {
+			for (String argument : arguments) {
+				int separator = argument.indexOf('=');
+				String name = (separator >= 0) ? argument.substring(0, separator) : argument;
+				String value = (separator >= 0) ? argument.substring(separator + 1) : "";
+				if (!Arrays.asList(CLEANUP_PARAMETERS).contains(name))
+					throw new IllegalArgumentException("Unknown parameter '" + name + "'");
+
+				Field field = getParameterField(name);
+				if (field.getType() == File.class) {
+					field.set(this, new File(value));
+				} else if (field.getType() == int.class) {
+					field.setInt(this, Integer.parseInt(value));
+				} else if (field.getType() == boolean.class) {
+					field.setBoolean(this, Boolean.parseBoolean(value));
+				} else {
+					field.set(this, value);
+				}
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("Cannot set parameters", e);
+		}
+	}
+
+	/**
+	 * @return Field of one of the {@link #CLEANUP_PARAMETERS}
+	 */
+	private static Field getParameterField(String name) {
+		try {
+			Field field = CleanupMavenCache.class.getDeclaredField(name);
+			field.setAccessible(true);
+			return field;
+		} catch (NoSuchFieldException e) {
+			throw new IllegalStateException("No field of cleanup parameter '" + name + "'", e);
+		}
+	}
+
+	/**
+	 * Claims the cleanup of the cache for this execution. The first project
+	 * of the reactor may not run the goal at all, e.g. an aggregator whose
+	 * modules inherit the plugin from another parent, so the first execution
+	 * actually running claims it.
+	 *
+	 * @return <code>true</code> if no other execution of the build claimed
+	 *         the cache before or the goal runs without a session
+	 */
+	private boolean claimCache() throws IOException {
+		if (session == null)
+			return true;
+
+		File cacheDir = directory.getCanonicalFile();
+		synchronized (CLAIMED_CACHES) {
+			Set<File> caches = CLAIMED_CACHES.get(session);
+			if (caches == null) {
+				caches = new HashSet<File>();
+				CLAIMED_CACHES.put(session, caches);
+			}
+			return caches.add(cacheDir);
+		}
+	}
+
+	private void reportGuard(ArtifactGuard guard) {
+		if (guard.getBusyDirs() > 0) {
+			getLog().info("Skipped " + guard.getBusyDirs() + " version directories locked by running builds.");
+		}
+		if (guard.getChangedDirs() > 0) {
+			getLog().info("Skipped " + guard.getChangedDirs() + " snapshot directories changed during cleanup.");
+		}
+		if (guard.getRecentFiles() > 0) {
+			getLog().info("Kept " + guard.getRecentFiles() + " file(s) modified within the last " + graceMinutes
+					+ " minute(s).");
+		}
+	}
+
+	private void reportMetrics(CacheWalker walker) {
+		CleanupMetrics metrics = walker.getMetrics();
+		metrics.complete(walker.getDeleted(), walker.getFailedToDelete(), walker.getReclaimedSpace());
+		for (String line : metrics.getSummary()) {
+			getLog().info(line);
+		}
+
+		if (metricsFile != null) {
+			try {
+				CleanupMetrics.writePrometheus(metricsFile.toPath(),
+						Collections.singletonMap(directory.toPath().toAbsolutePath(), metrics));
+			} catch (IOException e) {
+				getLog().warn("Failed to write metrics to '" + metricsFile + "': " + e);
+			}
+		}
+	}
+
+	private GroupFilter createGroupFilter() throws MojoExecutionException {
+		try {
+			return new GroupFilter(GroupFilter.split(includeGroups), GroupFilter.split(excludeGroups));
+		} catch (IllegalArgumentException e) {
+			throw new MojoExecutionException("Parameters includeGroups and excludeGroups require groupId patterns like com.acme.**: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * @return Position of the previous time limited cleanup, <code>null</code>
+	 *         without time limit
+	 */
+	private WalkCursor loadCursor() throws MojoExecutionException {
+		if (maxDurationMinutes <= 0)
+			return null;
+		if (maxSize != null && !maxSize.trim().isEmpty())
+			throw new MojoExecutionException("Parameter maxDurationMinutes can not be used together with maxSize, the size limit needs the whole cache");
+
+		try {
+			return WalkCursor.load(directory.toPath());
+		} catch (IOException e) {
+			getLog().warn("Failed to read walk cursor, starting from the beginning: " + e);
+			return WalkCursor.create(directory.toPath());
+		}
+	}
+
+	private void saveCursor(CacheWalker walker, WalkCursor cursor) {
+		try {
+			if (!walker.isIncomplete()) {
+				cursor.clear();
+				return;
+			}
+			if (walker.getLastCompleted() != null) {
+				cursor.save(walker.getLastCompleted());
+			}
+			Path last = walker.getLastCompleted();
+			getLog().info("Stopped after " + maxDurationMinutes + " minute(s), next run continues after '"
+					+ ((last != null) ? directory.toPath().relativize(last) : cursor) + "'");
+		} catch (IOException e) {
+			getLog().warn("Failed to save walk cursor: " + e);
+		}
+	}
+
+	private SizeBudget createBudget() throws MojoExecutionException {
+		if (maxSize == null || maxSize.trim().isEmpty())
+			return null;
+
+		try {
+			return new SizeBudget(SizeBudget.parseSize(maxSize));
+		} catch (IllegalArgumentException e) {
+			throw new MojoExecutionException("Parameter maxSize requires a size like 200G, got '" + maxSize + "'");
+		}
+	}
+
+	private ScanIndex loadIndex(Path cacheDir, RetentionPolicy retention, boolean measure) {
+		if (fullScan || measure) {
+			// Complete rescan, index gets rebuilt from scratch. Measuring the
+			// cache size needs every directory listed.
+			return ScanIndex.create(cacheDir, retention.toString(), versionString);
+		}
+
+		try {
+			return ScanIndex.load(cacheDir, retention.toString(), versionString);
+		} catch (IOException e) {
+			getLog().warn("Failed to read scan index, performing full scan: " + e);
+			return ScanIndex.create(cacheDir, retention.toString(), versionString);
+		}
+	}
+
 	private boolean isValidCache(File cacheDir) throws IOException {
 
 	    // TODO Implement tests that cacheDir is really maven cache directory. At the moment I have no any particular rules for that.
@@ -0,0 +1,335 @@
+package ch.ringler.tools.m2cachecleanup;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and timings of one cleanup run: wall time per phase, directories
+ * listed, entries stat'ed, file names parsed, deletes issued and a latency
+ * histogram of the deletes. Safe to use from traversal and deletion threads,
+ * callers add per directory counts in one step to keep contention low.
+ * <p>
+ * The result is available as a short summary and in the Prometheus text
+ * format for the node_exporter textfile collector.
+ */
+final class CleanupMetrics {
+	/**
+	 * Phases of a run, in execution order
+	 */
+	enum Phase {
+		WALK("walk"), DRAIN("drain"), EVICT("evict"), DEDUP("dedup"), SAVE_INDEX(
+				"index");
+
+		private final String m_label;
+
+		Phase(String label) {
+			m_label = label;
+		}
+
+		String getLabel() {
+			return m_label;
+		}
+	}
+
+	// Upper bounds of the delete latency buckets in nanoseconds
+	private static final long[] LATENCY_BOUNDS = { 10000L, 50000L, 100000L,
+			500000L, 1000000L, 5000000L, 10000000L, 50000000L, 100000000L,
+			500000000L, 1000000000L };
+
+	private static final String PREFIX = "m2cachecleanup_";
+
+	private long m_startNanos;
+	private final AtomicLongArray m_phaseNanos;
+	private final AtomicLong m_directoriesListed;
+	private final AtomicLong m_entriesStated;
+	private final AtomicLong m_namesParsed;
+	private final AtomicLong m_deletesIssued;
+	private final AtomicLongArray m_latencyBuckets;
+	private final AtomicLong m_latencySum;
+	private final AtomicLong m_latencyMax;
+
+	private long m_runNanos;
+	private long m_deletedFiles;
+	private long m_failedDeletes;
+	private long m_reclaimedBytes;
+
+	CleanupMetrics() {
+		m_startNanos = System.nanoTime();
+		m_phaseNanos = new AtomicLongArray(Phase.values().length);
+		m_directoriesListed = new AtomicLong(0L);
+		m_entriesStated = new AtomicLong(0L);
+		m_namesParsed = new AtomicLong(0L);
+		m_deletesIssued = new AtomicLong(0L);
+		m_latencyBuckets = new AtomicLongArray(LATENCY_BOUNDS.length + 1);
+		m_latencySum = new AtomicLong(0L);
+		m_latencyMax = new AtomicLong(0L);
+	}
+
+	/**
+	 * @return Start time to pass to {@link #endPhase(Phase, long)}
+	 */
+	long startPhase() {
+		return System.nanoTime();
+	}
+
+	void endPhase(Phase phase, long start) {
+		m_phaseNanos.addAndGet(phase.ordinal(), System.nanoTime() - start);
+	}
+
+	/**
+	 * Accounts one listed directory.
+	 *
+	 * @param stated
+	 *            Number of entries whose attributes were read
+	 */
+	void addListing(int stated) {
+		m_directoriesListed.incrementAndGet();
+		m_entriesStated.addAndGet(stated);
+	}
+
+	void addParsedNames(int count) {
+		m_namesParsed.addAndGet(count);
+	}
+
+	/**
+	 * Accounts one issued delete, successful or not.
+	 */
+	void addDelete(long nanos) {
+		m_deletesIssued.incrementAndGet();
+
+		int bucket = 0;
+		while (bucket < LATENCY_BOUNDS.length
+				&& nanos > LATENCY_BOUNDS[bucket])
+			bucket++;
+		m_latencyBuckets.incrementAndGet(bucket);
+		m_latencySum.addAndGet(nanos);
+
+		long max = m_latencyMax.get();
+		while (nanos > max && !m_latencyMax.compareAndSet(max, nanos)) {
+			max = m_latencyMax.get();
+		}
+	}
+
+	/**
+	 * Starts the next run over the same cache, e.g. a rescan of a watched
+	 * cache. Everything accounted so far is dropped.
+	 */
+	void reset() {
+		m_startNanos = System.nanoTime();
+		for (int i = 0; i < m_phaseNanos.length(); i++) {
+			m_phaseNanos.set(i, 0L);
+		}
+		m_directoriesListed.set(0L);
+		m_entriesStated.set(0L);
+		m_namesParsed.set(0L);
+		m_deletesIssued.set(0L);
+		for (int i = 0; i < m_latencyBuckets.length(); i++) {
+			m_latencyBuckets.set(i, 0L);
+		}
+		m_latencySum.set(0L);
+		m_latencyMax.set(0L);
+	}
+
+	/**
+	 * Completes the run with the totals kept by the walker.
+	 */
+	void complete(long deletedFiles, long failedDeletes, long reclaimedBytes) {
+		m_runNanos = System.nanoTime() - m_startNanos;
+		m_deletedFiles = deletedFiles;
+		m_failedDeletes = failedDeletes;
+		m_reclaimedBytes = reclaimedBytes;
+	}
+
+	/**
+	 * @return Human readable summary, one line per entry
+	 */
+	List<String> getSummary() {
+		List<String> lines = new ArrayList<String>();
+
+		StringBuilder phases = new StringBuilder("Phase times:");
+		String separator = " ";
+		for (Phase phase : Phase.values()) {
+			long nanos = m_phaseNanos.get(phase.ordinal());
+			if (nanos == 0L)
+				continue;
+			phases.append(separator).append(phase.getLabel()).append(' ')
+					.append(formatSeconds(nanos)).append(" s");
+			separator = ", ";
+		}
+		phases.append(separator).append("total ")
+				.append(formatSeconds(m_runNanos)).append(" s");
+		lines.add(phases.toString());
+
+		lines.add("Listed " + m_directoriesListed.get()
+				+ " directories, stat'ed " + m_entriesStated.get()
+				+ " entries, parsed " + m_namesParsed.get() + " file names.");
+
+		long deletes = m_deletesIssued.get();
+		if (deletes > 0) {
+			lines.add("Issued " + deletes + " deletes, latency p50 <= "
+					+ formatMillis(getLatencyPercentile(0.5)) + " ms, p99 <= "
+					+ formatMillis(getLatencyPercentile(0.99)) + " ms, max "
+					+ formatMillis(m_latencyMax.get()) + " ms.");
+		}
+		return lines;
+	}
+
+	/**
+	 * Writes metrics in the Prometheus text format. The file is replaced
+	 * atomically, so the collector never reads a partial file.
+	 *
+	 * @param runs
+	 *            Metrics by cache directory, the directory is used as label
+	 *            value
+	 */
+	static void writePrometheus(Path file, Map<Path, CleanupMetrics> runs)
+			throws IOException {
+		Path dir = file.toAbsolutePath().getParent();
+		Files.createDirectories(dir);
+		Path tmpFile = dir.resolve(file.getFileName() + ".tmp");
+		Map<String, CleanupMetrics> labels = new LinkedHashMap<String, CleanupMetrics>();
+		for (Map.Entry<Path, CleanupMetrics> run : runs.entrySet()) {
+			labels.put("repository=\"" + escape(run.getKey().toString())
+					+ "\"", run.getValue());
+		}
+
+		try (BufferedWriter out = Files.newBufferedWriter(tmpFile,
+				StandardCharsets.UTF_8)) {
+			String now = Long.toString(System.currentTimeMillis() / 1000L);
+			header(out, "last_run_timestamp_seconds",
+					"Time when the last cleanup run completed.", "gauge");
+			for (String label : labels.keySet()) {
+				sample(out, "last_run_timestamp_seconds", label, now);
+			}
+			header(out, "run_duration_seconds",
+					"Wall time of the last cleanup run.", "gauge");
+			for (Map.Entry<String, CleanupMetrics> run : labels.entrySet()) {
+				sample(out, "run_duration_seconds", run.getKey(),
+						formatSeconds(run.getValue().m_runNanos));
+			}
+
+			header(out, "phase_duration_seconds",
+					"Wall time of a cleanup phase.", "gauge");
+			for (Map.Entry<String, CleanupMetrics> run : labels.entrySet()) {
+				for (Phase phase : Phase.values()) {
+					sample(out, "phase_duration_seconds", run.getKey()
+							+ ",phase=\"" + phase.getLabel() + "\"",
+							formatSeconds(run.getValue().m_phaseNanos
+									.get(phase.ordinal())));
+				}
+			}
+
+			String[][] gauges = {
+					{ "directories_listed", "Directories listed." },
+					{ "entries_stated", "Directory entries stat'ed." },
+					{ "filenames_parsed",
+							"File names parsed for a snapshot version." },
+					{ "deletes_issued", "File deletes issued." },
+					{ "deleted_files", "Files deleted." },
+					{ "failed_deletes", "Files that failed to be deleted." },
+					{ "reclaimed_bytes", "Size of the deleted files." } };
+			for (int i = 0; i < gauges.length; i++) {
+				header(out, gauges[i][0], gauges[i][1], "gauge");
+				for (Map.Entry<String, CleanupMetrics> run : labels.entrySet()) {
+					sample(out, gauges[i][0], run.getKey(),
+							Long.toString(run.getValue().getCounters()[i]));
+				}
+			}
+
+			header(out, "delete_latency_seconds", "Latency of file deletes.",
+					"histogram");
+			for (Map.Entry<String, CleanupMetrics> run : labels.entrySet()) {
+				run.getValue().writeLatency(out, run.getKey());
+			}
+		}
+
+		Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return Counters in the order of the gauges written by
+	 *         {@link #writePrometheus(Path, Map)}
+	 */
+	private long[] getCounters() {
+		return new long[] { m_directoriesListed.get(), m_entriesStated.get(),
+				m_namesParsed.get(), m_deletesIssued.get(), m_deletedFiles,
+				m_failedDeletes, m_reclaimedBytes };
+	}
+
+	private void writeLatency(BufferedWriter out, String label)
+			throws IOException {
+		long cumulative = 0L;
+		for (int i = 0; i < LATENCY_BOUNDS.length; i++) {
+			cumulative += m_latencyBuckets.get(i);
+			sample(out, "delete_latency_seconds_bucket", label + ",le=\""
+					+ formatSeconds(LATENCY_BOUNDS[i]) + "\"",
+					Long.toString(cumulative));
+		}
+		cumulative += m_latencyBuckets.get(LATENCY_BOUNDS.length);
+		sample(out, "delete_latency_seconds_bucket", label + ",le=\"+Inf\"",
+				Long.toString(cumulative));
+		sample(out, "delete_latency_seconds_sum", label,
+				formatSeconds(m_latencySum.get()));
+		sample(out, "delete_latency_seconds_count", label,
+				Long.toString(cumulative));
+	}
+
+	/**
+	 * @return Upper bound in nanoseconds of the bucket holding the
+	 *         percentile, the maximum for the last bucket
+	 */
+	private long getLatencyPercentile(double percentile) {
+		long count = 0L;
+		for (int i = 0; i < m_latencyBuckets.length(); i++) {
+			count += m_latencyBuckets.get(i);
+		}
+
+		long rank = (long) Math.ceil(count * percentile);
+		long seen = 0L;
+		for (int i = 0; i < LATENCY_BOUNDS.length; i++) {
+			seen += m_latencyBuckets.get(i);
+			if (seen >= rank)
+				return Math.min(LATENCY_BOUNDS[i], m_latencyMax.get());
+		}
+		return m_latencyMax.get();
+	}
+
+	private static void header(BufferedWriter out, String name, String help,
+			String type) throws IOException {
+		out.write("# HELP " + PREFIX + name + " " + help);
+		out.newLine();
+		out.write("# TYPE " + PREFIX + name + " " + type);
+		out.newLine();
+	}
+
+	private static void sample(BufferedWriter out, String name,
+			String labels, String value) throws IOException {
+		out.write(PREFIX + name + "{" + labels + "} " + value);
+		out.newLine();
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"")
+				.replace("\n", "\\n");
+	}
+
+	private static String formatSeconds(long nanos) {
+		return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+	}
+
+	private static String formatMillis(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+}
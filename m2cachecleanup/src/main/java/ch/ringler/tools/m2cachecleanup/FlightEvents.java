@@ -0,0 +1,112 @@
+package ch.ringler.tools.m2cachecleanup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Emits Java Flight Recorder events for processed snapshot directories and
+ * deletion batches.
+ * <p>
+ * The events live in <code>JfrFlightEvents</code>, which is loaded only when
+ * the running JVM provides <code>jdk.jfr</code>. Older runtimes get an
+ * implementation doing nothing, so the rest of the code never references JFR
+ * types. Builds on JDKs before 11 leave the class out (profile
+ * <code>no-jfr</code>), the events are then never emitted. Events are
+ * enabled by default, while no recording is running they cost an allocation
+ * and a flag check.
+ */
+abstract class FlightEvents {
+	private static final FlightEvents INSTANCE = create();
+
+	/**
+	 * Implementation used when Flight Recorder is not available
+	 */
+	static final FlightEvents NONE = new FlightEvents() {
+		@Override
+		Object beginSnapshotDir() {
+			return null;
+		}
+
+		@Override
+		void commitSnapshotDir(Object event, Path dir, int files, long size,
+				int outdatedFiles, long outdatedSize) {
+		}
+
+		@Override
+		Object beginDeletionBatch() {
+			return null;
+		}
+
+		@Override
+		void commitDeletionBatch(Object event, int files, long size) {
+		}
+
+		@Override
+		Closeable startRecording(Path file) throws IOException {
+			throw new IOException(
+					"Java Flight Recorder is not available in this JVM");
+		}
+	};
+
+	static FlightEvents getInstance() {
+		return INSTANCE;
+	}
+
+	private static FlightEvents create() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			String name = FlightEvents.class.getPackage().getName()
+					+ ".JfrFlightEvents";
+			return (FlightEvents) Class.forName(name)
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError
+				| SecurityException e) {
+			return NONE;
+		}
+	}
+
+	/**
+	 * Starts timing of a snapshot directory.
+	 *
+	 * @return Event to pass to
+	 *         {@link #commitSnapshotDir(Object, Path, int, long, int, long)},
+	 *         <code>null</code> if events are disabled
+	 */
+	abstract Object beginSnapshotDir();
+
+	/**
+	 * Records a processed snapshot directory.
+	 *
+	 * @param files
+	 *            Number of timestamped files found in the directory
+	 * @param size
+	 *            Size of the timestamped files
+	 * @param outdatedFiles
+	 *            Number of files selected for deletion
+	 * @param outdatedSize
+	 *            Size of the files selected for deletion
+	 */
+	abstract void commitSnapshotDir(Object event, Path dir, int files,
+			long size, int outdatedFiles, long outdatedSize);
+
+	/**
+	 * Starts timing of a batch of deletes.
+	 *
+	 * @return Event to pass to {@link #commitDeletionBatch(Object, int, long)},
+	 *         <code>null</code> if events are disabled
+	 */
+	abstract Object beginDeletionBatch();
+
+	abstract void commitDeletionBatch(Object event, int files, long size);
+
+	/**
+	 * Starts a recording with the default settings which is written to
+	 * <code>file</code> when closed.
+	 *
+	 * @throws IOException
+	 *             if Flight Recorder is not available or the recording
+	 *             could not be started
+	 */
+	abstract Closeable startRecording(Path file) throws IOException;
+}
@@ -0,0 +1,246 @@
+package ch.ringler.tools.m2cachecleanup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Removes markers of failed downloads, which keep Maven from retrying an
+ * artifact until the update interval of its repository expires.
+ * <p>
+ * A failed artifact download leaves <code>&lt;file&gt;.lastUpdated</code>
+ * next to the missing file, failed metadata updates are recorded as
+ * <code>.error</code> entries of <code>resolver-status.properties</code>.
+ * Markers are removed once they are older than the threshold or the file
+ * they refer to is present meanwhile. Entries of successful update checks
+ * are kept, removing them would only cause more remote requests.
+ * <p>
+ * Status files are rewritten while holding a lock on them, the same way
+ * Maven Resolver updates them. Files locked by a running build are left
+ * alone.
+ */
+final class MarkerPurger {
+	static final String LAST_UPDATED_SUFFIX = ".lastUpdated";
+
+	static final String STATUS_FILE = "resolver-status.properties";
+
+	private static final String ERROR_SUFFIX = ".error";
+
+	/**
+	 * Accepts names of marker files
+	 */
+	static final DirectoryStream.Filter<Path> MARKER_FILTER = new DirectoryStream.Filter<Path>() {
+		public boolean accept(Path path) {
+			String name = path.getFileName().toString();
+			return name.endsWith(LAST_UPDATED_SUFFIX)
+					|| STATUS_FILE.equals(name);
+		}
+	};
+
+	private final long m_maxAgeMillis;
+	private final AtomicLong m_lastUpdatedFiles;
+	private final AtomicLong m_statusEntries;
+
+	/**
+	 * @param maxAgeMillis
+	 *            Markers older than this are removed even if the file they
+	 *            refer to is still missing
+	 */
+	MarkerPurger(long maxAgeMillis) {
+		m_maxAgeMillis = maxAgeMillis;
+		m_lastUpdatedFiles = new AtomicLong(0L);
+		m_statusEntries = new AtomicLong(0L);
+	}
+
+	/**
+	 * Removes outdated markers found in a directory.
+	 *
+	 * @param markers
+	 *            Marker files of the directory, see {@link #MARKER_FILTER}
+	 * @param deleter
+	 *            Receives marker files to remove
+	 * @param rewrite
+	 *            <code>false</code> leaves status files with failure entries
+	 *            untouched, e.g. while planning
+	 * @throws IOException
+	 *             if the status file cannot be read or rewritten, all
+	 *             <code>*.lastUpdated</code> files are processed already
+	 */
+	void purge(Path dir, List<DirectoryScanner.Entry> markers,
+			FileDeleter deleter, boolean rewrite) throws IOException {
+		long expired = System.currentTimeMillis() - m_maxAgeMillis;
+
+		DirectoryScanner.Entry statusFile = null;
+		for (DirectoryScanner.Entry marker : markers) {
+			String name = marker.getName();
+			if (STATUS_FILE.equals(name)) {
+				statusFile = marker;
+				continue;
+			}
+
+			String target = name.substring(0, name.length()
+					- LAST_UPDATED_SUFFIX.length());
+			if (marker.getAttributes().lastModifiedTime().toMillis() < expired
+					|| Files.exists(dir.resolve(target))) {
+				deleter.delete(marker.getPath(), marker.getAttributes());
+				m_lastUpdatedFiles.incrementAndGet();
+			}
+		}
+
+		if (statusFile != null && rewrite) {
+			purgeStatusFile(statusFile, expired, deleter);
+		}
+	}
+
+	/**
+	 * @return Number of removed <code>*.lastUpdated</code> files
+	 */
+	long getLastUpdatedFiles() {
+		return m_lastUpdatedFiles.get();
+	}
+
+	/**
+	 * @return Number of failed update checks removed from status files
+	 */
+	long getStatusEntries() {
+		return m_statusEntries.get();
+	}
+
+	/**
+	 * Drops the counts of the previous run.
+	 */
+	void resetStatistics() {
+		m_lastUpdatedFiles.set(0L);
+		m_statusEntries.set(0L);
+	}
+
+	private void purgeStatusFile(DirectoryScanner.Entry statusFile,
+			long expired, FileDeleter deleter) throws IOException {
+		Path file = statusFile.getPath();
+		boolean empty = false;
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			FileLock lock;
+			try {
+				lock = channel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				lock = null;
+			}
+			if (lock == null)
+				return;
+
+			Properties status = read(channel);
+			List<String> failures = selectFailures(file.getParent(), status,
+					expired);
+			if (failures.isEmpty())
+				return;
+
+			for (String key : failures) {
+				String check = key.substring(0,
+						key.length() - ERROR_SUFFIX.length());
+				status.remove(key);
+				status.remove(check + LAST_UPDATED_SUFFIX);
+			}
+			m_statusEntries.addAndGet(failures.size());
+
+			empty = status.isEmpty();
+			if (!empty) {
+				write(channel, status);
+			}
+		}
+
+		if (empty) {
+			// Deleted once closed, open files cannot be deleted everywhere
+			deleter.delete(file, statusFile.getAttributes());
+		}
+	}
+
+	/**
+	 * @return Keys of failed update checks which are outdated or refer to a
+	 *         file present meanwhile
+	 */
+	private static List<String> selectFailures(Path dir, Properties status,
+			long expired) {
+		List<String> failures = new ArrayList<String>();
+		for (String key : status.stringPropertyNames()) {
+			if (!key.endsWith(ERROR_SUFFIX))
+				continue;
+
+			// Keys look like <file>/<repository>.error or <file>><repository>.error
+			String check = key.substring(0, key.length() - ERROR_SUFFIX.length());
+			long lastUpdated = parseTime(status.getProperty(check
+					+ LAST_UPDATED_SUFFIX));
+			int end = indexOfSeparator(check);
+			String target = (end > 0) ? check.substring(0, end) : null;
+
+			if (lastUpdated < expired
+					|| (target != null && Files.exists(dir.resolve(target)))) {
+				failures.add(key);
+			}
+		}
+		return failures;
+	}
+
+	private static int indexOfSeparator(String check) {
+		for (int i = 0; i < check.length(); i++) {
+			char c = check.charAt(i);
+			if (c == '/' || c == '>')
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Time of the check, 0 if unknown so the entry counts as outdated
+	 */
+	private static long parseTime(String value) {
+		if (value == null)
+			return 0L;
+
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return 0L;
+		}
+	}
+
+	private static Properties read(FileChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+		while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+			// Read the whole file
+		}
+		Properties status = new Properties();
+		try {
+			status.load(new ByteArrayInputStream(buffer.array(), 0,
+					buffer.position()));
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Malformed status file", e);
+		}
+		return status;
+	}
+
+	private static void write(FileChannel channel, Properties status)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		status.store(out, "Last modified on: " + new Date());
+		channel.truncate(0L);
+		channel.position(0L);
+		ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
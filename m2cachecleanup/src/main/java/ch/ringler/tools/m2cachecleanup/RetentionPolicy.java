@@ -0,0 +1,136 @@
+package ch.ringler.tools.m2cachecleanup;
+
+import java.util.Arrays;
+
+/**
+ * Decides which timestamped builds of a snapshot version survive the
+ * cleanup. A build is kept if it is one of the newest <code>keepBuilds</code>
+ * builds or if it is younger than <code>keepDays</code> days. The newest
+ * build is always kept.
+ */
+final class RetentionPolicy {
+	private static final long MILLIS_PER_DAY = 24L * 60L * 60L * 1000L;
+
+	/**
+	 * Keeps the latest build only
+	 */
+	static final RetentionPolicy LATEST = new RetentionPolicy(1, 0);
+
+	private final int m_keepBuilds;
+	private final int m_keepDays;
+	private final long m_cutoffSeconds;
+
+	/**
+	 * @param keepBuilds
+	 *            Number of newest builds to keep, at least 1
+	 * @param keepDays
+	 *            Keep builds younger than this number of days, 0 disables the
+	 *            age rule
+	 */
+	RetentionPolicy(int keepBuilds, int keepDays) {
+		m_keepBuilds = Math.max(1, keepBuilds);
+		m_keepDays = Math.max(0, keepDays);
+		// Cutoff is fixed once, so all directories of a run are judged alike
+		m_cutoffSeconds = (m_keepDays > 0) ? (System.currentTimeMillis() - m_keepDays
+				* MILLIS_PER_DAY) / 1000L
+				: Long.MAX_VALUE;
+	}
+
+	/**
+	 * @return Stable textual form of the policy, used to detect policy changes
+	 *         between runs
+	 */
+	@Override
+	public String toString() {
+		return "keep=" + m_keepBuilds + ",days=" + m_keepDays;
+	}
+
+	/**
+	 * @return <code>true</code> if only the newest build survives, so the
+	 *         current build named by the snapshot metadata decides alone
+	 */
+	boolean keepsLatestOnly() {
+		return m_keepBuilds == 1 && m_keepDays == 0;
+	}
+
+	Selector newSelector() {
+		return new Selector();
+	}
+
+	/**
+	 * Selects builds of one snapshot directory. All version keys are offered
+	 * first, then {@link #retains(long)} tells which ones to keep.
+	 * <p>
+	 * Only the <code>keepBuilds</code> greatest distinct keys are held, in a
+	 * small sorted array, so thousands of builds are never sorted as a whole.
+	 */
+	final class Selector {
+		// Ascending, m_top[0] is the smallest of the newest builds
+		private final long[] m_top;
+		private int m_size;
+		private long m_expires;
+
+		private Selector() {
+			m_top = new long[m_keepBuilds];
+			m_size = 0;
+			m_expires = Long.MAX_VALUE;
+		}
+
+		void offer(long key) {
+			if (key == SnapshotVersionParser.INVALID)
+				return;
+
+			if (m_size == m_top.length && key <= m_top[0])
+				return;
+
+			int pos = Arrays.binarySearch(m_top, 0, m_size, key);
+			if (pos >= 0)
+				return; // Another file of an already known build
+
+			int insert = -pos - 1;
+			if (m_size < m_top.length) {
+				System.arraycopy(m_top, insert, m_top, insert + 1, m_size
+						- insert);
+				m_top[insert] = key;
+				m_size++;
+			} else {
+				// Drop the smallest key
+				System.arraycopy(m_top, 1, m_top, 0, insert - 1);
+				m_top[insert - 1] = key;
+			}
+		}
+
+		/**
+		 * @return Key of the newest build or
+		 *         {@link SnapshotVersionParser#INVALID} if nothing was offered
+		 */
+		long getLatest() {
+			return (m_size > 0) ? m_top[m_size - 1]
+					: SnapshotVersionParser.INVALID;
+		}
+
+		boolean retains(long key) {
+			if (m_size == 0)
+				return true;
+			if (m_size < m_top.length || key >= m_top[0])
+				return true;
+
+			long seconds = SnapshotVersionParser.getEpochSeconds(key);
+			if (seconds >= m_cutoffSeconds) {
+				// Kept for its age only, it expires later
+				m_expires = Math.min(m_expires, (seconds + m_keepDays
+						* MILLIS_PER_DAY / 1000L) * 1000L);
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * @return Time in millis when the first build kept for its age only
+		 *         has to be removed, {@link Long#MAX_VALUE} if there is none
+		 */
+		long getExpires() {
+			return m_expires;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package ch.ringler.tools.m2cachecleanup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Limits how often the cache is cleaned, based on a stamp file
+ * <code>.m2cachecleanup/last-run</code> inside the cache directory.
+ * <p>
+ * The stamp holds the start time of the last successful cleanup in
+ * milliseconds. It is written once the cleanup has finished, so a failed
+ * cleanup is retried by the next build. Builds starting meanwhile are kept
+ * from walking the cache at the same time by the {@link CleanupLock}.
+ */
+final class RunThrottle {
+	private static final String STAMP_FILE = "last-run";
+
+	private final Path m_stampFile;
+	private final long m_interval;
+
+	/**
+	 * @param cacheDir
+	 *            Cache directory holding the stamp
+	 * @param interval
+	 *            Minimal time between two cleanups in milliseconds, 0 cleans
+	 *            on every run
+	 */
+	RunThrottle(Path cacheDir, long interval) {
+		m_stampFile = cacheDir.resolve(ScanIndex.STATE_DIR).resolve(STAMP_FILE);
+		m_interval = interval;
+	}
+
+	/**
+	 * @return Start time of the last successful cleanup,
+	 *         {@link Long#MIN_VALUE} if the cache was never cleaned or the
+	 *         stamp cannot be read
+	 */
+	long getLastRun() {
+		String stamp;
+		try {
+			stamp = new String(Files.readAllBytes(m_stampFile), StandardCharsets.UTF_8).trim();
+		} catch (IOException e) {
+			// Missing or unreadable, cleaning once too often does no harm
+			return Long.MIN_VALUE;
+		}
+
+		try {
+			return Long.parseLong(stamp);
+		} catch (NumberFormatException e) {
+			return Long.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the interval has passed since the last
+	 *         cleanup. A stamp in the future, e.g. after the clock was set
+	 *         back, does not block cleanups.
+	 */
+	boolean isDue(long now) {
+		if (m_interval <= 0L)
+			return true;
+
+		long lastRun = getLastRun();
+		return lastRun == Long.MIN_VALUE || lastRun > now || now - lastRun >= m_interval;
+	}
+
+	/**
+	 * Records a successful cleanup started at the given time.
+	 */
+	void stamp(long now) throws IOException {
+		Path stateDir = m_stampFile.getParent();
+		Files.createDirectories(stateDir);
+		Path tmpFile = stateDir.resolve(STAMP_FILE + ".tmp");
+		Files.write(tmpFile, Long.toString(now).getBytes(StandardCharsets.UTF_8));
+		Files.move(tmpFile, m_stampFile, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,210 @@
+package ch.ringler.tools.m2cachecleanup;
+
+/**
+ * Hand-written parser of the unique snapshot version part of a file name
+ * ("yyyyMMdd.HHmmss-N" followed by classifier and extension).
+ * <p>
+ * The version is decoded straight from the characters into a packed
+ * <code>long</code> key: UTC seconds (biased to stay positive) in the upper
+ * bits and the build number in the lower {@value #BUILD_BITS} bits. Keys of
+ * two versions compare exactly like the versions themselves, so no
+ * <code>Date</code>, <code>Matcher</code> or <code>String</code> has to be
+ * created per file.
+ * <p>
+ * Accepted names are the same as for the former regular expression
+ * <code>(\d{8})\.(\d{6})\-(\d+)(.+)</code>, out of range date fields are
+ * rolled over like a lenient <code>SimpleDateFormat</code> does.
+ */
+final class SnapshotVersionParser {
+	/**
+	 * Returned for names that do not carry a unique snapshot version
+	 */
+	static final long INVALID = -1L;
+
+	static final int BUILD_BITS = 24;
+	static final int MAX_BUILD_NO = (1 << BUILD_BITS) - 1;
+
+	// Keeps seconds of years before 1970 positive
+	private static final long SECONDS_BIAS = 1L << 36;
+	private static final long SECONDS_PER_DAY = 24L * 60L * 60L;
+	private static final int VERSION_LEN = "yyyyMMdd.HHmmss-".length();
+
+	private SnapshotVersionParser() {
+	}
+
+	/**
+	 * Parses the unique version starting at <code>offset</code> and running to
+	 * the end of the name.
+	 *
+	 * @return packed version key or {@link #INVALID}
+	 */
+	static long parse(CharSequence name, int offset) {
+		int len = name.length();
+		// Timestamp, at least one build digit and at least one trailing char
+		if (len - offset < VERSION_LEN + 2)
+			return INVALID;
+
+		int year = digits(name, offset, 4);
+		int month = digits(name, offset + 4, 2);
+		int day = digits(name, offset + 6, 2);
+		int hour = digits(name, offset + 9, 2);
+		int minute = digits(name, offset + 11, 2);
+		int second = digits(name, offset + 13, 2);
+		if ((year | month | day | hour | minute | second) < 0
+				|| name.charAt(offset + 8) != '.'
+				|| name.charAt(offset + 15) != '-')
+			return INVALID;
+
+		int buildStart = offset + VERSION_LEN;
+		int buildEnd = buildStart;
+		while (buildEnd < len && isDigit(name.charAt(buildEnd)))
+			buildEnd++;
+
+		if (buildEnd == buildStart)
+			return INVALID;
+		if (buildEnd == len) {
+			// Name ends with digits. The regex gives the last one to the
+			// mandatory trailing group.
+			if (buildEnd - buildStart < 2)
+				return INVALID;
+			buildEnd--;
+		}
+
+		// The trailing group is ".+", which does not match line terminators
+		for (int i = buildEnd; i < len; i++) {
+			if (isLineTerminator(name.charAt(i)))
+				return INVALID;
+		}
+
+		long buildNo = 0L;
+		for (int i = buildStart; i < buildEnd; i++) {
+			buildNo = buildNo * 10L + (name.charAt(i) - '0');
+			if (buildNo > MAX_BUILD_NO)
+				return INVALID;
+		}
+
+		return pack(toEpochSeconds(year, month, day, hour, minute, second),
+				(int) buildNo);
+	}
+
+	static long parse(CharSequence version) {
+		return parse(version, 0);
+	}
+
+	/**
+	 * Parses a bare unique version "yyyyMMdd.HHmmss-N" as found in snapshot
+	 * metadata, nothing follows the build number there.
+	 *
+	 * @return packed version key or {@link #INVALID}
+	 */
+	static long parseVersion(String version) {
+		// File names carry at least one character after the build number
+		return parse(version + ".", 0);
+	}
+
+	static long pack(long epochSeconds, int buildNo) {
+		return ((epochSeconds + SECONDS_BIAS) << BUILD_BITS) | buildNo;
+	}
+
+	/**
+	 * @return UTC seconds since 1970-01-01 of the version timestamp
+	 */
+	static long getEpochSeconds(long key) {
+		return (key >>> BUILD_BITS) - SECONDS_BIAS;
+	}
+
+	static int getBuildNo(long key) {
+		return (int) (key & MAX_BUILD_NO);
+	}
+
+	/**
+	 * Formats key back to "yyyyMMdd.HHmmss-N"
+	 */
+	static String format(long key) {
+		long seconds = getEpochSeconds(key);
+		long days = floorDiv(seconds, SECONDS_PER_DAY);
+		int secondOfDay = (int) (seconds - days * SECONDS_PER_DAY);
+
+		// Civil date from day number, see days_from_civil below
+		long z = days + 719468L;
+		long era = floorDiv(z, 146097L);
+		long doe = z - era * 146097L;
+		long yoe = (doe - doe / 1460L + doe / 36524L - doe / 146096L) / 365L;
+		long doy = doe - (365L * yoe + yoe / 4L - yoe / 100L);
+		long mp = (5L * doy + 2L) / 153L;
+		int day = (int) (doy - (153L * mp + 2L) / 5L + 1L);
+		int month = (int) (mp < 10L ? mp + 3L : mp - 9L);
+		long year = yoe + era * 400L + (month <= 2 ? 1L : 0L);
+
+		StringBuilder sb = new StringBuilder(24);
+		pad(sb, year, 4);
+		pad(sb, month, 2);
+		pad(sb, day, 2);
+		sb.append('.');
+		pad(sb, secondOfDay / 3600, 2);
+		pad(sb, (secondOfDay / 60) % 60, 2);
+		pad(sb, secondOfDay % 60, 2);
+		sb.append('-').append(getBuildNo(key));
+		return sb.toString();
+	}
+
+	private static long toEpochSeconds(int year, int month, int day,
+			int hour, int minute, int second) {
+		// Lenient calendar: month 0 or 13+ rolls into the neighbouring year,
+		// overflowing days, hours, minutes and seconds roll forward.
+		long monthIndex = month - 1;
+		long y = year + floorDiv(monthIndex, 12L);
+		int m = (int) (monthIndex - floorDiv(monthIndex, 12L) * 12L) + 1;
+
+		long days = daysFromCivil(y, m, 1) + day - 1;
+		return days * SECONDS_PER_DAY + hour * 3600L + minute * 60L + second;
+	}
+
+	/**
+	 * Number of days since 1970-01-01 in the proleptic Gregorian calendar
+	 * (algorithm by Howard Hinnant).
+	 */
+	private static long daysFromCivil(long year, int month, int day) {
+		long y = month <= 2 ? year - 1L : year;
+		long era = floorDiv(y, 400L);
+		long yoe = y - era * 400L;
+		long doy = (153L * (month > 2 ? month - 3 : month + 9) + 2L) / 5L
+				+ day - 1L;
+		long doe = yoe * 365L + yoe / 4L - yoe / 100L + doy;
+		return era * 146097L + doe - 719468L;
+	}
+
+	private static int digits(CharSequence s, int start, int count) {
+		int value = 0;
+		for (int i = start; i < start + count; i++) {
+			char c = s.charAt(i);
+			if (!isDigit(c))
+				return -1;
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isLineTerminator(char c) {
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028'
+				|| c == '\u2029';
+	}
+
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		if ((x % y != 0) && ((x ^ y) < 0))
+			q--;
+		return q;
+	}
+
+	private static void pad(StringBuilder sb, long value, int width) {
+		String digits = Long.toString(value);
+		for (int i = digits.length(); i < width; i++)
+			sb.append('0');
+		sb.append(digits);
+	}
+}
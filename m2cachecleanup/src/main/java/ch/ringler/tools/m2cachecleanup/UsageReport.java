@@ -0,0 +1,424 @@
+package ch.ringler.tools.m2cachecleanup;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disk usage of the cache per groupId, artifact and version, without
+ * deleting anything.
+ * <p>
+ * The walker measures every version directory it visits, releases included,
+ * and passes the files the cleanup would delete to the report instead of
+ * deleting them. So the reclaimable size follows the same retention rules as
+ * a real cleanup. One record is kept per version directory, groups and
+ * artifacts are summed up when the report is written.
+ * <p>
+ * Reports are written as text, JSON or CSV, depending on the extension of the
+ * report file. Every level lists the largest entries only.
+ */
+final class UsageReport implements FileDeleter {
+	private static final String SNAPSHOT_SUFFIX = "-SNAPSHOT";
+	private static final long KB = 1024L;
+	private static final long MB = KB * 1024L;
+	private static final long GB = MB * 1024L;
+
+	/**
+	 * Aggregation levels, from the coarsest to the finest.
+	 */
+	enum Level {
+		GROUP("groups"), ARTIFACT("artifacts"), VERSION("versions");
+
+		private final String m_title;
+
+		private Level(String title) {
+			m_title = title;
+		}
+
+		String getTitle() {
+			return m_title;
+		}
+	}
+
+	/**
+	 * Formats of the report file.
+	 */
+	enum Format {
+		TEXT, JSON, CSV;
+
+		/**
+		 * @return Format matching the extension of the file, text if there is
+		 *         no known extension
+		 */
+		static Format of(Path file) {
+			String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+			if (name.endsWith(".json"))
+				return JSON;
+			if (name.endsWith(".csv"))
+				return CSV;
+			return TEXT;
+		}
+	}
+
+	private final Path m_cacheRoot;
+	private final Map<Path, Record> m_versionDirs;
+	private final AtomicLong m_otherFiles;
+	private final AtomicLong m_otherSize;
+
+	/**
+	 * @param cacheRoot
+	 *            Cache directory, groupIds are derived from the paths below
+	 */
+	UsageReport(Path cacheRoot) {
+		m_cacheRoot = cacheRoot.toAbsolutePath();
+		m_versionDirs = new ConcurrentHashMap<Path, Record>();
+		m_otherFiles = new AtomicLong(0L);
+		m_otherSize = new AtomicLong(0L);
+	}
+
+	/**
+	 * Measures size and number of files of a version directory. Safe to use
+	 * from several traversal threads, files which vanish meanwhile are
+	 * ignored.
+	 */
+	void addVersionDir(Path versionDir) throws IOException {
+		final Record record = new Record(versionDir.getFileName().toString()
+				.endsWith(SNAPSHOT_SUFFIX));
+		Files.walkFileTree(versionDir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) {
+				if (attrs.isRegularFile()) {
+					record.m_files++;
+					record.m_size += attrs.size();
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		m_versionDirs.put(versionDir.toAbsolutePath(), record);
+	}
+
+	/**
+	 * Accounts a file the cleanup would delete, the file stays.
+	 */
+	public void delete(Path file, BasicFileAttributes attrs) {
+		Record record = m_versionDirs.get(file.toAbsolutePath().getParent());
+		if (record != null) {
+			record.addReclaimable(attrs.size());
+		} else {
+			// E.g. markers of failed downloads next to the version directories
+			m_otherFiles.incrementAndGet();
+			m_otherSize.addAndGet(attrs.size());
+		}
+	}
+
+	/**
+	 * @return Totals of the whole cache
+	 */
+	Row getTotal() {
+		Row total = new Row(null, null, null);
+		for (Record record : m_versionDirs.values()) {
+			total.add(record);
+		}
+		total.m_reclaimableFiles += m_otherFiles.get();
+		total.m_reclaimableSize += m_otherSize.get();
+		return total;
+	}
+
+	int getVersionDirs() {
+		return m_versionDirs.size();
+	}
+
+	/**
+	 * @param top
+	 *            Maximal number of rows, 0 for all
+	 * @return Largest entries of the level, largest first
+	 */
+	List<Row> getTop(Level level, int top) {
+		Map<String, Row> rows = new HashMap<String, Row>();
+		for (Map.Entry<Path, Record> entry : m_versionDirs.entrySet()) {
+			Path relative = m_cacheRoot.relativize(entry.getKey());
+			int names = relative.getNameCount();
+			StringBuilder groupId = new StringBuilder();
+			for (int i = 0; i < names - 2; i++) {
+				if (i > 0) {
+					groupId.append('.');
+				}
+				groupId.append(relative.getName(i));
+			}
+			String artifactId = (names > 1) ? relative.getName(names - 2)
+					.toString() : "";
+			String version = relative.getName(names - 1).toString();
+
+			Row row;
+			if (level == Level.GROUP) {
+				row = new Row(groupId.toString(), null, null);
+			} else if (level == Level.ARTIFACT) {
+				row = new Row(groupId.toString(), artifactId, null);
+			} else {
+				row = new Row(groupId.toString(), artifactId, version);
+			}
+			Row known = rows.get(row.getName());
+			if (known == null) {
+				rows.put(row.getName(), row);
+				known = row;
+			}
+			known.add(entry.getValue());
+		}
+
+		List<Row> sorted = new ArrayList<Row>(rows.values());
+		Collections.sort(sorted, new Comparator<Row>() {
+			public int compare(Row a, Row b) {
+				if (a.m_size != b.m_size)
+					return (a.m_size > b.m_size) ? -1 : 1;
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		return (top > 0 && sorted.size() > top) ? sorted.subList(0, top)
+				: sorted;
+	}
+
+	/**
+	 * @return Human readable report, one line per element
+	 */
+	List<String> getSummary(int top) {
+		List<String> lines = new ArrayList<String>();
+		Row total = getTotal();
+		lines.add("Cache size " + formatSize(total.m_size) + " in "
+				+ total.m_files + " file(s) of " + getVersionDirs()
+				+ " version directories, snapshots "
+				+ formatSize(total.m_snapshotSize) + ", releases "
+				+ formatSize(total.m_size - total.m_snapshotSize) + ".");
+		lines.add("Reclaimable by cleaning snapshots "
+				+ formatSize(total.m_reclaimableSize) + " in "
+				+ total.m_reclaimableFiles + " file(s).");
+		for (Level level : Level.values()) {
+			List<Row> rows = getTop(level, top);
+			if (rows.isEmpty())
+				continue;
+
+			lines.add("Largest " + level.getTitle() + ":");
+			for (Row row : rows) {
+				lines.add(String.format("%14s %14s reclaimable  %s",
+						formatSize(row.m_size),
+						formatSize(row.m_reclaimableSize), row.getName()));
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Writes the report in the format given by the extension of the file.
+	 */
+	void write(Path file, int top) throws IOException {
+		try (BufferedWriter out = Files.newBufferedWriter(file,
+				StandardCharsets.UTF_8)) {
+			switch (Format.of(file)) {
+			case JSON:
+				writeJson(out, top);
+				break;
+			case CSV:
+				writeCsv(out, top);
+				break;
+			default:
+				for (String line : getSummary(top)) {
+					out.write(line);
+					out.newLine();
+				}
+			}
+		}
+	}
+
+	private void writeJson(Writer out, int top) throws IOException {
+		out.write("{\n  \"cache\": ");
+		writeJsonString(out, m_cacheRoot.toString());
+		out.write(",\n  \"versionDirs\": " + getVersionDirs());
+		out.write(",\n  \"total\": ");
+		writeJsonRow(out, getTotal());
+		for (Level level : Level.values()) {
+			out.write(",\n  \"" + level.getTitle() + "\": [");
+			boolean first = true;
+			for (Row row : getTop(level, top)) {
+				out.write(first ? "\n    " : ",\n    ");
+				writeJsonRow(out, row);
+				first = false;
+			}
+			out.write(first ? "]" : "\n  ]");
+		}
+		out.write("\n}\n");
+	}
+
+	private static void writeJsonRow(Writer out, Row row) throws IOException {
+		out.write("{");
+		if (row.m_groupId != null) {
+			out.write("\"groupId\": ");
+			writeJsonString(out, row.m_groupId);
+			out.write(", ");
+		}
+		if (row.m_artifactId != null) {
+			out.write("\"artifactId\": ");
+			writeJsonString(out, row.m_artifactId);
+			out.write(", ");
+		}
+		if (row.m_version != null) {
+			out.write("\"version\": ");
+			writeJsonString(out, row.m_version);
+			out.write(", ");
+		}
+		out.write("\"size\": " + row.m_size + ", \"files\": " + row.m_files
+				+ ", \"snapshotSize\": " + row.m_snapshotSize
+				+ ", \"reclaimableSize\": " + row.m_reclaimableSize
+				+ ", \"reclaimableFiles\": " + row.m_reclaimableFiles + "}");
+	}
+
+	private static void writeJsonString(Writer out, String value)
+			throws IOException {
+		out.write('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				out.write('\\');
+				out.write(c);
+			} else if (c < 0x20) {
+				out.write(String.format("\\u%04x", (int) c));
+			} else {
+				out.write(c);
+			}
+		}
+		out.write('"');
+	}
+
+	private void writeCsv(Writer out, int top) throws IOException {
+		out.write("level,groupId,artifactId,version,size,files,snapshotSize,reclaimableSize,reclaimableFiles\n");
+		writeCsvRow(out, "total", getTotal());
+		for (Level level : Level.values()) {
+			for (Row row : getTop(level, top)) {
+				writeCsvRow(out, level.name().toLowerCase(Locale.ROOT), row);
+			}
+		}
+	}
+
+	private static void writeCsvRow(Writer out, String level, Row row)
+			throws IOException {
+		out.write(level + "," + csvField(row.m_groupId) + ","
+				+ csvField(row.m_artifactId) + "," + csvField(row.m_version)
+				+ "," + row.m_size + "," + row.m_files + ","
+				+ row.m_snapshotSize + "," + row.m_reclaimableSize + ","
+				+ row.m_reclaimableFiles + "\n");
+	}
+
+	private static String csvField(String value) {
+		if (value == null)
+			return "";
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0
+				&& value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+			return value;
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	private static String formatSize(long size) {
+		String unit = "Byte(s)";
+		double value = (double) size;
+		if (size >= GB) {
+			value = value / (double) GB;
+			unit = "GB";
+		} else if (size >= MB) {
+			value = value / (double) MB;
+			unit = "MB";
+		} else if (size >= KB) {
+			value = value / (double) KB;
+			unit = "KB";
+		}
+		return String.format("%1$.2f %2$s", value, unit);
+	}
+
+	/**
+	 * Usage of one version directory. Reclaimable files may be accounted by
+	 * several deletion threads.
+	 */
+	private static final class Record {
+		private final boolean m_snapshot;
+		private long m_files;
+		private long m_size;
+		private long m_reclaimableFiles;
+		private long m_reclaimableSize;
+
+		Record(boolean snapshot) {
+			m_snapshot = snapshot;
+		}
+
+		synchronized void addReclaimable(long size) {
+			m_reclaimableFiles++;
+			m_reclaimableSize += size;
+		}
+	}
+
+	/**
+	 * Usage summed up for a group, an artifact or a version.
+	 */
+	static final class Row {
+		private final String m_groupId;
+		private final String m_artifactId;
+		private final String m_version;
+		private long m_files;
+		private long m_size;
+		private long m_snapshotSize;
+		private long m_reclaimableFiles;
+		private long m_reclaimableSize;
+
+		Row(String groupId, String artifactId, String version) {
+			m_groupId = groupId;
+			m_artifactId = artifactId;
+			m_version = version;
+		}
+
+		/**
+		 * @return Coordinates like <code>com.acme:lib:1.0</code>
+		 */
+		String getName() {
+			StringBuilder name = new StringBuilder();
+			if (m_groupId != null) {
+				name.append(m_groupId);
+			}
+			if (m_artifactId != null) {
+				name.append(':').append(m_artifactId);
+			}
+			if (m_version != null) {
+				name.append(':').append(m_version);
+			}
+			return name.toString();
+		}
+
+		private void add(Record record) {
+			synchronized (record) {
+				m_files += record.m_files;
+				m_size += record.m_size;
+				if (record.m_snapshot) {
+					m_snapshotSize += record.m_size;
+				}
+				m_reclaimableFiles += record.m_reclaimableFiles;
+				m_reclaimableSize += record.m_reclaimableSize;
+			}
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package ch.ringler.tools.m2cachecleanup;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Cleaning once per build in reactors whose first project does not run the
+ * goal.
+ */
+public class CleanupMavenCacheTest {
+	private Path m_cacheDir;
+	private Path m_oldBuild;
+
+	@Before
+	public void setUp() throws IOException {
+		m_cacheDir = Files.createTempDirectory("cleanupmavencache");
+		Path versionDir = m_cacheDir.resolve("com/acme/foo/1.0-SNAPSHOT");
+		Files.createDirectories(versionDir);
+		m_oldBuild = versionDir.resolve("foo-1.0-20200101.120000-1.jar");
+		Files.write(versionDir.resolve("foo-1.0-20200102.120000-2.jar"), new byte[] { 2 });
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		Files.walkFileTree(m_cacheDir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Aggregator without the plugin followed by two modules running the goal:
+	 * the first module cleans, the second one skips.
+	 */
+	@Test
+	public void testFirstExecutionOfBuildCleans() throws Exception {
+		Object session = new Object();
+
+		Files.write(m_oldBuild, new byte[] { 1 });
+		mojo(session, true).execute();
+		assertFalse(Files.exists(m_oldBuild));
+
+		Files.write(m_oldBuild, new byte[] { 1 });
+		mojo(session, true).execute();
+		assertTrue(Files.exists(m_oldBuild));
+
+		// Next build cleans again
+		mojo(new Object(), true).execute();
+		assertFalse(Files.exists(m_oldBuild));
+	}
+
+	@Test
+	public void testEveryExecutionCleansWithoutOncePerBuild() throws Exception {
+		Object session = new Object();
+		mojo(session, false).execute();
+
+		Files.write(m_oldBuild, new byte[] { 1 });
+		mojo(session, false).execute();
+		assertFalse(Files.exists(m_oldBuild));
+	}
+
+	@Test
+	public void testExecutionWithoutSessionCleans() throws Exception {
+		mojo(null, true).execute();
+
+		Files.write(m_oldBuild, new byte[] { 1 });
+		mojo(null, true).execute();
+		assertFalse(Files.exists(m_oldBuild));
+	}
+
+	/**
+	 * @return Goal configured like Maven does with the defaults of its
+	 *         parameters
+	 */
+	private CleanupMavenCache mojo(Object session, boolean oncePerBuild) throws Exception {
+		CleanupMavenCache mojo = new CleanupMavenCache();
+		mojo.configure(new String[] { "directory=" + m_cacheDir, "threads=1", "keepBuilds=1",
+				"deleteQueueSize=1024" });
+		set(mojo, "session", session);
+		set(mojo, "oncePerBuild", Boolean.valueOf(oncePerBuild));
+		return mojo;
+	}
+
+	private static void set(CleanupMavenCache mojo, String name, Object value) throws Exception {
+		Field field = CleanupMavenCache.class.getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(mojo, value);
+	}
+}